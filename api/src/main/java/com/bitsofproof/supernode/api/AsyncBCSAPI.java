@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.util.Set;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ExtendedKey;
+
+/**
+ * Non-blocking variant of {@link BCSAPI}. Calls return immediately, no thread waits for an outstanding request. Failures are reported
+ * through the future or the subscriber.
+ */
+public interface AsyncBCSAPI
+{
+	/**
+	 * @see BCSAPI#ping(long)
+	 */
+	public BCSAPIFuture<Long> pingAsync (long nonce);
+
+	/**
+	 * @see BCSAPI#getBlockHeader(String)
+	 */
+	public BCSAPIFuture<Block> getBlockHeaderAsync (String hash);
+
+	/**
+	 * @see BCSAPI#getBlock(String)
+	 */
+	public BCSAPIFuture<Block> getBlockAsync (String hash);
+
+	/**
+	 * @see BCSAPI#getTransaction(String)
+	 */
+	public BCSAPIFuture<Transaction> getTransactionAsync (String hash);
+
+	/**
+	 * @see BCSAPI#sendTransaction(Transaction)
+	 */
+	public BCSAPIFuture<Void> sendTransactionAsync (Transaction transaction);
+
+	/**
+	 * @see BCSAPI#scanTransactionsForAddresses(Set, UpdateMode, long, TransactionListener)
+	 */
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionSubscriber subscriber);
+
+	/**
+	 * @see BCSAPI#scanTransactions(ExtendedKey, int, int, long, TransactionListener)
+	 */
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionSubscriber subscriber);
+
+	/**
+	 * @see BCSAPI#scanUTXOForAddresses(Set, UpdateMode, long, TransactionListener)
+	 */
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionSubscriber subscriber);
+
+	/**
+	 * @see BCSAPI#scanUTXO(ExtendedKey, int, int, long, TransactionListener)
+	 */
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionSubscriber subscriber);
+}
@@ -15,6 +15,7 @@
  */
 package com.bitsofproof.supernode.api;
 
+import java.util.List;
 import java.util.Set;
 
 import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
@@ -79,6 +80,26 @@ public interface BCSAPI
 	 */
 	public Transaction getTransaction (String hash) throws BCSAPIException;
 
+	/**
+	 * get the transactions identified by the hashes on the trunk in a single request
+	 * 
+	 * @param hashes
+	 * @param listener
+	 *            will be called for every transaction found, unknown hashes are skipped
+	 * @throws BCSAPIException
+	 */
+	public void getTransactions (List<String> hashes, TransactionListener listener) throws BCSAPIException;
+
+	/**
+	 * get block headers for the hashes in a single request
+	 * 
+	 * @param hashes
+	 * @param listener
+	 *            will be called for every block header found, unknown hashes are skipped
+	 * @throws BCSAPIException
+	 */
+	public void getBlockHeaders (List<String> hashes, BlockListener listener) throws BCSAPIException;
+
 	/**
 	 * send a signed transaction
 	 * 
@@ -137,6 +158,18 @@ public interface BCSAPI
 	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener)
 			throws BCSAPIException;
 
+	/**
+	 * Scan transactions for addresses, continuing an interrupted scan
+	 * 
+	 * @param resume
+	 *            - checkpoint of the interrupted scan, or null to start from the beginning
+	 * @param listener
+	 *            - receives checkpoints if it also implements {@link ScanCheckpointListener}
+	 * @throws BCSAPIException
+	 */
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException;
+
 	/**
 	 * Scan transactions for an account
 	 * 
@@ -147,6 +180,20 @@ public interface BCSAPI
 	 */
 	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException;
 
+	/**
+	 * Scan transactions for an account, continuing an interrupted scan
+	 * 
+	 * @param master
+	 *            - public master key
+	 * @param resume
+	 *            - checkpoint of the interrupted scan, or null to start from the beginning
+	 * @param listener
+	 *            - receives checkpoints if it also implements {@link ScanCheckpointListener}
+	 * @throws BCSAPIException
+	 */
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException;
+
 	/**
 	 * Scan unspent transactions using generic binary match.
 	 * 
@@ -156,6 +203,18 @@ public interface BCSAPI
 	 */
 	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException;
 
+	/**
+	 * Scan unspent transactions for addresses, continuing an interrupted scan
+	 * 
+	 * @param resume
+	 *            - checkpoint of the interrupted scan, or null to start from the beginning
+	 * @param listener
+	 *            - receives checkpoints if it also implements {@link ScanCheckpointListener}
+	 * @throws BCSAPIException
+	 */
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException;
+
 	/**
 	 * Scan unspent transactions for an account
 	 * 
@@ -166,6 +225,20 @@ public interface BCSAPI
 	 */
 	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException;
 
+	/**
+	 * Scan unspent transactions for an account, continuing an interrupted scan
+	 * 
+	 * @param master
+	 *            - public master key
+	 * @param resume
+	 *            - checkpoint of the interrupted scan, or null to start from the beginning
+	 * @param listener
+	 *            - receives checkpoints if it also implements {@link ScanCheckpointListener}
+	 * @throws BCSAPIException
+	 */
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException;
+
 	/**
 	 * Generate a trunk update to cach up from a last seen block
 	 * 
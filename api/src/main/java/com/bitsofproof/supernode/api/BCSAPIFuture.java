@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous BCSAPI call. Callbacks run on the thread that completes the future, that is usually the thread receiving the
+ * reply, they should not block.
+ */
+public class BCSAPIFuture<T> implements Future<T>
+{
+	public interface Callback<T>
+	{
+		public void onSuccess (T result);
+
+		public void onFailure (BCSAPIException e);
+	}
+
+	private final CountDownLatch done = new CountDownLatch (1);
+	private List<Callback<T>> callbacks = new ArrayList<Callback<T>> ();
+	private T result;
+	private BCSAPIException failure;
+	private boolean cancelled;
+
+	/**
+	 * @return true if this call completed the future
+	 */
+	public boolean complete (T result)
+	{
+		List<Callback<T>> c;
+		synchronized ( this )
+		{
+			if ( callbacks == null )
+			{
+				return false;
+			}
+			this.result = result;
+			c = callbacks;
+			callbacks = null;
+		}
+		done.countDown ();
+		for ( Callback<T> callback : c )
+		{
+			callback.onSuccess (result);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if this call completed the future
+	 */
+	public boolean fail (BCSAPIException failure)
+	{
+		return fail (failure, false);
+	}
+
+	// a cancel is recorded only if it is the outcome, not if the future completed meanwhile
+	private boolean fail (BCSAPIException failure, boolean cancel)
+	{
+		List<Callback<T>> c;
+		synchronized ( this )
+		{
+			if ( callbacks == null )
+			{
+				return false;
+			}
+			this.failure = failure;
+			cancelled = cancel;
+			c = callbacks;
+			callbacks = null;
+		}
+		done.countDown ();
+		for ( Callback<T> callback : c )
+		{
+			callback.onFailure (failure);
+		}
+		return true;
+	}
+
+	/**
+	 * add a callback, it is called immediately if the future is already completed
+	 */
+	public void addCallback (Callback<T> callback)
+	{
+		synchronized ( this )
+		{
+			if ( callbacks != null )
+			{
+				callbacks.add (callback);
+				return;
+			}
+		}
+		if ( failure != null )
+		{
+			callback.onFailure (failure);
+		}
+		else
+		{
+			callback.onSuccess (result);
+		}
+	}
+
+	@Override
+	public boolean cancel (boolean mayInterruptIfRunning)
+	{
+		return fail (new BCSAPIException ("cancelled"), true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled ()
+	{
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone ()
+	{
+		return done.getCount () == 0;
+	}
+
+	@Override
+	public T get () throws InterruptedException, ExecutionException
+	{
+		done.await ();
+		return report ();
+	}
+
+	@Override
+	public T get (long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if ( !done.await (timeout, unit) )
+		{
+			throw new TimeoutException ();
+		}
+		return report ();
+	}
+
+	private synchronized T report () throws ExecutionException
+	{
+		if ( cancelled )
+		{
+			throw new CancellationException ();
+		}
+		if ( failure != null )
+		{
+			throw new ExecutionException (failure);
+		}
+		return result;
+	}
+
+	/**
+	 * wait for the result as a synchronous call would. The future is cancelled if the waiting thread is interrupted.
+	 *
+	 * @return result
+	 * @throws BCSAPIException
+	 *             the failure of the call or interrupt
+	 */
+	public T getResult () throws BCSAPIException
+	{
+		try
+		{
+			done.await ();
+		}
+		catch ( InterruptedException e )
+		{
+			interrupted ();
+		}
+		return outcome ();
+	}
+
+	/**
+	 * wait for the result as a synchronous call would. The future is cancelled if it does not complete in time.
+	 *
+	 * @param timeout
+	 *            - milliseconds
+	 * @return result
+	 * @throws BCSAPIException
+	 *             the failure of the call, timeout or interrupt
+	 */
+	public T getResult (long timeout) throws BCSAPIException
+	{
+		try
+		{
+			// the result may still arrive while cancelling
+			if ( !done.await (timeout, TimeUnit.MILLISECONDS) && cancel (false) )
+			{
+				throw new BCSAPIException ("timeout");
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			interrupted ();
+		}
+		return outcome ();
+	}
+
+	private void interrupted () throws BCSAPIException
+	{
+		cancel (false);
+		Thread.currentThread ().interrupt ();
+		throw new BCSAPIException ("interrupted");
+	}
+
+	private synchronized T outcome () throws BCSAPIException
+	{
+		if ( failure != null )
+		{
+			throw failure;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.ValidationException;
+
+/**
+ * Server side of the BCSAPI, answering requests with objects instead of messages. Transports such as the {@link EmbeddedBCSAPIServer}
+ * serialize what it returns, the {@link DirectBCSAPI} hands it to clients in the same process as is.
+ * <p>
+ * Blocks and transactions returned are shared with the handler and must not be modified.
+ */
+public interface BCSAPIHandler
+{
+	/**
+	 * Events of the handler, called on the thread that caused them.
+	 */
+	public interface EventListener
+	{
+		public void transaction (Transaction t);
+
+		public void trunkUpdate (TrunkUpdateMessage update);
+
+		public void alert (String alert, int severity);
+	}
+
+	public void addEventListener (EventListener listener);
+
+	public void removeEventListener (EventListener listener);
+
+	/**
+	 * @return the block without transactions, or null if not known
+	 */
+	public Block getBlockHeader (String hash);
+
+	/**
+	 * @return the block, or null if not known
+	 */
+	public Block getBlock (String hash);
+
+	/**
+	 * @return a transaction of the trunk or unconfirmed, or null if not known
+	 */
+	public Transaction getTransaction (String hash);
+
+	/**
+	 * @param inventory
+	 *            - hashes of blocks known to the caller, the first known to the handler is used
+	 * @return blocks removed from and added to the trunk since that block, or null if none of them is known
+	 */
+	public TrunkUpdateMessage catchUp (List<String> inventory);
+
+	/**
+	 * Transactions with outputs that push any of the data, and depending on the mode transactions spending those outputs.
+	 *
+	 * @param after
+	 *            - only transactions of blocks created at or after this time, in milliseconds
+	 * @param utxo
+	 *            - only transactions with matching outputs not yet spent
+	 * @return transactions ordered by their position, the position is the checkpoint of a scan
+	 */
+	public NavigableMap<Long, Transaction> scan (Collection<byte[]> match, UpdateMode mode, long after, boolean utxo);
+
+	/**
+	 * Transactions of the addresses of an account and transactions spending their outputs.
+	 *
+	 * @param after
+	 *            - only transactions of blocks created at or after this time, in milliseconds
+	 * @param utxo
+	 *            - only transactions with outputs of the account not yet spent
+	 * @return transactions ordered by their position, the position is the checkpoint of a scan
+	 */
+	public NavigableMap<Long, Transaction> scan (ExtendedKey master, int firstIndex, int lookAhead, long after, boolean utxo)
+			throws ValidationException;
+
+	/**
+	 * accept a transaction and tell event listeners if it is new
+	 *
+	 * @throws ValidationException
+	 *             if rejected
+	 */
+	public void sendTransaction (Transaction transaction) throws ValidationException;
+
+	/**
+	 * accept a block and tell event listeners if the trunk changed
+	 *
+	 * @throws ValidationException
+	 *             if rejected
+	 */
+	public void sendBlock (Block block) throws ValidationException;
+
+	/**
+	 * @param severity
+	 *            - 0: info, 1: warning, 2: error
+	 */
+	public void sendAlert (String alert, int severity);
+}
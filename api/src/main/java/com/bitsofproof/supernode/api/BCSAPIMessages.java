@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.common.Hash;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Requests, replies and copies shared by the BCSAPI implementations. Decoders return null for a null body, that is an empty reply.
+ */
+final class BCSAPIMessages
+{
+	static final String GENESIS = "000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f";
+
+	private BCSAPIMessages ()
+	{
+	}
+
+	/**
+	 * A chunk of a scan, transactions and the checkpoint to resume after them, if any.
+	 */
+	static class Chunk
+	{
+		final List<Transaction> transactions;
+		final String checkpoint;
+
+		Chunk (List<Transaction> transactions, String checkpoint)
+		{
+			this.transactions = transactions;
+			this.checkpoint = checkpoint;
+		}
+
+		/**
+		 * Passes the transactions and then the checkpoint to the listener
+		 */
+		void deliver (TransactionListener listener)
+		{
+			for ( Transaction t : transactions )
+			{
+				listener.process (t);
+			}
+			if ( checkpoint != null && listener instanceof ScanCheckpointListener )
+			{
+				((ScanCheckpointListener) listener).checkpoint (checkpoint);
+			}
+		}
+	}
+
+	static List<byte[]> toMatch (Set<Address> addresses)
+	{
+		List<byte[]> al = new ArrayList<> (addresses.size ());
+		for ( Address a : addresses )
+		{
+			al.add (a.toByteArray ());
+		}
+		return al;
+	}
+
+	static byte[] hashRequest (String hash)
+	{
+		return hashRequest (Collections.singletonList (hash));
+	}
+
+	static byte[] hashRequest (List<String> hashes)
+	{
+		BCSAPIMessage.Hash.Builder builder = BCSAPIMessage.Hash.newBuilder ();
+		builder.setBcsapiversion (1);
+		for ( String hash : hashes )
+		{
+			builder.addHash (ByteString.copyFrom (new Hash (hash).toByteArray ()));
+		}
+		return builder.build ().toByteArray ();
+	}
+
+	static Transaction decodeTransaction (byte[] body) throws InvalidProtocolBufferException
+	{
+		if ( body == null )
+		{
+			return null;
+		}
+		Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
+		t.computeHash ();
+		return t;
+	}
+
+	static Block decodeBlock (byte[] body) throws InvalidProtocolBufferException
+	{
+		if ( body == null )
+		{
+			return null;
+		}
+		Block b = Block.fromProtobuf (BCSAPIMessage.Block.parseFrom (body));
+		b.computeHash ();
+		return b;
+	}
+
+	static TrunkUpdateMessage decodeTrunkUpdate (byte[] body) throws InvalidProtocolBufferException
+	{
+		if ( body == null )
+		{
+			return null;
+		}
+		TrunkUpdateMessage tu = TrunkUpdateMessage.fromProtobuf (BCSAPIMessage.TrunkUpdate.parseFrom (body));
+		if ( tu.getRemoved () != null )
+		{
+			for ( Block b : tu.getRemoved () )
+			{
+				b.computeHash ();
+			}
+		}
+		if ( tu.getAdded () != null )
+		{
+			for ( Block b : tu.getAdded () )
+			{
+				b.computeHash ();
+			}
+		}
+		return tu;
+	}
+
+	static Chunk decodeChunk (byte[] body) throws InvalidProtocolBufferException
+	{
+		BCSAPIMessage.TransactionChunk chunk = BCSAPIMessage.TransactionChunk.parseFrom (body);
+		List<Transaction> transactions = new ArrayList<Transaction> (chunk.getTransactionsCount ());
+		for ( BCSAPIMessage.Transaction pt : chunk.getTransactionsList () )
+		{
+			Transaction t = Transaction.fromProtobuf (pt);
+			t.computeHash ();
+			transactions.add (t);
+		}
+		return new Chunk (transactions, chunk.hasCheckpoint () ? ByteUtils.toHex (chunk.getCheckpoint ().toByteArray ()) : null);
+	}
+
+	static Transaction copyOf (Transaction t)
+	{
+		if ( t == null )
+		{
+			return null;
+		}
+		try
+		{
+			return t.clone ();
+		}
+		catch ( CloneNotSupportedException e )
+		{
+			return t;
+		}
+	}
+
+	static Block copyOf (Block b)
+	{
+		if ( b == null )
+		{
+			return null;
+		}
+		try
+		{
+			return b.clone ();
+		}
+		catch ( CloneNotSupportedException e )
+		{
+			return b;
+		}
+	}
+
+	static List<Block> copyOf (List<Block> blocks)
+	{
+		if ( blocks == null )
+		{
+			return null;
+		}
+		List<Block> copy = new ArrayList<Block> (blocks.size ());
+		for ( Block b : blocks )
+		{
+			copy.add (copyOf (b));
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static com.bitsofproof.supernode.api.BCSAPIMessages.GENESIS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ExtendedKey;
+
+/**
+ * BCSAPI answering lookups of blocks, block headers and transactions from a cache of recently used ones, and passing other requests to a
+ * delegate. Concurrent lookups of the same hash are sent to the delegate once, the callers wait for the same reply. Unknown hashes are not
+ * cached, they may become known.
+ * <p>
+ * The cache follows the trunk of the delegate: blocks removed from the trunk are evicted together with their transactions, and so are
+ * cached unconfirmed transactions once a block is added, since their block may have changed. A lookup that started before a trunk update
+ * is returned but not cached.
+ */
+public class CachingBCSAPI implements BCSAPI
+{
+	private BCSAPI delegate;
+	private boolean copyObjects = true;
+
+	private final LookupCache<Block> blocks = new LookupCache<Block> (100)
+	{
+		@Override
+		protected Block load (String hash) throws BCSAPIException
+		{
+			return delegate.getBlock (hash);
+		}
+	};
+
+	private final LookupCache<Block> headers = new LookupCache<Block> (10000)
+	{
+		@Override
+		protected Block load (String hash) throws BCSAPIException
+		{
+			return delegate.getBlockHeader (hash);
+		}
+	};
+
+	// cached transaction hashes by the block they were cached with and those cached unconfirmed, guarded by this
+	private final Map<String, Set<String>> transactionsByBlock = new HashMap<String, Set<String>> ();
+	private final Set<String> unconfirmed = new HashSet<String> ();
+	private final Map<String, String> blockOfTransaction = new HashMap<String, String> ();
+
+	private final LookupCache<Transaction> transactions = new LookupCache<Transaction> (10000)
+	{
+		@Override
+		protected Transaction load (String hash) throws BCSAPIException
+		{
+			return delegate.getTransaction (hash);
+		}
+
+		@Override
+		protected void cached (String hash, Transaction t)
+		{
+			// the block hash of a shared transaction may change while cached, so remember the one indexed
+			String block = t.getBlockHash ();
+			blockOfTransaction.put (hash, block);
+			if ( block == null )
+			{
+				unconfirmed.add (hash);
+			}
+			else
+			{
+				Set<String> hashes = transactionsByBlock.get (block);
+				if ( hashes == null )
+				{
+					transactionsByBlock.put (block, hashes = new HashSet<String> ());
+				}
+				hashes.add (hash);
+			}
+		}
+
+		@Override
+		protected void evicted (String hash, Transaction t)
+		{
+			String block = blockOfTransaction.remove (hash);
+			if ( block == null )
+			{
+				unconfirmed.remove (hash);
+			}
+			else
+			{
+				Set<String> hashes = transactionsByBlock.get (block);
+				if ( hashes != null && hashes.remove (hash) && hashes.isEmpty () )
+				{
+					transactionsByBlock.remove (block);
+				}
+			}
+		}
+	};
+
+	// incremented by trunk updates, guarded by this
+	private long generation = 0;
+	private volatile Boolean production = null;
+	private final AtomicLong hits = new AtomicLong (0);
+	private final AtomicLong misses = new AtomicLong (0);
+
+	private final TrunkListener evictor = new TrunkListener ()
+	{
+		@Override
+		public void trunkUpdate (List<Block> removed, List<Block> added)
+		{
+			evict (removed, added);
+		}
+	};
+
+	/**
+	 * BCSAPI serving lookups not cached and all other requests
+	 */
+	public void setDelegate (BCSAPI delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Each caller gets its own copy of cached blocks and transactions by default. Clear this to share the cached objects instead, they
+	 * must then not be modified.
+	 */
+	public void setCopyObjects (boolean copyObjects)
+	{
+		this.copyObjects = copyObjects;
+	}
+
+	/**
+	 * maximum number of blocks with transactions cached
+	 */
+	public void setBlockCacheSize (int size)
+	{
+		blocks.setCapacity (size);
+	}
+
+	/**
+	 * maximum number of block headers cached
+	 */
+	public void setHeaderCacheSize (int size)
+	{
+		headers.setCapacity (size);
+	}
+
+	/**
+	 * maximum number of transactions cached
+	 */
+	public void setTransactionCacheSize (int size)
+	{
+		transactions.setCapacity (size);
+	}
+
+	/**
+	 * @return number of lookups answered from the cache or by joining a lookup of the same hash
+	 */
+	public long getHits ()
+	{
+		return hits.get ();
+	}
+
+	/**
+	 * @return number of lookups sent to the delegate
+	 */
+	public long getMisses ()
+	{
+		return misses.get ();
+	}
+
+	public void init () throws BCSAPIException
+	{
+		delegate.registerTrunkListener (evictor);
+	}
+
+	public void destroy ()
+	{
+		delegate.removeTrunkListener (evictor);
+	}
+
+	// an LRU of lookups by hash, loading each missing hash once for all concurrent callers
+	private abstract class LookupCache<T>
+	{
+		private int capacity;
+		// guarded by CachingBCSAPI.this
+		private final LinkedHashMap<String, T> entries = new LinkedHashMap<String, T> (16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, T> eldest)
+			{
+				if ( size () > capacity )
+				{
+					evicted (eldest.getKey (), eldest.getValue ());
+					return true;
+				}
+				return false;
+			}
+		};
+		private final ConcurrentHashMap<String, BCSAPIFuture<T>> loading = new ConcurrentHashMap<String, BCSAPIFuture<T>> ();
+
+		public LookupCache (int capacity)
+		{
+			this.capacity = capacity;
+		}
+
+		public void setCapacity (int capacity)
+		{
+			synchronized ( CachingBCSAPI.this )
+			{
+				this.capacity = capacity;
+			}
+		}
+
+		protected abstract T load (String hash) throws BCSAPIException;
+
+		/**
+		 * called with the lock held as a value enters the cache
+		 */
+		protected void cached (String hash, T value)
+		{
+		}
+
+		/**
+		 * called with the lock held as a value leaves the cache, replaced, evicted or removed
+		 */
+		protected void evicted (String hash, T value)
+		{
+		}
+
+		public T get (String hash) throws BCSAPIException
+		{
+			long started;
+			synchronized ( CachingBCSAPI.this )
+			{
+				T cached = entries.get (hash);
+				if ( cached != null )
+				{
+					hits.incrementAndGet ();
+					return cached;
+				}
+				started = generation;
+			}
+			BCSAPIFuture<T> lookup = new BCSAPIFuture<T> ();
+			BCSAPIFuture<T> running = loading.putIfAbsent (hash, lookup);
+			if ( running != null )
+			{
+				hits.incrementAndGet ();
+				return running.getResult ();
+			}
+			misses.incrementAndGet ();
+			try
+			{
+				T result = load (hash);
+				put (hash, result, started);
+				lookup.complete (result);
+				return result;
+			}
+			catch ( BCSAPIException e )
+			{
+				lookup.fail (e);
+				throw e;
+			}
+			catch ( RuntimeException e )
+			{
+				lookup.fail (new BCSAPIException (e));
+				throw e;
+			}
+			finally
+			{
+				loading.remove (hash, lookup);
+			}
+		}
+
+		/**
+		 * @return cached or null, without loading
+		 */
+		public T peek (String hash)
+		{
+			synchronized ( CachingBCSAPI.this )
+			{
+				T cached = entries.get (hash);
+				if ( cached != null )
+				{
+					hits.incrementAndGet ();
+				}
+				return cached;
+			}
+		}
+
+		/**
+		 * cache unless the trunk changed since the lookup started
+		 */
+		public void put (String hash, T value, long started)
+		{
+			synchronized ( CachingBCSAPI.this )
+			{
+				if ( value != null && started == generation )
+				{
+					remove (hash);
+					cached (hash, value);
+					entries.put (hash, value);
+				}
+			}
+		}
+
+		// called with the lock held
+		private void remove (String hash)
+		{
+			T value = entries.remove (hash);
+			if ( value != null )
+			{
+				evicted (hash, value);
+			}
+		}
+	}
+
+	// work is proportional to the update, not to the size of the cache
+	private synchronized void evict (List<Block> removed, List<Block> added)
+	{
+		++generation;
+		if ( removed != null )
+		{
+			for ( Block b : removed )
+			{
+				blocks.remove (b.getHash ());
+				headers.remove (b.getHash ());
+				Set<String> hashes = transactionsByBlock.get (b.getHash ());
+				if ( hashes != null )
+				{
+					for ( String hash : new ArrayList<String> (hashes) )
+					{
+						transactions.remove (hash);
+					}
+				}
+			}
+		}
+		if ( added != null && !added.isEmpty () )
+		{
+			for ( String hash : new ArrayList<String> (unconfirmed) )
+			{
+				transactions.remove (hash);
+			}
+		}
+	}
+
+	private long generation ()
+	{
+		synchronized ( this )
+		{
+			return generation;
+		}
+	}
+
+	@Override
+	public long ping (long nonce) throws BCSAPIException
+	{
+		return delegate.ping (nonce);
+	}
+
+	@Override
+	public void addAlertListener (AlertListener listener) throws BCSAPIException
+	{
+		delegate.addAlertListener (listener);
+	}
+
+	@Override
+	public void removeAlertListener (AlertListener listener)
+	{
+		delegate.removeAlertListener (listener);
+	}
+
+	@Override
+	public boolean isProduction () throws BCSAPIException
+	{
+		if ( production != null )
+		{
+			return production;
+		}
+		return production = getBlockHeader (GENESIS) != null;
+	}
+
+	@Override
+	public Block getBlockHeader (String hash) throws BCSAPIException
+	{
+		return copyOf (headers.get (hash));
+	}
+
+	@Override
+	public Block getBlock (String hash) throws BCSAPIException
+	{
+		return copyOf (blocks.get (hash));
+	}
+
+	@Override
+	public Transaction getTransaction (String hash) throws BCSAPIException
+	{
+		return copyOf (transactions.get (hash));
+	}
+
+	/**
+	 * cached transactions are passed to the listener first, then those of a single request for the others
+	 */
+	@Override
+	public void getTransactions (List<String> hashes, final TransactionListener listener) throws BCSAPIException
+	{
+		List<String> missing = new ArrayList<String> ();
+		for ( String hash : hashes )
+		{
+			Transaction t = transactions.peek (hash);
+			if ( t != null )
+			{
+				listener.process (copyOf (t));
+			}
+			else
+			{
+				missing.add (hash);
+			}
+		}
+		if ( !missing.isEmpty () )
+		{
+			misses.addAndGet (missing.size ());
+			final long started = generation ();
+			delegate.getTransactions (missing, new TransactionListener ()
+			{
+				@Override
+				public void process (Transaction t)
+				{
+					transactions.put (t.getHash (), t, started);
+					listener.process (copyOf (t));
+				}
+			});
+		}
+	}
+
+	/**
+	 * cached headers are passed to the listener first, then those of a single request for the others
+	 */
+	@Override
+	public void getBlockHeaders (List<String> hashes, final BlockListener listener) throws BCSAPIException
+	{
+		List<String> missing = new ArrayList<String> ();
+		for ( String hash : hashes )
+		{
+			Block b = headers.peek (hash);
+			if ( b != null )
+			{
+				listener.process (copyOf (b));
+			}
+			else
+			{
+				missing.add (hash);
+			}
+		}
+		if ( !missing.isEmpty () )
+		{
+			misses.addAndGet (missing.size ());
+			final long started = generation ();
+			delegate.getBlockHeaders (missing, new BlockListener ()
+			{
+				@Override
+				public void process (Block b)
+				{
+					headers.put (b.getHash (), b, started);
+					listener.process (copyOf (b));
+				}
+			});
+		}
+	}
+
+	@Override
+	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	{
+		delegate.sendTransaction (transaction);
+	}
+
+	@Override
+	public void sendBlock (Block block) throws BCSAPIException
+	{
+		delegate.sendBlock (block);
+	}
+
+	@Override
+	public void registerTransactionListener (TransactionListener listener) throws BCSAPIException
+	{
+		delegate.registerTransactionListener (listener);
+	}
+
+	@Override
+	public void removeTransactionListener (TransactionListener listener)
+	{
+		delegate.removeTransactionListener (listener);
+	}
+
+	@Override
+	public void registerTrunkListener (TrunkListener listener) throws BCSAPIException
+	{
+		delegate.registerTrunkListener (listener);
+	}
+
+	@Override
+	public void removeTrunkListener (TrunkListener listener)
+	{
+		delegate.removeTrunkListener (listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanTransactionsForAddresses (addresses, mode, after, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanTransactionsForAddresses (addresses, mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanTransactions (master, firstIndex, lookAhead, after, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanTransactions (master, firstIndex, lookAhead, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanUTXOForAddresses (addresses, mode, after, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanUTXOForAddresses (addresses, mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanUTXO (master, firstIndex, lookAhead, after, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanUTXO (master, firstIndex, lookAhead, after, resume, listener);
+	}
+
+	@Override
+	public void catchUp (String hash, TrunkListener listener) throws BCSAPIException
+	{
+		delegate.catchUp (hash, listener);
+	}
+
+	private Transaction copyOf (Transaction t)
+	{
+		return copyObjects ? BCSAPIMessages.copyOf (t) : t;
+	}
+
+	private Block copyOf (Block b)
+	{
+		return copyObjects ? BCSAPIMessages.copyOf (b) : b;
+	}
+}
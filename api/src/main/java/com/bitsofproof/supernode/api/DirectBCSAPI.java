@@ -0,0 +1,456 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static com.bitsofproof.supernode.api.BCSAPIMessages.GENESIS;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.toMatch;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.ListenerRegistry;
+import com.bitsofproof.supernode.common.TaskExecutors;
+import com.bitsofproof.supernode.common.ValidationException;
+
+/**
+ * BCSAPI calling a {@link BCSAPIHandler} in the same process. Requests are method calls and blocks and transactions are passed without
+ * serialization, the objects returned are those of the handler and must not be modified unless copies are asked for.
+ * <p>
+ * Listeners are registered as with {@link JMSServerConnector} and called in the order of events on a thread of their own, not on the thread
+ * that caused the event.
+ */
+public class DirectBCSAPI implements BCSAPI
+{
+	private static final Logger log = LoggerFactory.getLogger (DirectBCSAPI.class);
+
+	private BCSAPIHandler handler;
+	private boolean copyObjects = false;
+	private int checkpointInterval = 100;
+
+	private volatile Boolean production = null;
+
+	private ExecutorService listenerExecutor;
+	private final ListenerRegistry<TransactionListener> transactionListeners = new ListenerRegistry<TransactionListener> (
+			new TransactionListener[0]);
+	private final ListenerRegistry<TrunkListener> trunkListeners = new ListenerRegistry<TrunkListener> (new TrunkListener[0]);
+	private final ListenerRegistry<AlertListener> alertListeners = new ListenerRegistry<AlertListener> (new AlertListener[0]);
+
+	private final BCSAPIHandler.EventListener events = new BCSAPIHandler.EventListener ()
+	{
+		@Override
+		public void transaction (final Transaction t)
+		{
+			if ( transactionListeners.isEmpty () )
+			{
+				return;
+			}
+			dispatch ("transaction", new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					for ( TransactionListener listener : transactionListeners.getListeners () )
+					{
+						try
+						{
+							listener.process (copyOf (t));
+						}
+						catch ( Exception e )
+						{
+							log.error ("Listener failed on transaction message", e);
+						}
+					}
+				}
+			});
+		}
+
+		@Override
+		public void trunkUpdate (final TrunkUpdateMessage update)
+		{
+			if ( trunkListeners.isEmpty () )
+			{
+				return;
+			}
+			dispatch ("trunk", new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					for ( TrunkListener listener : trunkListeners.getListeners () )
+					{
+						try
+						{
+							listener.trunkUpdate (copyOf (update.getRemoved ()), copyOf (update.getAdded ()));
+						}
+						catch ( Exception e )
+						{
+							log.error ("Listener failed on trunk message", e);
+						}
+					}
+				}
+			});
+		}
+
+		@Override
+		public void alert (final String alert, final int severity)
+		{
+			if ( alertListeners.isEmpty () )
+			{
+				return;
+			}
+			dispatch ("alert", new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					for ( AlertListener listener : alertListeners.getListeners () )
+					{
+						try
+						{
+							listener.alert (alert, severity);
+						}
+						catch ( Exception e )
+						{
+							log.error ("Listener failed on alert message", e);
+						}
+					}
+				}
+			});
+		}
+	};
+
+	public void setHandler (BCSAPIHandler handler)
+	{
+		this.handler = handler;
+	}
+
+	/**
+	 * Blocks and transactions are shared with the handler and with every listener, they must not be modified. Set this to copy them as they
+	 * pass in either direction instead.
+	 */
+	public void setCopyObjects (boolean copyObjects)
+	{
+		this.copyObjects = copyObjects;
+	}
+
+	/**
+	 * number of transactions of a scan between checkpoints
+	 */
+	public void setCheckpointInterval (int checkpointInterval)
+	{
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public void init ()
+	{
+		log.debug ("Initialize direct BCSAPI");
+		// a single thread keeps listeners called in the order of events
+		listenerExecutor = Executors.newSingleThreadExecutor (TaskExecutors.daemonThreads ("BCSAPI direct listener"));
+		handler.addEventListener (events);
+	}
+
+	public void destroy ()
+	{
+		handler.removeEventListener (events);
+		listenerExecutor.shutdown ();
+	}
+
+	private void dispatch (String topic, Runnable delivery)
+	{
+		try
+		{
+			listenerExecutor.execute (delivery);
+		}
+		catch ( RejectedExecutionException e )
+		{
+			log.trace ("Discarding " + topic + " message after destroy");
+		}
+	}
+
+	@Override
+	public long ping (long nonce) throws BCSAPIException
+	{
+		return nonce;
+	}
+
+	@Override
+	public void addAlertListener (AlertListener listener) throws BCSAPIException
+	{
+		alertListeners.add (listener);
+	}
+
+	@Override
+	public void removeAlertListener (AlertListener listener)
+	{
+		alertListeners.remove (listener);
+	}
+
+	@Override
+	public boolean isProduction () throws BCSAPIException
+	{
+		if ( production != null )
+		{
+			return production;
+		}
+		return production = handler.getBlockHeader (GENESIS) != null;
+	}
+
+	@Override
+	public Block getBlockHeader (String hash) throws BCSAPIException
+	{
+		return copyOf (handler.getBlockHeader (hash));
+	}
+
+	@Override
+	public Block getBlock (String hash) throws BCSAPIException
+	{
+		return copyOf (handler.getBlock (hash));
+	}
+
+	@Override
+	public Transaction getTransaction (String hash) throws BCSAPIException
+	{
+		return copyOf (handler.getTransaction (hash));
+	}
+
+	@Override
+	public void getTransactions (List<String> hashes, TransactionListener listener) throws BCSAPIException
+	{
+		for ( String hash : hashes )
+		{
+			Transaction t = handler.getTransaction (hash);
+			if ( t != null )
+			{
+				listener.process (copyOf (t));
+			}
+		}
+	}
+
+	@Override
+	public void getBlockHeaders (List<String> hashes, BlockListener listener) throws BCSAPIException
+	{
+		for ( String hash : hashes )
+		{
+			Block b = handler.getBlockHeader (hash);
+			if ( b != null )
+			{
+				listener.process (copyOf (b));
+			}
+		}
+	}
+
+	@Override
+	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	{
+		try
+		{
+			handler.sendTransaction (copyOf (transaction));
+		}
+		catch ( ValidationException e )
+		{
+			throw new BCSAPIException (e.getMessage (), e);
+		}
+	}
+
+	@Override
+	public void sendBlock (Block block) throws BCSAPIException
+	{
+		try
+		{
+			handler.sendBlock (copyOf (block));
+		}
+		catch ( ValidationException e )
+		{
+			throw new BCSAPIException (e.getMessage (), e);
+		}
+	}
+
+	@Override
+	public void registerTransactionListener (TransactionListener listener) throws BCSAPIException
+	{
+		transactionListeners.add (listener);
+	}
+
+	@Override
+	public void removeTransactionListener (TransactionListener listener)
+	{
+		transactionListeners.remove (listener);
+	}
+
+	@Override
+	public void registerTrunkListener (TrunkListener listener) throws BCSAPIException
+	{
+		trunkListeners.add (listener);
+	}
+
+	@Override
+	public void removeTrunkListener (TrunkListener listener)
+	{
+		trunkListeners.remove (listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (match, mode, after, null, listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		deliver (handler.scan (match, mode, after, false), resume, listener);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (match, mode, after, null, listener);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		deliver (handler.scan (match, mode, after, true), resume, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanAccount (master, firstIndex, lookAhead, after, false, resume, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanAccount (master, firstIndex, lookAhead, after, true, resume, listener);
+	}
+
+	private void scanAccount (ExtendedKey master, int firstIndex, int lookAhead, long after, boolean utxo, String resume,
+			TransactionListener listener) throws BCSAPIException
+	{
+		if ( !master.isReadOnly () )
+		{
+			master = master.getReadOnly ();
+		}
+		try
+		{
+			deliver (handler.scan (master, firstIndex, lookAhead, after, utxo), resume, listener);
+		}
+		catch ( ValidationException e )
+		{
+			throw new BCSAPIException (e);
+		}
+	}
+
+	/**
+	 * Pass transactions found to the listener. Checkpoints are the position of the last transaction passed, in the format of the
+	 * {@link EmbeddedBCSAPIServer}, so that a scan may be resumed through either.
+	 */
+	private void deliver (NavigableMap<Long, Transaction> found, String resume, TransactionListener listener)
+	{
+		if ( resume != null )
+		{
+			found = found.tailMap (ByteBuffer.wrap (ByteUtils.fromHex (resume)).getLong (), false);
+		}
+		ScanCheckpointListener checkpoints = listener instanceof ScanCheckpointListener ? (ScanCheckpointListener) listener : null;
+		int n = 0;
+		for ( Map.Entry<Long, Transaction> e : found.entrySet () )
+		{
+			listener.process (copyOf (e.getValue ()));
+			if ( checkpoints != null && (++n % checkpointInterval == 0 || e.getKey ().equals (found.lastKey ())) )
+			{
+				checkpoints.checkpoint (ByteUtils.toHex (ByteBuffer.allocate (8).putLong (e.getKey ()).array ()));
+			}
+		}
+	}
+
+	@Override
+	public void catchUp (String hash, TrunkListener listener) throws BCSAPIException
+	{
+		TrunkUpdateMessage tu = handler.catchUp (Collections.singletonList (hash));
+		if ( tu != null )
+		{
+			listener.trunkUpdate (copyOf (tu.getRemoved ()), copyOf (tu.getAdded ()));
+		}
+	}
+
+	private Transaction copyOf (Transaction t)
+	{
+		return copyObjects ? BCSAPIMessages.copyOf (t) : t;
+	}
+
+	private Block copyOf (Block b)
+	{
+		return copyObjects ? BCSAPIMessages.copyOf (b) : b;
+	}
+
+	private List<Block> copyOf (List<Block> blocks)
+	{
+		return copyObjects ? BCSAPIMessages.copyOf (blocks) : blocks;
+	}
+}
@@ -0,0 +1,641 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.DeflateCodec;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.SharedBodyMessage;
+import com.bitsofproof.supernode.common.TaskExecutors;
+import com.bitsofproof.supernode.common.ValidationException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * BCSAPI server answering {@link JMSServerConnector} from a {@link BCSAPIHandler}, by default a {@link LocalBlockStore}. Embedded in the
+ * process of its clients and connected through the {@link com.bitsofproof.supernode.common.InMemoryBusConnectionFactory} it allows testing
+ * clients end to end without a node.
+ */
+public class EmbeddedBCSAPIServer
+{
+	private static final Logger log = LoggerFactory.getLogger (EmbeddedBCSAPIServer.class);
+
+	private ConnectionFactory connectionFactory;
+	private BCSAPIHandler handler;
+	private boolean virtualThreads = false;
+	private long creditTimeout = 60 * 1000;
+
+	private Connection connection;
+	private Session session;
+	private Session producerSession;
+	private final List<MessageConsumer> consumers = new ArrayList<MessageConsumer> ();
+	private final Map<String, MessageProducer> topicProducers = new HashMap<String, MessageProducer> ();
+	private ExecutorService executor;
+	private final ConcurrentHashMap<String, Semaphore> credits = new ConcurrentHashMap<String, Semaphore> ();
+	private final DeflateCodec deflate = new DeflateCodec ();
+	private int compressionThreshold = 4096;
+	// reply destinations of clients that accept compressed replies, forgotten with their temporary queue
+	private final Map<Destination, Boolean> acceptsDeflate = Collections.synchronizedMap (new WeakHashMap<Destination, Boolean> ());
+
+	private final BCSAPIHandler.EventListener publisher = new BCSAPIHandler.EventListener ()
+	{
+		@Override
+		public void transaction (Transaction t)
+		{
+			publish ("transaction", t.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void trunkUpdate (TrunkUpdateMessage update)
+		{
+			publish ("trunk", update.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void alert (String alert, int severity)
+		{
+			BCSAPIMessage.Alert.Builder builder = BCSAPIMessage.Alert.newBuilder ();
+			builder.setBcsapiversion (1);
+			builder.setAlert (alert);
+			builder.setSeverity (severity);
+			publish ("alert", builder.build ().toByteArray ());
+		}
+	};
+
+	public void setConnectionFactory (ConnectionFactory connectionFactory)
+	{
+		this.connectionFactory = connectionFactory;
+	}
+
+	public void setHandler (BCSAPIHandler handler)
+	{
+		this.handler = handler;
+	}
+
+	public BCSAPIHandler getHandler ()
+	{
+		return handler;
+	}
+
+	/**
+	 * run scans and batch requests on virtual threads if the JVM supports them, set before init
+	 */
+	public void setVirtualThreads (boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * milliseconds a chunked scan waits for credit before it is abandoned
+	 */
+	public void setCreditTimeout (long creditTimeout)
+	{
+		this.creditTimeout = creditTimeout;
+	}
+
+	/**
+	 * replies smaller than this many bytes are not compressed, larger ones are for clients that accept it. Topic messages of this size or
+	 * larger are always compressed.
+	 */
+	public void setCompressionThreshold (int compressionThreshold)
+	{
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return number of chunked scans in progress
+	 */
+	public int getOpenScans ()
+	{
+		return credits.size ();
+	}
+
+	private interface RequestHandler
+	{
+		/**
+		 * @param body
+		 *            - request body or null if empty
+		 */
+		public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException,
+				ValidationException;
+	}
+
+	public void init ()
+	{
+		try
+		{
+			log.debug ("Initialize embedded BCSAPI server");
+			if ( handler == null )
+			{
+				handler = new LocalBlockStore ();
+			}
+			executor = TaskExecutors.newTaskExecutor ("BCSAPI server", virtualThreads);
+			connection = connectionFactory.createConnection ();
+			connection.start ();
+			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+			producerSession = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+
+			serve ("ping", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException
+				{
+					reply (replyTo, correlationID, body);
+				}
+			});
+			serve ("headerRequest", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					Block b = handler.getBlockHeader (hashes (body).get (0));
+					reply (replyTo, correlationID, b == null ? null : b.toProtobuf ().toByteArray ());
+				}
+			});
+			serve ("blockRequest", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					Block b = handler.getBlock (hashes (body).get (0));
+					reply (replyTo, correlationID, b == null ? null : b.toProtobuf ().toByteArray ());
+				}
+			});
+			serve ("transactionRequest", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					Transaction t = handler.getTransaction (hashes (body).get (0));
+					reply (replyTo, correlationID, t == null ? null : t.toProtobuf ().toByteArray ());
+				}
+			});
+			serve ("transactionsRequest", false, true, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					for ( String hash : hashes (body) )
+					{
+						Transaction t = handler.getTransaction (hash);
+						if ( t != null )
+						{
+							reply (replyTo, correlationID, t.toProtobuf ().toByteArray ());
+						}
+					}
+					reply (replyTo, correlationID, null);
+				}
+			});
+			serve ("headersRequest", false, true, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					for ( String hash : hashes (body) )
+					{
+						Block b = handler.getBlockHeader (hash);
+						if ( b != null )
+						{
+							reply (replyTo, correlationID, b.toProtobuf ().toByteArray ());
+						}
+					}
+					reply (replyTo, correlationID, null);
+				}
+			});
+			serve ("catchUpRequest", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					TrunkUpdateMessage tu = handler.catchUp (hashes (body));
+					reply (replyTo, correlationID, tu == null ? null : tu.toProtobuf ().toByteArray ());
+				}
+			});
+			serve ("matchRequest", false, true, matchHandler (false));
+			serve ("utxoMatchRequest", false, true, matchHandler (true));
+			serve ("accountRequest", false, true, accountHandler (false));
+			serve ("utxoAccountRequest", false, true, accountHandler (true));
+			serve ("scanCredit", false, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws InvalidProtocolBufferException
+				{
+					Semaphore granted = credits.get (correlationID);
+					if ( granted != null )
+					{
+						int credit = BCSAPIMessage.ScanCredit.parseFrom (body).getCredit ();
+						if ( credit == 0 )
+						{
+							// the client cancelled, wake the scan so that it sees it is no longer registered
+							credits.remove (correlationID, granted);
+							credit = 1;
+						}
+						granted.release (credit);
+					}
+				}
+			});
+			serve ("newTransaction", true, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
+					t.computeHash ();
+					try
+					{
+						addTransaction (t);
+						reply (replyTo, correlationID, null);
+					}
+					catch ( ValidationException e )
+					{
+						reject (replyTo, correlationID, e);
+					}
+				}
+			});
+			serve ("newBlock", true, false, new RequestHandler ()
+			{
+				@Override
+				public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+				{
+					Block b = Block.fromProtobuf (BCSAPIMessage.Block.parseFrom (body));
+					b.computeHash ();
+					try
+					{
+						addBlock (b);
+						reply (replyTo, correlationID, null);
+					}
+					catch ( ValidationException e )
+					{
+						reject (replyTo, correlationID, e);
+					}
+				}
+			});
+			handler.addEventListener (publisher);
+		}
+		catch ( JMSException e )
+		{
+			log.error ("Can not create JMS connection", e);
+		}
+	}
+
+	public void destroy ()
+	{
+		handler.removeEventListener (publisher);
+		try
+		{
+			for ( MessageConsumer consumer : consumers )
+			{
+				consumer.close ();
+			}
+			executor.shutdownNow ();
+			session.close ();
+			producerSession.close ();
+			connection.close ();
+		}
+		catch ( JMSException e )
+		{
+		}
+	}
+
+	/**
+	 * store an unconfirmed transaction and publish it to transaction listeners if new
+	 */
+	public void addTransaction (Transaction t) throws ValidationException
+	{
+		handler.sendTransaction (t);
+	}
+
+	/**
+	 * store a block and publish the change of the trunk if any
+	 */
+	public void addBlock (Block b) throws ValidationException
+	{
+		handler.sendBlock (b);
+	}
+
+	/**
+	 * @param severity
+	 *            - 0: info, 1: warning, 2: error
+	 */
+	public void sendAlert (String alert, int severity)
+	{
+		handler.sendAlert (alert, severity);
+	}
+
+	private RequestHandler matchHandler (final boolean utxo)
+	{
+		return new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException
+			{
+				BCSAPIMessage.ExactMatchRequest request = BCSAPIMessage.ExactMatchRequest.parseFrom (body);
+				List<byte[]> match = new ArrayList<byte[]> (request.getMatchCount ());
+				for ( ByteString d : request.getMatchList () )
+				{
+					match.add (d.toByteArray ());
+				}
+				NavigableMap<Long, Transaction> found = handler.scan (match, UpdateMode.values ()[request.getMode ()], request.getAfter (), utxo);
+				stream (found, request.getChunkSize (), request.getCredit (), request.hasResume () ? request.getResume ().toByteArray () : null,
+						replyTo, correlationID);
+			}
+		};
+	}
+
+	private RequestHandler accountHandler (final boolean utxo)
+	{
+		return new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, Destination replyTo, String correlationID) throws JMSException, InvalidProtocolBufferException,
+					ValidationException
+			{
+				BCSAPIMessage.AccountRequest request = BCSAPIMessage.AccountRequest.parseFrom (body);
+				ExtendedKey master = ExtendedKey.parse (request.getPublicKey ());
+				NavigableMap<Long, Transaction> found =
+						handler.scan (master, request.getFirstIndex (), request.getLookAhead (), request.getAfter (), utxo);
+				stream (found, request.getChunkSize (), request.getCredit (), request.hasResume () ? request.getResume ().toByteArray () : null,
+						replyTo, correlationID);
+			}
+		};
+	}
+
+	/**
+	 * Reply to a scan with a message for each transaction, or if chunkSize is positive, with chunks sending no more than credit granted. The
+	 * checkpoint of a chunk is the position of its last transaction.
+	 */
+	private void stream (NavigableMap<Long, Transaction> found, int chunkSize, int credit, byte[] resume, Destination replyTo, String correlationID)
+			throws JMSException
+	{
+		if ( resume != null && resume.length == 8 )
+		{
+			found = found.tailMap (ByteBuffer.wrap (resume).getLong (), false);
+		}
+		if ( chunkSize <= 0 )
+		{
+			for ( Transaction t : found.values () )
+			{
+				reply (replyTo, correlationID, t.toProtobuf ().toByteArray ());
+			}
+			reply (replyTo, correlationID, null);
+			return;
+		}
+		Semaphore granted = new Semaphore (credit);
+		credits.put (correlationID, granted);
+		try
+		{
+			Iterator<Map.Entry<Long, Transaction>> i = found.entrySet ().iterator ();
+			while ( i.hasNext () )
+			{
+				if ( !granted.tryAcquire (creditTimeout, TimeUnit.MILLISECONDS) )
+				{
+					log.debug ("Abandon scan " + correlationID + " without credit");
+					return;
+				}
+				if ( credits.get (correlationID) != granted )
+				{
+					log.debug ("Scan " + correlationID + " cancelled by the client");
+					return;
+				}
+				BCSAPIMessage.TransactionChunk.Builder builder = BCSAPIMessage.TransactionChunk.newBuilder ();
+				builder.setBcsapiversion (1);
+				long last = 0;
+				for ( int n = 0; n < chunkSize && i.hasNext (); ++n )
+				{
+					Map.Entry<Long, Transaction> e = i.next ();
+					builder.addTransactions (e.getValue ().toProtobuf ());
+					last = e.getKey ();
+				}
+				builder.setCheckpoint (ByteString.copyFrom (ByteBuffer.allocate (8).putLong (last).array ()));
+				reply (replyTo, correlationID, builder.build ().toByteArray ());
+			}
+			reply (replyTo, correlationID, null);
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread ().interrupt ();
+		}
+		finally
+		{
+			credits.remove (correlationID);
+		}
+	}
+
+	private static List<String> hashes (byte[] body) throws InvalidProtocolBufferException
+	{
+		BCSAPIMessage.Hash request = BCSAPIMessage.Hash.parseFrom (body);
+		List<String> hashes = new ArrayList<String> (request.getHashCount ());
+		for ( ByteString h : request.getHashList () )
+		{
+			hashes.add (new Hash (h.toByteArray ()).toString ());
+		}
+		return hashes;
+	}
+
+	// requests that may take long or block are served on the executor, others on the thread receiving them
+	private void serve (final String name, boolean topic, final boolean async, final RequestHandler handler) throws JMSException
+	{
+		MessageConsumer consumer = session.createConsumer (topic ? session.createTopic (name) : session.createQueue (name));
+		consumers.add (consumer);
+		consumer.setMessageListener (new MessageListener ()
+		{
+			@Override
+			public void onMessage (Message message)
+			{
+				try
+				{
+					final byte[] body = readBody (message);
+					final Destination replyTo = message.getJMSReplyTo ();
+					final String correlationID = message.getJMSCorrelationID ();
+					if ( replyTo != null && JMSServerConnector.DEFLATE.equals (message.getStringProperty (JMSServerConnector.ACCEPT_ENCODING)) )
+					{
+						acceptsDeflate.put (replyTo, Boolean.TRUE);
+					}
+					if ( async )
+					{
+						executor.execute (new Runnable ()
+						{
+							@Override
+							public void run ()
+							{
+								handle (name, handler, body, replyTo, correlationID);
+							}
+						});
+					}
+					else
+					{
+						handle (name, handler, body, replyTo, correlationID);
+					}
+				}
+				catch ( JMSException e )
+				{
+					log.error ("Can not read request on " + name, e);
+				}
+				catch ( DataFormatException e )
+				{
+					log.error ("Malformed request on " + name, e);
+				}
+			}
+		});
+	}
+
+	private static void handle (String name, RequestHandler handler, byte[] body, Destination replyTo, String correlationID)
+	{
+		try
+		{
+			handler.handle (body, replyTo, correlationID);
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			log.error ("Malformed request on " + name, e);
+		}
+		catch ( JMSException | ValidationException e )
+		{
+			log.error ("Can not serve request on " + name, e);
+		}
+	}
+
+	private byte[] readBody (Message message) throws JMSException, DataFormatException
+	{
+		BytesMessage m = (BytesMessage) message;
+		byte[] body;
+		if ( m instanceof SharedBodyMessage )
+		{
+			body = ((SharedBodyMessage) m).getSharedBody ();
+		}
+		else
+		{
+			if ( m.getBodyLength () == 0 )
+			{
+				return null;
+			}
+			body = new byte[(int) m.getBodyLength ()];
+			m.readBytes (body);
+		}
+		if ( body != null && JMSServerConnector.DEFLATE.equals (m.getStringProperty (JMSServerConnector.ENCODING)) )
+		{
+			return deflate.decompress (body);
+		}
+		return body;
+	}
+
+	private void reject (Destination replyTo, String correlationID, ValidationException e) throws JMSException
+	{
+		BCSAPIMessage.ExceptionMessage.Builder builder = BCSAPIMessage.ExceptionMessage.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.addMessage (e.getMessage ());
+		reply (replyTo, correlationID, builder.build ().toByteArray ());
+	}
+
+	/**
+	 * @param body
+	 *            - null for an empty message, that ends a stream of replies or tells success
+	 */
+	private void reply (Destination replyTo, String correlationID, byte[] body) throws JMSException
+	{
+		if ( replyTo == null )
+		{
+			return;
+		}
+		synchronized ( producerSession )
+		{
+			BytesMessage m = producerSession.createBytesMessage ();
+			if ( acceptsDeflate.containsKey (replyTo) )
+			{
+				// tells the client that it may compress its requests
+				m.setStringProperty (JMSServerConnector.ACCEPT_ENCODING, JMSServerConnector.DEFLATE);
+				if ( body != null && body.length >= compressionThreshold )
+				{
+					body = deflate.compress (body);
+					m.setStringProperty (JMSServerConnector.ENCODING, JMSServerConnector.DEFLATE);
+				}
+			}
+			if ( body != null )
+			{
+				m.writeBytes (body);
+			}
+			m.setJMSCorrelationID (correlationID);
+			MessageProducer producer = producerSession.createProducer (replyTo);
+			try
+			{
+				producer.send (m);
+			}
+			finally
+			{
+				producer.close ();
+			}
+		}
+	}
+
+	private void publish (String topic, byte[] body)
+	{
+		synchronized ( producerSession )
+		{
+			try
+			{
+				MessageProducer producer = topicProducers.get (topic);
+				if ( producer == null )
+				{
+					producer = producerSession.createProducer (producerSession.createTopic (topic));
+					topicProducers.put (topic, producer);
+				}
+				BytesMessage m = producerSession.createBytesMessage ();
+				// subscribers are not known, every client decompresses topic messages
+				if ( body.length >= compressionThreshold )
+				{
+					body = deflate.compress (body);
+					m.setStringProperty (JMSServerConnector.ENCODING, JMSServerConnector.DEFLATE);
+				}
+				m.writeBytes (body);
+				producer.send (m);
+			}
+			catch ( JMSException e )
+			{
+				log.error ("Can not publish on " + topic, e);
+			}
+		}
+	}
+}
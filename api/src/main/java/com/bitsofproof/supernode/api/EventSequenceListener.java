@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+/**
+ * Implemented by a trunk or transaction listener that wants to replay events missed while it was down, from the event log of the connector.
+ */
+public interface EventSequenceListener
+{
+	/**
+	 * called once the message was processed by the listener
+	 * 
+	 * @param sequence
+	 *            - sequence number of the message in the event log, pass to replay to continue after it
+	 */
+	public void processed (long sequence);
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Selector loop of non-blocking socket connections exchanging {@link BCSAPIMessage.Frame}, each preceded by its length. Frames received
+ * are passed to the handler on the thread of the loop, so the handler must not block. Frames are sent from any thread, they are queued and
+ * written as the socket accepts them.
+ */
+class FrameSelector implements Runnable
+{
+	private static final Logger log = LoggerFactory.getLogger (FrameSelector.class);
+
+	private static final int MAX_FRAME = 64 * 1024 * 1024;
+	private static final int READ_BUFFER = 64 * 1024;
+
+	interface FrameHandler
+	{
+		public void accepted (Connection connection);
+
+		public void frame (Connection connection, BCSAPIMessage.Frame frame);
+
+		public void closed (Connection connection);
+	}
+
+	private final Selector selector;
+	private final FrameHandler handler;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable> ();
+	private volatile boolean running = true;
+
+	public FrameSelector (String name, FrameHandler handler) throws IOException
+	{
+		this.handler = handler;
+		selector = Selector.open ();
+		thread = new Thread (this, name);
+		thread.setDaemon (true);
+	}
+
+	public void start ()
+	{
+		thread.start ();
+	}
+
+	public void close ()
+	{
+		running = false;
+		selector.wakeup ();
+	}
+
+	// selection keys are changed on the thread of the loop only
+	private void execute (Runnable task)
+	{
+		tasks.add (task);
+		selector.wakeup ();
+	}
+
+	public void listen (final ServerSocketChannel server) throws IOException
+	{
+		server.configureBlocking (false);
+		execute (new Runnable ()
+		{
+			@Override
+			public void run ()
+			{
+				try
+				{
+					server.register (selector, SelectionKey.OP_ACCEPT);
+				}
+				catch ( IOException e )
+				{
+					log.error ("Can not accept connections", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param channel
+	 *            - a connected channel
+	 */
+	public Connection register (SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking (false);
+		channel.socket ().setTcpNoDelay (true);
+		final Connection connection = new Connection (channel);
+		execute (new Runnable ()
+		{
+			@Override
+			public void run ()
+			{
+				connection.register ();
+			}
+		});
+		return connection;
+	}
+
+	@Override
+	public void run ()
+	{
+		try
+		{
+			while ( running )
+			{
+				selector.select ();
+				Runnable task;
+				while ( (task = tasks.poll ()) != null )
+				{
+					task.run ();
+				}
+				Iterator<SelectionKey> i = selector.selectedKeys ().iterator ();
+				while ( i.hasNext () )
+				{
+					SelectionKey key = i.next ();
+					i.remove ();
+					if ( key.attachment () == null )
+					{
+						accept ((ServerSocketChannel) key.channel ());
+						continue;
+					}
+					Connection connection = (Connection) key.attachment ();
+					try
+					{
+						if ( key.isReadable () )
+						{
+							connection.read ();
+						}
+						if ( key.isValid () && key.isWritable () )
+						{
+							connection.write ();
+						}
+					}
+					catch ( IOException | CancelledKeyException e )
+					{
+						log.trace ("Connection closed", e);
+						connection.close ();
+					}
+				}
+			}
+		}
+		catch ( IOException | ClosedSelectorException e )
+		{
+			log.error ("Selector failed", e);
+		}
+		finally
+		{
+			for ( SelectionKey key : selector.keys () )
+			{
+				if ( key.attachment () != null )
+				{
+					((Connection) key.attachment ()).close ();
+				}
+				else
+				{
+					try
+					{
+						key.channel ().close ();
+					}
+					catch ( IOException e )
+					{
+					}
+				}
+			}
+			try
+			{
+				selector.close ();
+			}
+			catch ( IOException e )
+			{
+			}
+		}
+	}
+
+	private void accept (ServerSocketChannel server)
+	{
+		try
+		{
+			SocketChannel channel = server.accept ();
+			if ( channel != null )
+			{
+				channel.configureBlocking (false);
+				channel.socket ().setTcpNoDelay (true);
+				Connection connection = new Connection (channel);
+				connection.register ();
+				handler.accepted (connection);
+			}
+		}
+		catch ( IOException e )
+		{
+			log.error ("Can not accept connection", e);
+		}
+	}
+
+	class Connection
+	{
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer input = ByteBuffer.allocate (READ_BUFFER);
+		private final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer> ();
+		private final AtomicBoolean writeRequested = new AtomicBoolean (false);
+		private final AtomicLong pending = new AtomicLong (0);
+		private final AtomicBoolean closed = new AtomicBoolean (false);
+		// frames are not read from the socket nor passed to the handler while false
+		private volatile boolean reading = true;
+
+		private Connection (SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		private void register ()
+		{
+			if ( closed.get () )
+			{
+				return;
+			}
+			try
+			{
+				key = channel.register (selector, interest (false), this);
+				if ( !output.isEmpty () )
+				{
+					key.interestOps (interest (true));
+				}
+			}
+			catch ( IOException e )
+			{
+				log.error ("Can not register connection", e);
+				close ();
+			}
+		}
+
+		/**
+		 * queue a frame to be sent
+		 */
+		public void send (BCSAPIMessage.Frame frame) throws IOException
+		{
+			if ( closed.get () )
+			{
+				throw new IOException ("Connection closed");
+			}
+			int length = frame.getSerializedSize ();
+			ByteBuffer buffer = ByteBuffer.allocate (length + 4);
+			buffer.putInt (length);
+			frame.writeTo (CodedOutputStream.newInstance (buffer.array (), 4, length));
+			buffer.position (0);
+			pending.addAndGet (buffer.remaining ());
+			output.add (buffer);
+			// one request to the loop until it finds the queue empty again
+			if ( writeRequested.compareAndSet (false, true) )
+			{
+				execute (new Runnable ()
+				{
+					@Override
+					public void run ()
+					{
+						if ( key != null && key.isValid () )
+						{
+							key.interestOps (interest (true));
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * @return bytes queued but not yet written to the socket
+		 */
+		public long getPendingBytes ()
+		{
+			return pending.get ();
+		}
+
+		/**
+		 * wait until no more than limit bytes are queued
+		 *
+		 * @return false if the connection closed meanwhile
+		 */
+		public synchronized boolean awaitPending (long limit) throws InterruptedException
+		{
+			while ( pending.get () > limit && !closed.get () )
+			{
+				wait (1000);
+			}
+			return !closed.get ();
+		}
+
+		public boolean isClosed ()
+		{
+			return closed.get ();
+		}
+
+		private int interest (boolean write)
+		{
+			return (reading ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0);
+		}
+
+		/**
+		 * stop reading frames, the socket fills and the peer waits. To be called by the handler only, no frame is passed to it after this
+		 * until reading resumes.
+		 */
+		public void suspendReading ()
+		{
+			reading = false;
+			if ( key != null && key.isValid () )
+			{
+				key.interestOps (interest (writeRequested.get ()));
+			}
+		}
+
+		/**
+		 * resume reading frames, those already received are passed to the handler first. This takes effect on the thread of the loop, after
+		 * a suspension by frames handled before.
+		 */
+		public void resumeReading ()
+		{
+			execute (new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					if ( reading || closed.get () )
+					{
+						return;
+					}
+					reading = true;
+					try
+					{
+						deliver ();
+						if ( key != null && key.isValid () )
+						{
+							key.interestOps (interest (writeRequested.get ()));
+						}
+					}
+					catch ( IOException | CancelledKeyException e )
+					{
+						log.trace ("Connection closed", e);
+						close ();
+					}
+				}
+			});
+		}
+
+		public boolean isReadingSuspended ()
+		{
+			return !reading;
+		}
+
+		private void read () throws IOException
+		{
+			if ( channel.read (input) < 0 )
+			{
+				throw new EOFException ();
+			}
+			deliver ();
+		}
+
+		// pass complete frames of the input buffer to the handler while reading
+		private void deliver () throws IOException
+		{
+			input.flip ();
+			while ( reading && input.remaining () >= 4 )
+			{
+				int length = input.getInt (input.position ());
+				if ( length < 0 || length > MAX_FRAME )
+				{
+					throw new IOException ("Invalid frame length " + length);
+				}
+				if ( input.remaining () < length + 4 )
+				{
+					if ( length + 4 > input.capacity () )
+					{
+						ByteBuffer larger = ByteBuffer.allocate (length + 4);
+						larger.put (input);
+						input = larger;
+						return;
+					}
+					break;
+				}
+				BCSAPIMessage.Frame frame = BCSAPIMessage.Frame.newBuilder ().mergeFrom (input.array (), input.position () + 4, length).build ();
+				input.position (input.position () + length + 4);
+				handler.frame (this, frame);
+			}
+			input.compact ();
+			if ( input.capacity () > READ_BUFFER && input.position () < READ_BUFFER )
+			{
+				// shrink after a large frame
+				input.flip ();
+				input = ByteBuffer.allocate (READ_BUFFER).put (input);
+			}
+		}
+
+		private void write () throws IOException
+		{
+			ByteBuffer buffer;
+			while ( (buffer = output.peek ()) != null )
+			{
+				pending.addAndGet (-channel.write (buffer));
+				if ( buffer.hasRemaining () )
+				{
+					break;
+				}
+				output.poll ();
+			}
+			if ( buffer == null )
+			{
+				writeRequested.set (false);
+				key.interestOps (interest (false));
+				// a frame queued before the flag was reset did not ask the loop
+				if ( !output.isEmpty () && writeRequested.compareAndSet (false, true) )
+				{
+					key.interestOps (interest (true));
+				}
+			}
+			synchronized ( this )
+			{
+				notifyAll ();
+			}
+		}
+
+		public void close ()
+		{
+			if ( closed.compareAndSet (false, true) )
+			{
+				if ( key != null )
+				{
+					key.cancel ();
+				}
+				try
+				{
+					channel.close ();
+				}
+				catch ( IOException e )
+				{
+				}
+				synchronized ( this )
+				{
+					notifyAll ();
+				}
+				handler.closed (this);
+			}
+		}
+	}
+}
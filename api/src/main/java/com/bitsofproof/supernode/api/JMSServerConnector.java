@@ -15,18 +15,43 @@
  */
 package com.bitsofproof.supernode.api;
 
+import static com.bitsofproof.supernode.api.BCSAPIMessages.GENESIS;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.copyOf;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeBlock;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeChunk;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeTransaction;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeTrunkUpdate;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.hashRequest;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.toMatch;
+
+import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
-import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
@@ -34,564 +59,1790 @@ import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TemporaryQueue;
+import javax.jms.Topic;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bitsofproof.supernode.api.BCSAPIMessages.Chunk;
 import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.common.DeflateCodec;
 import com.bitsofproof.supernode.common.ExtendedKey;
-import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.ListenerRegistry;
+import com.bitsofproof.supernode.common.SharedBodyMessage;
+import com.bitsofproof.supernode.common.TaskExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
-public class JMSServerConnector implements BCSAPI
+public class JMSServerConnector implements BCSAPI, AsyncBCSAPI
 {
 	private static final Logger log = LoggerFactory.getLogger (JMSServerConnector.class);
 
-	private ConnectionFactory connectionFactory;
-	private Connection connection;
+	private List<ConnectionFactory> connectionFactories = Collections.emptyList ();
+	private int factoryIndex = 0;
+	private volatile Connection connection;
+	private volatile boolean connected = false;
+	private volatile boolean destroyed = false;
+	private final AtomicBoolean reconnecting = new AtomicBoolean (false);
+	private ScheduledExecutorService reconnector;
+	private long reconnectDelay = 100;
+	private long maxReconnectDelay = 30 * 1000;
+
+	/**
+	 * milliseconds to wait before the first attempt to reconnect after the connection failed, doubled after each failed attempt
+	 */
+	public void setReconnectDelay (long reconnectDelay)
+	{
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	/**
+	 * longest wait in milliseconds between attempts to reconnect
+	 */
+	public void setMaxReconnectDelay (long maxReconnectDelay)
+	{
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
 
-	private Boolean production = null;
+	private volatile Boolean production = null;
 
 	private final Map<String, MessageDispatcher> messageDispatcher = new HashMap<String, MessageDispatcher> ();
 
-	private long timeout = 10 * 60 * 1000; // 2 min
+	private long defaultTimeout = 10 * 60 * 1000; // 10 min
+	private final Map<String, Long> timeouts = new ConcurrentHashMap<String, Long> ();
 
+	/**
+	 * default timeout of requests in milliseconds. For scans and batch requests this is the longest wait for the next reply.
+	 */
 	public void setTimeout (long timeout)
 	{
-		this.timeout = timeout;
+		this.defaultTimeout = timeout;
 	}
 
-	private interface ByteArrayMessageListener
+	/**
+	 * timeout of requests to a destination e.g. blockRequest, overrides the default
+	 */
+	public void setTimeout (String destination, long timeout)
 	{
-		public void onMessage (byte[] array);
+		timeouts.put (destination, timeout);
 	}
 
-	private class MessageDispatcher
+	private long getTimeout (String destination)
 	{
-		private final Map<Object, ByteArrayMessageListener> wrapperMap = new HashMap<Object, ByteArrayMessageListener> ();
+		Long timeout = timeouts.get (destination);
+		return timeout != null ? timeout : defaultTimeout;
+	}
 
-		private final MessageConsumer consumer;
+	private int maxInFlight = 1000;
 
-		public MessageDispatcher (MessageConsumer consumer)
-		{
-			this.consumer = consumer;
-			try
-			{
-				consumer.setMessageListener (new MessageListener ()
-				{
-					@Override
-					public void onMessage (Message message)
-					{
-						List<ByteArrayMessageListener> listenerList = new ArrayList<ByteArrayMessageListener> ();
-						synchronized ( wrapperMap )
-						{
-							listenerList.addAll (wrapperMap.values ());
-						}
-						BytesMessage m = (BytesMessage) message;
-						byte[] body;
-						try
-						{
-							if ( m.getBodyLength () > 0 )
-							{
-								body = new byte[(int) m.getBodyLength ()];
-								m.readBytes (body);
-								for ( ByteArrayMessageListener listener : listenerList )
-								{
-									listener.onMessage (body);
-								}
-							}
-							else
-							{
-								for ( ByteArrayMessageListener listener : listenerList )
-								{
-									listener.onMessage (null);
-								}
-							}
-						}
-						catch ( JMSException e )
-						{
-							log.error ("JMS Error ", e);
-						}
-					}
-				});
-			}
-			catch ( JMSException e )
-			{
-				log.error ("Can not attache message listener ", e);
-			}
-		}
+	/**
+	 * maximum number of requests sent but not yet answered, further requests wait in the order submitted. Scans are not counted.
+	 */
+	public void setMaxInFlight (int maxInFlight)
+	{
+		this.maxInFlight = maxInFlight;
+	}
 
-		public void addListener (Object inner, ByteArrayMessageListener listener)
-		{
-			synchronized ( wrapperMap )
-			{
-				wrapperMap.put (inner, listener);
-			}
-		}
+	private final AtomicInteger inFlight = new AtomicInteger (0);
+	private final ConcurrentLinkedQueue<PipelinedRequest<?>> waitingRequests = new ConcurrentLinkedQueue<PipelinedRequest<?>> ();
+	// sent but not yet answered, sent again after reconnecting
+	private final Map<String, PipelinedRequest<?>> sentRequests = new ConcurrentHashMap<String, PipelinedRequest<?>> ();
+	private ScheduledExecutorService timer;
 
-		public void removeListener (Object inner)
+	private int sessionPoolSize = 16;
+
+	/**
+	 * maximum number of idle sessions kept for requests
+	 */
+	public void setSessionPoolSize (int sessionPoolSize)
+	{
+		this.sessionPoolSize = sessionPoolSize;
+	}
+
+	private final ConcurrentLinkedQueue<PooledSession> sessionPool = new ConcurrentLinkedQueue<PooledSession> ();
+	private final AtomicInteger pooledSessions = new AtomicInteger (0);
+
+	// a session is used by one thread at a time, it keeps its producers for reuse
+	private class PooledSession
+	{
+		private final Connection owner;
+		private final Session session;
+		private final Map<String, MessageProducer> producers = new HashMap<String, MessageProducer> ();
+
+		public PooledSession () throws JMSException
 		{
-			synchronized ( wrapperMap )
-			{
-				wrapperMap.remove (inner);
-			}
+			owner = connection;
+			session = owner.createSession (false, Session.AUTO_ACKNOWLEDGE);
 		}
 
-		public boolean isListened ()
+		public MessageProducer getProducer (String name, boolean topic) throws JMSException
 		{
-			synchronized ( wrapperMap )
+			String key = (topic ? "topic:" : "queue:") + name;
+			MessageProducer producer = producers.get (key);
+			if ( producer == null )
 			{
-				return !wrapperMap.isEmpty ();
+				producer = session.createProducer (topic ? session.createTopic (name) : session.createQueue (name));
+				producers.put (key, producer);
 			}
+			return producer;
 		}
 
-		public MessageConsumer getConsumer ()
+		public Session getSession ()
 		{
-			return consumer;
+			return session;
 		}
-	}
-
-	public void setConnectionFactory (ConnectionFactory connectionFactory)
-	{
-		this.connectionFactory = connectionFactory;
-	}
 
-	private void addTopicListener (String topic, Object inner, ByteArrayMessageListener listener) throws JMSException
-	{
-		synchronized ( messageDispatcher )
+		public void close ()
 		{
-			MessageDispatcher dispatcher = messageDispatcher.get (topic);
-			if ( dispatcher == null )
+			try
+			{
+				session.close ();
+			}
+			catch ( JMSException e )
 			{
-				Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-				Destination destination = session.createTopic (topic);
-				MessageConsumer consumer = session.createConsumer (destination);
-				messageDispatcher.put (topic, dispatcher = new MessageDispatcher (consumer));
 			}
-			dispatcher.addListener (inner, listener);
 		}
 	}
 
-	private void removeTopicListener (String topic, Object inner)
+	private PooledSession borrowSession () throws JMSException
 	{
-		synchronized ( messageDispatcher )
+		PooledSession session;
+		while ( (session = sessionPool.poll ()) != null )
 		{
-			MessageDispatcher dispatcher = messageDispatcher.get (topic);
-			if ( dispatcher != null )
+			pooledSessions.decrementAndGet ();
+			if ( session.owner == connection )
 			{
-				dispatcher.removeListener (inner);
-				if ( !dispatcher.isListened () )
-				{
-					messageDispatcher.remove (topic);
-					try
-					{
-						dispatcher.getConsumer ().close ();
-					}
-					catch ( JMSException e )
-					{
-					}
-				}
+				return session;
 			}
+			// returned after reconnecting
+			session.close ();
 		}
+		return new PooledSession ();
 	}
 
-	public void init ()
+	private void returnSession (PooledSession session)
 	{
-		try
+		if ( pooledSessions.incrementAndGet () <= sessionPoolSize )
 		{
-			log.debug ("Initialize BCSAPI Bus adaptor");
-			connection = connectionFactory.createConnection ();
-			connection.start ();
+			sessionPool.offer (session);
 		}
-		catch ( Exception e )
+		else
 		{
-			log.error ("Can not create JMS connection", e);
+			pooledSessions.decrementAndGet ();
+			session.close ();
 		}
 	}
 
-	public void destroy ()
+	private interface ReplyHandler
 	{
-		try
-		{
-			connection.close ();
-		}
-		catch ( JMSException e )
-		{
-		}
+		/**
+		 * @param body
+		 *            - reply body or null if empty
+		 * @return true if no further reply is expected
+		 */
+		public boolean onReply (byte[] body);
 	}
 
-	@Override
-	public long ping (long nonce) throws BCSAPIException
+	private interface ReplyDecoder<T>
 	{
-		Session session = null;
-		try
-		{
-			log.trace ("ping " + nonce);
+		/**
+		 * @param body
+		 *            - reply body or null if empty
+		 */
+		public T decode (byte[] body) throws InvalidProtocolBufferException, BCSAPIException;
+	}
 
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			BytesMessage m = session.createBytesMessage ();
-			BCSAPIMessage.Ping.Builder builder = BCSAPIMessage.Ping.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.setNonce (nonce);
-			m.writeBytes (builder.build ().toByteArray ());
-			MessageProducer pingProducer = session.createProducer (session.createQueue ("ping"));
-			byte[] response = synchronousRequest (session, pingProducer, m);
-			if ( response != null )
-			{
-				BCSAPIMessage.Ping echo = BCSAPIMessage.Ping.parseFrom (response);
-				if ( echo.getNonce () != nonce )
-				{
-					throw new BCSAPIException ("Incorrect echo nonce from ping");
-				}
-				return echo.getNonce ();
-			}
-		}
-		catch ( JMSException e )
-		{
-			throw new BCSAPIException (e);
-		}
-		catch ( InvalidProtocolBufferException e )
+	private static class FutureReply<T> extends BCSAPIFuture<T> implements ReplyHandler
+	{
+		private final ReplyDecoder<T> decoder;
+
+		public FutureReply (ReplyDecoder<T> decoder)
 		{
-			throw new BCSAPIException (e);
+			this.decoder = decoder;
 		}
-		finally
+
+		@Override
+		public boolean onReply (byte[] body)
 		{
 			try
 			{
-				session.close ();
+				complete (decoder.decode (body));
 			}
-			catch ( JMSException e )
+			catch ( InvalidProtocolBufferException e )
+			{
+				fail (new BCSAPIException ("Invalid response", e));
+			}
+			catch ( BCSAPIException e )
 			{
+				fail (e);
 			}
+			return true;
 		}
-		return 0;
 	}
 
-	@Override
-	public void addAlertListener (final AlertListener alertListener) throws BCSAPIException
+	private static final ReplyDecoder<byte[]> rawReply = new ReplyDecoder<byte[]> ()
 	{
-		try
-		{
-			addTopicListener ("alert", alertListener, new ByteArrayMessageListener ()
-			{
-				@Override
-				public void onMessage (byte[] body)
-				{
-					BCSAPIMessage.Alert alert;
-					try
-					{
-						alert = BCSAPIMessage.Alert.parseFrom (body);
-						alertListener.alert (alert.getAlert (), alert.getSeverity ());
-					}
-					catch ( InvalidProtocolBufferException e )
-					{
-						log.error ("Message format error", e);
-					}
-				}
-			});
-		}
-		catch ( JMSException e )
+		@Override
+		public byte[] decode (byte[] body)
 		{
-			throw new BCSAPIException (e);
+			return body;
 		}
-	}
+	};
 
-	@Override
-	public void removeAlertListener (AlertListener listener)
+	private static class StreamingReply implements ReplyHandler
 	{
-		removeTopicListener ("alert", listener);
-	}
+		private static final byte[] END = new byte[0];
+		private static final byte[] FAILED = new byte[0];
+		private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]> ();
+		private volatile BCSAPIException error;
 
-	@Override
-	public boolean isProduction () throws BCSAPIException
-	{
-		if ( production != null )
+		@Override
+		public boolean onReply (byte[] body)
 		{
-			return production;
+			queue.offer (body != null ? body : END);
+			return body == null;
 		}
-		return production = getBlockHeader ("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f") != null;
-	}
 
-	@Override
-	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
-	{
-		List<byte[]> al = new ArrayList<> (addresses.size ());
-		for ( Address a : addresses )
+		public void fail (BCSAPIException e)
 		{
-			al.add (a.toByteArray ());
+			error = e;
+			queue.offer (FAILED);
 		}
-		scanTransactions (al, mode, after, listener);
-	}
 
-	@Override
-	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
-	{
-		List<byte[]> al = new ArrayList<> (addresses.size ());
-		for ( Address a : addresses )
+		/**
+		 * @return next reply or null if there are no more
+		 * @throws BCSAPIException
+		 *             if no reply arrived in time
+		 */
+		public byte[] take (long timeout) throws InterruptedException, BCSAPIException
 		{
-			al.add (a.toByteArray ());
+			byte[] body = queue.poll (timeout, TimeUnit.MILLISECONDS);
+			if ( body == null )
+			{
+				throw new BCSAPIException ("timeout");
+			}
+			if ( body == FAILED )
+			{
+				throw error;
+			}
+			return body != END ? body : null;
 		}
-		scanUTXO (al, mode, after, listener);
 	}
 
-	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	// a message with this property set to deflate is compressed
+	static final String ENCODING = "bcsapiEncoding";
+	// a message with this property set to deflate tells that its sender accepts compressed messages
+	static final String ACCEPT_ENCODING = "bcsapiAcceptEncoding";
+	static final String DEFLATE = "deflate";
+
+	private final DeflateCodec deflate = new DeflateCodec ();
+	private boolean compression = true;
+	private int compressionThreshold = 4096;
+	private volatile boolean serverAcceptsDeflate = false;
+
+	/**
+	 * Offer the server to reply with compressed messages, and compress large requests once the server tells it accepts them. Compressed
+	 * messages are decompressed regardless of this setting.
+	 */
+	public void setCompression (boolean compression)
 	{
-		scanRequest (match, mode, after, listener, "utxoMatchRequest");
+		this.compression = compression;
 	}
 
-	@Override
-	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	/**
+	 * requests smaller than this many bytes are not compressed
+	 */
+	public void setCompressionThreshold (int compressionThreshold)
 	{
-		scanRequest (master, firstIndex, lookAhead, after, listener, "utxoAccountRequest");
+		this.compressionThreshold = compressionThreshold;
 	}
 
-	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, final TransactionListener listener) throws BCSAPIException
+	// replies of all requests arrive on a single queue, they are routed to the request by correlation ID
+	private Session replySession;
+	private MessageConsumer replyConsumer;
+	private volatile TemporaryQueue replyQueue;
+	private final Map<String, ReplyHandler> pendingReplies = new ConcurrentHashMap<String, ReplyHandler> ();
+	private final String correlationPrefix = Long.toHexString (new SecureRandom ().nextLong ()) + "-";
+	private final AtomicLong correlationSequence = new AtomicLong (0);
+
+	private int scanChunkSize = 0;
+	private int scanCredit = 4;
+
+	/**
+	 * Ask the server to send scan results in chunks of this many transactions, with flow control. 0, the default, asks for one message
+	 * per transaction and no flow control, as servers not supporting chunks reply that way.
+	 */
+	public void setScanChunkSize (int scanChunkSize)
 	{
-		scanRequest (match, mode, after, listener, "matchRequest");
+		this.scanChunkSize = scanChunkSize;
 	}
 
-	@Override
-	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, final TransactionListener listener) throws BCSAPIException
+	/**
+	 * Number of chunks the server may send ahead of the client processing them.
+	 */
+	public void setScanCredit (int scanCredit)
 	{
-		scanRequest (master, firstIndex, lookAhead, after, listener, "accountRequest");
+		this.scanCredit = scanCredit;
 	}
 
-	private void scanRequest (Collection<byte[]> match, UpdateMode mode, long after, final TransactionListener listener, String requestQueue)
-			throws BCSAPIException
+	// returns credit to the server for chunks processed, half the window at a time
+	private class CreditGrant
 	{
-		Session session = null;
-		try
+		private final String correlationID;
+		private final int batch = Math.max (1, scanCredit / 2);
+		private int consumed = 0;
+
+		public CreditGrant (String correlationID)
 		{
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			BytesMessage m = session.createBytesMessage ();
+			this.correlationID = correlationID;
+		}
+
+		public void consumed () throws BCSAPIException
+		{
+			if ( ++consumed >= batch )
+			{
+				BCSAPIMessage.ScanCredit.Builder builder = BCSAPIMessage.ScanCredit.newBuilder ();
+				builder.setBcsapiversion (1);
+				builder.setCredit (consumed);
+				send ("scanCredit", false, builder.build ().toByteArray (), correlationID);
+				consumed = 0;
+			}
+		}
 
-			MessageProducer exactMatchProducer = session.createProducer (session.createQueue (requestQueue));
-			BCSAPIMessage.ExactMatchRequest.Builder builder = BCSAPIMessage.ExactMatchRequest.newBuilder ();
+		// zero credit tells the server to abandon the scan instead of waiting for credit
+		public void cancel ()
+		{
+			BCSAPIMessage.ScanCredit.Builder builder = BCSAPIMessage.ScanCredit.newBuilder ();
 			builder.setBcsapiversion (1);
-			builder.setMode (mode.ordinal ());
-			for ( byte[] d : match )
+			builder.setCredit (0);
+			try
 			{
-				builder.addMatch (ByteString.copyFrom (d));
+				send ("scanCredit", false, builder.build ().toByteArray (), correlationID);
 			}
-			if ( after != 0 )
+			catch ( BCSAPIException e )
 			{
-				builder.setAfter (after);
+				log.debug ("Can not cancel scan " + correlationID + " on the server", e);
 			}
-			m.writeBytes (builder.build ().toByteArray ());
-			final TemporaryQueue answerQueue = session.createTemporaryQueue ();
-			final MessageConsumer consumer = session.createConsumer (answerQueue);
-			m.setJMSReplyTo (answerQueue);
-			final Semaphore ready = new Semaphore (0);
-			consumer.setMessageListener (new MessageListener ()
+		}
+	}
+
+	// delivers scan results as requested by the subscriber, on the thread that receives them or the one that requests them
+	private class ScanReply implements ReplyHandler, ScanSubscription
+	{
+		private final String correlationID;
+		private final TransactionSubscriber subscriber;
+		// transactions and the chunks they arrived in, each chunk follows its transactions
+		private final ConcurrentLinkedQueue<Object> buffer = new ConcurrentLinkedQueue<Object> ();
+		private final AtomicLong demand = new AtomicLong (0);
+		private final AtomicInteger wip = new AtomicInteger (0);
+		private volatile boolean finished = false;
+		private volatile boolean cancelled = false;
+		private volatile BCSAPIException error;
+		private boolean terminated = false;
+		private final int chunkSize;
+		private final CreditGrant credit;
+		private final long timeout;
+		private volatile long lastActivity = System.currentTimeMillis ();
+
+		/**
+		 * @param chunkSize
+		 *            - transactions per reply message, 0 for one reply per transaction without flow control
+		 * @param timeout
+		 *            - longest wait for the next reply, or for the subscriber to request more
+		 */
+		public ScanReply (String correlationID, TransactionSubscriber subscriber, int chunkSize, long timeout)
+		{
+			this.correlationID = correlationID;
+			this.subscriber = subscriber;
+			this.chunkSize = chunkSize;
+			this.timeout = timeout;
+			credit = chunkSize > 0 ? new CreditGrant (correlationID) : null;
+		}
+
+		// a single timer per scan, it is moved ahead by activity instead of being rescheduled on every reply
+		public void expireAfter (long delay)
+		{
+			timer.schedule (new Runnable ()
 			{
 				@Override
-				public void onMessage (Message message)
+				public void run ()
 				{
-					BytesMessage m = (BytesMessage) message;
-					byte[] body;
-					try
+					if ( finished || cancelled || error != null )
 					{
-						if ( m.getBodyLength () > 0 )
-						{
-							body = new byte[(int) m.getBodyLength ()];
-							m.readBytes (body);
-							Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
-							t.computeHash ();
-							listener.process (t);
-						}
-						else
+						return;
+					}
+					long idle = System.currentTimeMillis () - lastActivity;
+					if ( idle < timeout )
+					{
+						expireAfter (timeout - idle);
+					}
+					else
+					{
+						log.debug ("Scan " + correlationID + " timed out");
+						if ( credit != null )
 						{
-							consumer.close ();
-							answerQueue.delete ();
-							ready.release ();
+							credit.cancel ();
 						}
+						fail (new BCSAPIException ("timeout"));
 					}
-					catch ( JMSException e )
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public boolean onReply (byte[] body)
+		{
+			lastActivity = System.currentTimeMillis ();
+			if ( body != null )
+			{
+				try
+				{
+					if ( chunkSize > 0 )
 					{
-						log.error ("Malformed message received for scan matching transactions", e);
+						Chunk chunk = chunkReply.decode (body);
+						buffer.addAll (chunk.transactions);
+						buffer.offer (chunk);
 					}
-					catch ( InvalidProtocolBufferException e )
+					else
 					{
-						log.error ("Malformed message received for scan matching transactions", e);
+						buffer.offer (transactionReply.decode (body));
 					}
 				}
-			});
-
-			exactMatchProducer.send (m);
-			ready.acquireUninterruptibly ();
+				catch ( InvalidProtocolBufferException | BCSAPIException e )
+				{
+					log.error ("Malformed message received for scan " + correlationID, e);
+				}
+			}
+			else
+			{
+				finished = true;
+			}
+			drain ();
+			return body == null;
 		}
-		catch ( JMSException e )
+
+		public void fail (BCSAPIException e)
 		{
-			throw new BCSAPIException (e);
+			error = e;
+			pendingReplies.remove (correlationID);
+			drain ();
 		}
-		finally
+
+		@Override
+		public void request (long n)
 		{
-			try
+			if ( n <= 0 )
 			{
-				session.close ();
+				fail (new BCSAPIException ("non-positive request " + n));
+				return;
 			}
-			catch ( JMSException e )
+			long current, next;
+			do
 			{
-			}
+				current = demand.get ();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while ( !demand.compareAndSet (current, next) );
+			lastActivity = System.currentTimeMillis ();
+			drain ();
 		}
-	}
 
-	private void scanRequest (ExtendedKey master, int firstIndex, int lookAhead, long after, final TransactionListener listener, String request)
-			throws BCSAPIException
-	{
-		if ( !master.isReadOnly () )
+		@Override
+		public void cancel ()
 		{
-			master = master.getReadOnly ();
+			cancelled = true;
+			if ( pendingReplies.remove (correlationID) != null && credit != null && !finished )
+			{
+				// the server would otherwise hold the scan until its credit timeout
+				credit.cancel ();
+			}
+			buffer.clear ();
 		}
-		Session session = null;
-		try
-		{
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			BytesMessage m = session.createBytesMessage ();
-
-			MessageProducer scanAccountProducer = session.createProducer (session.createQueue (request));
-			BCSAPIMessage.AccountRequest.Builder builder = BCSAPIMessage.AccountRequest.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.setPublicKey (master.serialize (isProduction ()));
-			builder.setLookAhead (lookAhead);
-			builder.setAfter (after);
-			m.writeBytes (builder.build ().toByteArray ());
 
-			final TemporaryQueue answerQueue = session.createTemporaryQueue ();
-			final MessageConsumer consumer = session.createConsumer (answerQueue);
-			m.setJMSReplyTo (answerQueue);
-			final Semaphore ready = new Semaphore (0);
-			consumer.setMessageListener (new MessageListener ()
+		// only one thread at a time gets here past wip, others leave their work to it
+		private void drain ()
+		{
+			if ( wip.getAndIncrement () != 0 )
 			{
-				@Override
-				public void onMessage (Message message)
+				return;
+			}
+			int missed = 1;
+			do
+			{
+				while ( !cancelled && !terminated && error == null )
 				{
-					BytesMessage m = (BytesMessage) message;
-					byte[] body;
-					try
+					Object next = buffer.peek ();
+					if ( next instanceof Chunk )
 					{
-						if ( m.getBodyLength () > 0 )
+						// all transactions of the chunk consumed, the server may send an other. Checkpoints are not subject to demand.
+						buffer.poll ();
+						if ( !finished )
 						{
-							body = new byte[(int) m.getBodyLength ()];
-							m.readBytes (body);
-							Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
-							t.computeHash ();
-							listener.process (t);
+							try
+							{
+								credit.consumed ();
+							}
+							catch ( BCSAPIException e )
+							{
+								error = e;
+								continue;
+							}
 						}
-						else
+						String checkpoint = ((Chunk) next).checkpoint;
+						if ( checkpoint != null && subscriber instanceof ScanCheckpointListener )
 						{
-							consumer.close ();
-							answerQueue.delete ();
-							ready.release ();
+							((ScanCheckpointListener) subscriber).checkpoint (checkpoint);
 						}
+						continue;
 					}
-					catch ( JMSException e )
+					if ( next == null || demand.get () == 0 )
 					{
-						log.error ("Malformed message received for account scan transactions", e);
+						break;
 					}
-					catch ( InvalidProtocolBufferException e )
+					Transaction t = (Transaction) buffer.poll ();
+					if ( demand.get () != Long.MAX_VALUE )
 					{
-						log.error ("Malformed message received for account scan transactions", e);
+						demand.decrementAndGet ();
 					}
+					subscriber.onNext (t);
 				}
-			});
-
-			scanAccountProducer.send (m);
-			ready.acquireUninterruptibly ();
+				if ( !cancelled && !terminated )
+				{
+					if ( error != null )
+					{
+						terminated = true;
+						buffer.clear ();
+						subscriber.onError (error);
+					}
+					else if ( finished && buffer.isEmpty () )
+					{
+						terminated = true;
+						subscriber.onComplete ();
+					}
+				}
+				missed = wip.addAndGet (-missed);
+			} while ( missed != 0 );
 		}
-		catch ( JMSException e )
+	}
+
+	private interface ByteArrayMessageListener
+	{
+		public void onMessage (byte[] array);
+	}
+
+	// receives a topic message decoded once for all listeners
+	private interface TopicMessageListener
+	{
+		public void onMessage (Object message);
+	}
+
+	private boolean copyTopicMessages = false;
+
+	/**
+	 * Topic messages are decoded once and the same transaction or block objects are passed to every listener, listeners must not modify
+	 * them. Set this to give each listener its own copy instead.
+	 */
+	public void setCopyTopicMessages (boolean copyTopicMessages)
+	{
+		this.copyTopicMessages = copyTopicMessages;
+	}
+
+	private TopicEventLog eventLog;
+	private String clientID;
+
+	/**
+	 * Log trunk and transaction messages received for registered listeners, so that they can be replayed with {@link #replayEvents} after a
+	 * restart of the client. Listeners implementing {@link EventSequenceListener} learn the sequence number of each message processed.
+	 */
+	public void setEventLog (TopicEventLog eventLog)
+	{
+		this.eventLog = eventLog;
+	}
+
+	/**
+	 * Subscribe the trunk and transaction topics durable under this client id, so that the broker keeps their messages while the connector
+	 * is disconnected or down. The subscription ends when the last listener of the topic is removed. Requires a broker supporting durable
+	 * subscriptions, set before init.
+	 */
+	public void setClientID (String clientID)
+	{
+		this.clientID = clientID;
+	}
+
+	private static boolean isLogged (String topic)
+	{
+		return topic.equals ("trunk") || topic.equals ("transaction");
+	}
+
+	// a topic message with its sequence number in the event log
+	private static class LoggedMessage
+	{
+		private final long sequence;
+		private final Object message;
+
+		public LoggedMessage (long sequence, Object message)
+		{
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * What to do with a topic message if a listener's queue is full
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * wait for the listener, this also delays every other listener of the topic
+		 */
+		BLOCK,
+		/**
+		 * discard the oldest queued message
+		 */
+		DROP_OLDEST,
+		/**
+		 * discard all queued messages, for listeners interested in the latest event only
+		 */
+		COALESCE
+	}
+
+	private int listenerQueueSize = 1000;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private Executor listenerExecutor;
+	private ExecutorService ownListenerExecutor;
+	private boolean virtualThreads = false;
+
+	/**
+	 * maximum number of topic messages queued for a listener, applies to listeners registered later
+	 */
+	public void setListenerQueueSize (int listenerQueueSize)
+	{
+		this.listenerQueueSize = listenerQueueSize;
+	}
+
+	/**
+	 * applies to listeners registered later
+	 */
+	public void setOverflowPolicy (OverflowPolicy overflowPolicy)
+	{
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * executor running listeners, a cached thread pool of the connector is used if not set before init
+	 */
+	public void setListenerExecutor (Executor listenerExecutor)
+	{
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	/**
+	 * run listeners of the connector's own executor on virtual threads if the JVM supports them, set before init
+	 */
+	public void setVirtualThreads (boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	public static class ListenerQueueStatistics
+	{
+		private final String topic;
+		private final Object listener;
+		private final int depth;
+		private final int capacity;
+		private final long dropped;
+
+		public ListenerQueueStatistics (String topic, Object listener, int depth, int capacity, long dropped)
+		{
+			this.topic = topic;
+			this.listener = listener;
+			this.depth = depth;
+			this.capacity = capacity;
+			this.dropped = dropped;
+		}
+
+		public String getTopic ()
+		{
+			return topic;
+		}
+
+		public Object getListener ()
+		{
+			return listener;
+		}
+
+		/**
+		 * @return number of messages waiting for the listener
+		 */
+		public int getDepth ()
+		{
+			return depth;
+		}
+
+		public int getCapacity ()
+		{
+			return capacity;
+		}
+
+		/**
+		 * @return number of messages discarded by the overflow policy since registration
+		 */
+		public long getDropped ()
+		{
+			return dropped;
+		}
+	}
+
+	/**
+	 * @return queue statistics of every registered listener
+	 */
+	public List<ListenerQueueStatistics> getListenerQueueStatistics ()
+	{
+		List<ListenerQueueStatistics> statistics = new ArrayList<ListenerQueueStatistics> ();
+		synchronized ( messageDispatcher )
+		{
+			for ( MessageDispatcher dispatcher : messageDispatcher.values () )
+			{
+				for ( ListenerQueue listener : dispatcher.getListeners () )
+				{
+					statistics.add (listener.getStatistics ());
+				}
+			}
+		}
+		return statistics;
+	}
+
+	// messages are delivered to the listener in order, by at most one task of the executor at a time
+	private class ListenerQueue implements TopicMessageListener, Runnable
+	{
+		private static final int BATCH = 64;
+
+		private final String topic;
+		private final Object inner;
+		private final TopicMessageListener listener;
+		private final OverflowPolicy policy;
+		private final Executor executor;
+		private final ArrayBlockingQueue<Object> queue;
+		private final AtomicBoolean scheduled = new AtomicBoolean (false);
+		private final AtomicLong dropped = new AtomicLong (0);
+		private volatile boolean closed = false;
+
+		public ListenerQueue (String topic, Object inner, TopicMessageListener listener)
+		{
+			this.topic = topic;
+			this.inner = inner;
+			this.listener = listener;
+			policy = overflowPolicy;
+			executor = listenerExecutor;
+			queue = new ArrayBlockingQueue<Object> (listenerQueueSize);
+		}
+
+		@Override
+		public void onMessage (Object message)
+		{
+			switch ( policy )
+			{
+				case BLOCK:
+					try
+					{
+						while ( !closed && !queue.offer (message, 100, TimeUnit.MILLISECONDS) )
+						{
+						}
+					}
+					catch ( InterruptedException e )
+					{
+						Thread.currentThread ().interrupt ();
+						dropped.incrementAndGet ();
+					}
+					break;
+				case DROP_OLDEST:
+					while ( !queue.offer (message) )
+					{
+						if ( queue.poll () != null )
+						{
+							dropped.incrementAndGet ();
+						}
+					}
+					break;
+				case COALESCE:
+					while ( !queue.offer (message) )
+					{
+						while ( queue.poll () != null )
+						{
+							dropped.incrementAndGet ();
+						}
+					}
+					break;
+			}
+			schedule ();
+		}
+
+		private void schedule ()
+		{
+			if ( !closed && !queue.isEmpty () && scheduled.compareAndSet (false, true) )
+			{
+				executor.execute (this);
+			}
+		}
+
+		@Override
+		public void run ()
+		{
+			try
+			{
+				// yield after a batch so that listeners sharing the executor take turns
+				for ( int i = 0; i < BATCH && !closed; ++i )
+				{
+					Object message = queue.poll ();
+					if ( message == null )
+					{
+						break;
+					}
+					try
+					{
+						if ( message instanceof LoggedMessage )
+						{
+							LoggedMessage logged = (LoggedMessage) message;
+							listener.onMessage (logged.message);
+							if ( inner instanceof EventSequenceListener )
+							{
+								((EventSequenceListener) inner).processed (logged.sequence);
+							}
+						}
+						else
+						{
+							listener.onMessage (message);
+						}
+					}
+					catch ( Exception e )
+					{
+						log.error ("Listener failed on " + topic + " message", e);
+					}
+				}
+			}
+			finally
+			{
+				scheduled.set (false);
+				schedule ();
+			}
+		}
+
+		public void close ()
+		{
+			closed = true;
+			queue.clear ();
+		}
+
+		public ListenerQueueStatistics getStatistics ()
+		{
+			return new ListenerQueueStatistics (topic, inner, queue.size (), queue.size () + queue.remainingCapacity (), dropped.get ());
+		}
+	}
+
+	// subscribes the topic while it has listeners, again after reconnecting
+	private class MessageDispatcher
+	{
+		private final ListenerRegistry<ListenerQueue> listeners = new ListenerRegistry<ListenerQueue> (new ListenerQueue[0]);
+
+		private final String topic;
+		private final MessageListener messageListener;
+		private Session session;
+		private MessageConsumer consumer;
+
+		public MessageDispatcher (final String topic, final ReplyDecoder<?> decoder)
+		{
+			this.topic = topic;
+			messageListener = new MessageListener ()
+			{
+				@Override
+				public void onMessage (Message message)
+				{
+					try
+					{
+						byte[] body = readBody (message);
+						if ( body == null )
+						{
+							log.trace ("Empty message on " + topic);
+							return;
+						}
+						// decoded once, shared by all listeners
+						Object decoded = decoder.decode (body);
+						if ( eventLog != null && isLogged (topic) )
+						{
+							try
+							{
+								decoded = new LoggedMessage (eventLog.append (topic, body), decoded);
+							}
+							catch ( IOException e )
+							{
+								log.error ("Can not log " + topic + " message", e);
+							}
+						}
+						for ( ListenerQueue listener : listeners.getListeners () )
+						{
+							listener.onMessage (decoded);
+						}
+					}
+					catch ( JMSException e )
+					{
+						log.error ("JMS Error ", e);
+					}
+					catch ( InvalidProtocolBufferException | BCSAPIException | DataFormatException e )
+					{
+						log.error ("Message format error on " + topic, e);
+					}
+				}
+			};
+		}
+
+		// called with the lock of messageDispatcher held
+		public void subscribe () throws JMSException
+		{
+			close ();
+			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+			Topic destination = session.createTopic (topic);
+			if ( clientID != null && isLogged (topic) )
+			{
+				consumer = session.createDurableSubscriber (destination, topic);
+			}
+			else
+			{
+				consumer = session.createConsumer (destination);
+			}
+			consumer.setMessageListener (messageListener);
+		}
+
+		// a durable subscription is kept by the broker
+		public void close ()
+		{
+			close (false);
+		}
+
+		// also ends a durable subscription, so that the broker no longer keeps messages for the client id
+		public void unsubscribe ()
+		{
+			close (clientID != null && isLogged (topic));
+		}
+
+		private void close (boolean durable)
+		{
+			if ( session != null )
+			{
+				try
+				{
+					consumer.close ();
+					if ( durable )
+					{
+						session.unsubscribe (topic);
+					}
+					session.close ();
+				}
+				catch ( JMSException e )
+				{
+					log.error ("Can not unsubscribe " + topic, e);
+				}
+				session = null;
+				consumer = null;
+			}
+		}
+
+		public void addListener (Object inner, ListenerQueue listener)
+		{
+			ListenerQueue replaced = listeners.put (inner, listener);
+			if ( replaced != null )
+			{
+				replaced.close ();
+			}
+		}
+
+		public void removeListener (Object inner)
+		{
+			ListenerQueue removed = listeners.remove (inner);
+			if ( removed != null )
+			{
+				removed.close ();
+			}
+		}
+
+		public ListenerQueue[] getListeners ()
+		{
+			return listeners.getListeners ();
+		}
+
+		public boolean isListened ()
+		{
+			return !listeners.isEmpty ();
+		}
+	}
+
+	public void setConnectionFactory (ConnectionFactory connectionFactory)
+	{
+		connectionFactories = Collections.singletonList (connectionFactory);
+	}
+
+	/**
+	 * Brokers to connect to, tried in order. After the connection failed the broker last connected is tried first, then the others.
+	 */
+	public void setConnectionFactories (List<ConnectionFactory> connectionFactories)
+	{
+		this.connectionFactories = new ArrayList<ConnectionFactory> (connectionFactories);
+	}
+
+	/**
+	 * @return false while the connector is reconnecting. Requests wait for the connection until their timeout, scans fail.
+	 */
+	public boolean isConnected ()
+	{
+		return connected;
+	}
+
+	private void addTopicListener (String topic, ReplyDecoder<?> decoder, Object inner, TopicMessageListener listener) throws JMSException
+	{
+		synchronized ( messageDispatcher )
+		{
+			MessageDispatcher dispatcher = messageDispatcher.get (topic);
+			if ( dispatcher == null )
+			{
+				dispatcher = new MessageDispatcher (topic, decoder);
+				// a durable subscription may deliver messages kept by the broker as soon as subscribed
+				dispatcher.addListener (inner, new ListenerQueue (topic, inner, listener));
+				if ( connected )
+				{
+					dispatcher.subscribe ();
+				}
+				// otherwise subscribed once connected
+				messageDispatcher.put (topic, dispatcher);
+			}
+			else
+			{
+				dispatcher.addListener (inner, new ListenerQueue (topic, inner, listener));
+			}
+		}
+	}
+
+	private void removeTopicListener (String topic, Object inner)
+	{
+		synchronized ( messageDispatcher )
+		{
+			MessageDispatcher dispatcher = messageDispatcher.get (topic);
+			if ( dispatcher != null )
+			{
+				dispatcher.removeListener (inner);
+				if ( !dispatcher.isListened () )
+				{
+					messageDispatcher.remove (topic);
+					dispatcher.unsubscribe ();
+				}
+			}
+		}
+	}
+
+	public void init ()
+	{
+		log.debug ("Initialize BCSAPI Bus adaptor");
+		ScheduledThreadPoolExecutor expiryTimer = new ScheduledThreadPoolExecutor (1, TaskExecutors.daemonThreads ("BCSAPI request timer"));
+		// most requests complete, their expiry should not linger in the queue
+		expiryTimer.setRemoveOnCancelPolicy (true);
+		timer = expiryTimer;
+		// connecting may block, it should not delay expiry of requests
+		reconnector = new ScheduledThreadPoolExecutor (1, TaskExecutors.daemonThreads ("BCSAPI reconnect"));
+		if ( listenerExecutor == null )
+		{
+			listenerExecutor = ownListenerExecutor = TaskExecutors.newTaskExecutor ("BCSAPI listener", virtualThreads);
+		}
+		try
+		{
+			connect ();
+		}
+		catch ( JMSException e )
+		{
+			log.error ("Can not create JMS connection", e);
+			reconnecting.set (true);
+			scheduleReconnect (reconnectDelay);
+		}
+	}
+
+	private void connect () throws JMSException
+	{
+		JMSException failure = null;
+		for ( int i = 0; i < connectionFactories.size (); ++i )
+		{
+			int index = (factoryIndex + i) % connectionFactories.size ();
+			try
+			{
+				connect (connectionFactories.get (index));
+				factoryIndex = index;
+				return;
+			}
+			catch ( JMSException e )
+			{
+				log.debug ("Can not connect to broker " + index, e);
+				failure = e;
+			}
+		}
+		throw failure != null ? failure : new JMSException ("No connection factory");
+	}
+
+	private void connect (ConnectionFactory connectionFactory) throws JMSException
+	{
+		final Connection c = connectionFactory.createConnection ();
+		try
+		{
+			if ( clientID != null )
+			{
+				c.setClientID (clientID);
+			}
+			c.setExceptionListener (new ExceptionListener ()
+			{
+				@Override
+				public void onException (JMSException e)
+				{
+					if ( c == connection )
+					{
+						log.error ("JMS connection failed", e);
+						connectionLost ();
+					}
+				}
+			});
+			c.start ();
+			Session session = c.createSession (false, Session.AUTO_ACKNOWLEDGE);
+			TemporaryQueue queue = session.createTemporaryQueue ();
+			MessageConsumer consumer = session.createConsumer (queue);
+			consumer.setMessageListener (new MessageListener ()
+			{
+				@Override
+				public void onMessage (Message message)
+				{
+					dispatchReply (message);
+				}
+			});
+			synchronized ( messageDispatcher )
+			{
+				connection = c;
+				replySession = session;
+				replyConsumer = consumer;
+				replyQueue = queue;
+				// the server may be an other one
+				serverAcceptsDeflate = false;
+				for ( MessageDispatcher dispatcher : messageDispatcher.values () )
+				{
+					dispatcher.subscribe ();
+				}
+				connected = true;
+			}
+		}
+		catch ( JMSException e )
+		{
+			try
+			{
+				c.close ();
+			}
+			catch ( JMSException ce )
+			{
+			}
+			throw e;
+		}
+		// replies to requests sent on the earlier connection are lost with its reply queue
+		for ( PipelinedRequest<?> request : sentRequests.values () )
+		{
+			request.resend ();
+		}
+	}
+
+	// closes sessions of the connection, it may still deliver messages
+	private void disconnect ()
+	{
+		synchronized ( messageDispatcher )
+		{
+			connected = false;
+			for ( MessageDispatcher dispatcher : messageDispatcher.values () )
+			{
+				dispatcher.close ();
+			}
+			PooledSession session;
+			while ( (session = sessionPool.poll ()) != null )
+			{
+				pooledSessions.decrementAndGet ();
+				session.close ();
+			}
+			try
+			{
+				if ( replySession != null )
+				{
+					// the consumer would otherwise keep the reply listener of a lost connection registered
+					replyConsumer.close ();
+					replySession.close ();
+				}
+			}
+			catch ( JMSException e )
+			{
+			}
+			replyConsumer = null;
+			replySession = null;
+			try
+			{
+				if ( connection != null )
+				{
+					connection.close ();
+				}
+			}
+			catch ( JMSException e )
+			{
+			}
+		}
+	}
+
+	private void connectionLost ()
+	{
+		if ( destroyed || !reconnecting.compareAndSet (false, true) )
+		{
+			return;
+		}
+		disconnect ();
+		// scans can not continue on an other connection, their subscribers may resume from the last checkpoint
+		BCSAPIException lost = new BCSAPIException ("JMS connection lost");
+		for ( ReplyHandler handler : pendingReplies.values () )
+		{
+			if ( handler instanceof StreamingReply )
+			{
+				((StreamingReply) handler).fail (lost);
+			}
+			else if ( handler instanceof ScanReply )
+			{
+				((ScanReply) handler).fail (lost);
+			}
+		}
+		scheduleReconnect (reconnectDelay);
+	}
+
+	private void scheduleReconnect (final long delay)
+	{
+		reconnector.schedule (new Runnable ()
+		{
+			@Override
+			public void run ()
+			{
+				if ( destroyed )
+				{
+					return;
+				}
+				try
+				{
+					connect ();
+					reconnecting.set (false);
+					log.info ("JMS connection reestablished");
+				}
+				catch ( JMSException e )
+				{
+					log.debug ("Can not reconnect, retry in " + delay + " ms", e);
+					scheduleReconnect (Math.min (delay * 2, maxReconnectDelay));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	public void destroy ()
+	{
+		destroyed = true;
+		reconnector.shutdownNow ();
+		timer.shutdownNow ();
+		if ( ownListenerExecutor != null )
+		{
+			ownListenerExecutor.shutdown ();
+		}
+		disconnect ();
+	}
+
+	@Override
+	public long ping (long nonce) throws BCSAPIException
+	{
+		return pingAsync (nonce).getResult ();
+	}
+
+	@Override
+	public BCSAPIFuture<Long> pingAsync (final long nonce)
+	{
+		log.trace ("ping " + nonce);
+
+		BCSAPIMessage.Ping.Builder builder = BCSAPIMessage.Ping.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setNonce (nonce);
+		return asyncRequest ("ping", false, builder.build ().toByteArray (), new ReplyDecoder<Long> ()
+		{
+			@Override
+			public Long decode (byte[] body) throws InvalidProtocolBufferException, BCSAPIException
+			{
+				if ( body != null )
+				{
+					BCSAPIMessage.Ping echo = BCSAPIMessage.Ping.parseFrom (body);
+					if ( echo.getNonce () != nonce )
+					{
+						throw new BCSAPIException ("Incorrect echo nonce from ping");
+					}
+					return echo.getNonce ();
+				}
+				return 0L;
+			}
+		});
+	}
+
+	@Override
+	public void addAlertListener (final AlertListener alertListener) throws BCSAPIException
+	{
+		try
+		{
+			addTopicListener ("alert", alertReply, alertListener, new TopicMessageListener ()
+			{
+				@Override
+				public void onMessage (Object message)
+				{
+					BCSAPIMessage.Alert alert = (BCSAPIMessage.Alert) message;
+					alertListener.alert (alert.getAlert (), alert.getSeverity ());
+				}
+			});
+		}
+		catch ( JMSException e )
 		{
 			throw new BCSAPIException (e);
 		}
-		finally
+	}
+
+	@Override
+	public void removeAlertListener (AlertListener listener)
+	{
+		removeTopicListener ("alert", listener);
+	}
+
+	@Override
+	public boolean isProduction () throws BCSAPIException
+	{
+		if ( production != null )
+		{
+			return production;
+		}
+		return production = getBlockHeader (GENESIS) != null;
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (match, mode, after, null, listener);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanRequest ("utxoMatchRequest", matchRequest (match, mode, after, resume), listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanRequest ("utxoAccountRequest", accountRequest (master, firstIndex, lookAhead, after, resume), listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, final TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (match, mode, after, null, listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanRequest ("matchRequest", matchRequest (match, mode, after, resume), listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, final TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanRequest ("accountRequest", accountRequest (master, firstIndex, lookAhead, after, resume), listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionSubscriber subscriber)
+	{
+		scanTransactions (toMatch (addresses), mode, after, subscriber);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionSubscriber subscriber)
+	{
+		scanUTXO (toMatch (addresses), mode, after, subscriber);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, TransactionSubscriber subscriber)
+	{
+		subscribe ("utxoMatchRequest", matchRequest (match, mode, after, null), subscriber);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, TransactionSubscriber subscriber)
+	{
+		subscribe ("matchRequest", matchRequest (match, mode, after, null), subscriber);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionSubscriber subscriber)
+	{
+		accountSubscription ("utxoAccountRequest", master, firstIndex, lookAhead, after, subscriber);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionSubscriber subscriber)
+	{
+		accountSubscription ("accountRequest", master, firstIndex, lookAhead, after, subscriber);
+	}
+
+	private byte[] matchRequest (Collection<byte[]> match, UpdateMode mode, long after, String resume)
+	{
+		BCSAPIMessage.ExactMatchRequest.Builder builder = BCSAPIMessage.ExactMatchRequest.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setMode (mode.ordinal ());
+		for ( byte[] d : match )
+		{
+			builder.addMatch (ByteString.copyFrom (d));
+		}
+		if ( after != 0 )
+		{
+			builder.setAfter (after);
+		}
+		if ( resume != null )
+		{
+			builder.setResume (ByteString.copyFrom (ByteUtils.fromHex (resume)));
+		}
+		if ( scanChunkSize > 0 )
+		{
+			builder.setChunkSize (scanChunkSize);
+			builder.setCredit (scanCredit);
+		}
+		return builder.build ().toByteArray ();
+	}
+
+	private byte[] accountRequest (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume) throws BCSAPIException
+	{
+		if ( !master.isReadOnly () )
+		{
+			master = master.getReadOnly ();
+		}
+		BCSAPIMessage.AccountRequest.Builder builder = BCSAPIMessage.AccountRequest.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setPublicKey (master.serialize (isProduction ()));
+		builder.setLookAhead (lookAhead);
+		// servers that predate firstIndex get the request they know
+		if ( firstIndex != 0 )
+		{
+			builder.setFirstIndex (firstIndex);
+		}
+		builder.setAfter (after);
+		if ( resume != null )
+		{
+			builder.setResume (ByteString.copyFrom (ByteUtils.fromHex (resume)));
+		}
+		if ( scanChunkSize > 0 )
+		{
+			builder.setChunkSize (scanChunkSize);
+			builder.setCredit (scanCredit);
+		}
+		return builder.build ().toByteArray ();
+	}
+
+	private void accountSubscription (final String requestQueue, final ExtendedKey master, final int firstIndex, final int lookAhead,
+			final long after, final TransactionSubscriber subscriber)
+	{
+		if ( production != null )
 		{
 			try
 			{
-				session.close ();
+				subscribe (requestQueue, accountRequest (master, firstIndex, lookAhead, after, null), subscriber);
 			}
-			catch ( JMSException e )
+			catch ( BCSAPIException e )
+			{
+				failSubscription (subscriber, e);
+			}
+			return;
+		}
+		// the key serialization depends on the network, find out without blocking
+		getBlockHeaderAsync (GENESIS).addCallback (new BCSAPIFuture.Callback<Block> ()
+		{
+			@Override
+			public void onSuccess (Block result)
+			{
+				production = result != null;
+				accountSubscription (requestQueue, master, firstIndex, lookAhead, after, subscriber);
+			}
+
+			@Override
+			public void onFailure (BCSAPIException e)
+			{
+				failSubscription (subscriber, e);
+			}
+		});
+	}
+
+	private static void failSubscription (TransactionSubscriber subscriber, BCSAPIException e)
+	{
+		subscriber.onSubscribe (new ScanSubscription ()
+		{
+			@Override
+			public void request (long n)
+			{
+			}
+
+			@Override
+			public void cancel ()
+			{
+			}
+		});
+		subscriber.onError (e);
+	}
+
+	private void subscribe (String requestQueue, byte[] request, TransactionSubscriber subscriber)
+	{
+		String correlationID = nextCorrelationID ();
+		long timeout = getTimeout (requestQueue);
+		ScanReply reply = new ScanReply (correlationID, subscriber, scanChunkSize, timeout);
+		subscriber.onSubscribe (reply);
+		if ( reply.cancelled )
+		{
+			return;
+		}
+		pendingReplies.put (correlationID, reply);
+		try
+		{
+			send (requestQueue, false, request, correlationID);
+			reply.expireAfter (timeout);
+		}
+		catch ( BCSAPIException e )
+		{
+			reply.fail (e);
+		}
+	}
+
+	// replies are processed on the calling thread, the reply queue is not blocked by slow listeners
+	private void streamingRequest (String requestQueue, byte[] request, ByteArrayMessageListener processor) throws BCSAPIException
+	{
+		streamingRequest (requestQueue, request, processor, nextCorrelationID (), null);
+	}
+
+	/**
+	 * @param credit
+	 *            - returns credit for every message processed, null if no flow control
+	 */
+	private void streamingRequest (String requestQueue, byte[] request, ByteArrayMessageListener processor, String correlationID,
+			CreditGrant credit) throws BCSAPIException
+	{
+		StreamingReply reply = new StreamingReply ();
+		pendingReplies.put (correlationID, reply);
+		try
+		{
+			send (requestQueue, false, request, correlationID);
+			byte[] body;
+			long timeout = getTimeout (requestQueue);
+			while ( (body = reply.take (timeout)) != null )
+			{
+				processor.onMessage (body);
+				if ( credit != null )
+				{
+					credit.consumed ();
+				}
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread ().interrupt ();
+			throw new BCSAPIException ("interrupted");
+		}
+		finally
+		{
+			pendingReplies.remove (correlationID);
+		}
+	}
+
+	private void scanRequest (String requestQueue, byte[] request, TransactionListener listener) throws BCSAPIException
+	{
+		if ( scanChunkSize > 0 )
+		{
+			String correlationID = nextCorrelationID ();
+			streamingRequest (requestQueue, request, chunkProcessor (requestQueue, listener), correlationID, new CreditGrant (correlationID));
+		}
+		else
+		{
+			streamingRequest (requestQueue, request, transactionProcessor (requestQueue, listener));
+		}
+	}
+
+	private static ByteArrayMessageListener chunkProcessor (final String requestQueue, final TransactionListener listener)
+	{
+		return new ByteArrayMessageListener ()
+		{
+			@Override
+			public void onMessage (byte[] body)
+			{
+				try
+				{
+					chunkReply.decode (body).deliver (listener);
+				}
+				catch ( InvalidProtocolBufferException | BCSAPIException e )
+				{
+					log.error ("Malformed message received for " + requestQueue, e);
+				}
+			}
+		};
+	}
+
+	private static ByteArrayMessageListener transactionProcessor (final String requestQueue, final TransactionListener listener)
+	{
+		return new ByteArrayMessageListener ()
+		{
+			@Override
+			public void onMessage (byte[] body)
+			{
+				try
+				{
+					listener.process (transactionReply.decode (body));
+				}
+				catch ( InvalidProtocolBufferException | BCSAPIException e )
+				{
+					log.error ("Malformed message received for " + requestQueue, e);
+				}
+			}
+		};
+	}
+
+	private static ByteArrayMessageListener blockProcessor (final String requestQueue, final BlockListener listener)
+	{
+		return new ByteArrayMessageListener ()
+		{
+			@Override
+			public void onMessage (byte[] body)
+			{
+				try
+				{
+					listener.process (blockReply.decode (body));
+				}
+				catch ( InvalidProtocolBufferException | BCSAPIException e )
+				{
+					log.error ("Malformed message received for " + requestQueue, e);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void getTransactions (List<String> hashes, TransactionListener listener) throws BCSAPIException
+	{
+		log.trace ("get " + hashes.size () + " transactions");
+		streamingRequest ("transactionsRequest", hashRequest (hashes), transactionProcessor ("transactionsRequest", listener));
+	}
+
+	@Override
+	public void getBlockHeaders (List<String> hashes, BlockListener listener) throws BCSAPIException
+	{
+		log.trace ("get " + hashes.size () + " block headers");
+		streamingRequest ("headersRequest", hashRequest (hashes), blockProcessor ("headersRequest", listener));
+	}
+
+	@Override
+	public void catchUp (String hash, final TrunkListener listener) throws BCSAPIException
+	{
+		log.trace ("catchUp from " + hash);
+		try
+		{
+			TrunkUpdateMessage tu = trunkReply.decode (synchronousRequest ("catchUpRequest", false, hashRequest (hash)));
+			if ( tu != null )
 			{
+				listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
 			}
 		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			throw new BCSAPIException (e);
+		}
 	}
 
 	@Override
-	public void catchUp (String hash, final TrunkListener listener) throws BCSAPIException
+	public void registerTransactionListener (final TransactionListener listener) throws BCSAPIException
 	{
-		log.trace ("catchUp from " + hash);
-		BytesMessage m;
-		Session session = null;
 		try
 		{
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer transactionRequestProducer = session.createProducer (session.createQueue ("catchUpRequest"));
-
-			m = session.createBytesMessage ();
-			BCSAPIMessage.Hash.Builder builder = BCSAPIMessage.Hash.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.addHash (ByteString.copyFrom (new Hash (hash).toByteArray ()));
-			m.writeBytes (builder.build ().toByteArray ());
-			byte[] response = synchronousRequest (session, transactionRequestProducer, m);
-			if ( response != null )
+			addTopicListener ("transaction", transactionReply, listener, new TopicMessageListener ()
 			{
-				TrunkUpdateMessage tu = TrunkUpdateMessage.fromProtobuf (BCSAPIMessage.TrunkUpdate.parseFrom (response));
-				if ( tu.getRemoved () != null )
-				{
-					for ( Block b : tu.getRemoved () )
-					{
-						b.computeHash ();
-					}
-				}
-				if ( tu.getAdded () != null )
+				@Override
+				public void onMessage (Object message)
 				{
-					for ( Block b : tu.getAdded () )
-					{
-						b.computeHash ();
-					}
+					listener.process (copyTopicMessages ? copyOf ((Transaction) message) : (Transaction) message);
 				}
-				listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
-			}
+			});
 		}
 		catch ( JMSException e )
 		{
 			throw new BCSAPIException (e);
 		}
-		catch ( InvalidProtocolBufferException e )
-		{
-			throw new BCSAPIException (e);
-		}
-		finally
-		{
-			try
-			{
-				session.close ();
-			}
-			catch ( JMSException e )
-			{
-			}
-		}
 	}
 
 	@Override
-	public void registerTransactionListener (final TransactionListener listener) throws BCSAPIException
+	public void removeTransactionListener (TransactionListener listener)
+	{
+		removeTopicListener ("transaction", listener);
+	}
+
+	@Override
+	public void registerTrunkListener (final TrunkListener listener) throws BCSAPIException
 	{
 		try
 		{
-			addTopicListener ("transaction", listener, new ByteArrayMessageListener ()
+			addTopicListener ("trunk", trunkReply, listener, new TopicMessageListener ()
 			{
 				@Override
-				public void onMessage (byte[] body)
+				public void onMessage (Object message)
 				{
-					try
+					TrunkUpdateMessage tu = (TrunkUpdateMessage) message;
+					if ( copyTopicMessages )
 					{
-						Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
-						t.computeHash ();
-						listener.process (t);
+						listener.trunkUpdate (copyOf (tu.getRemoved ()), copyOf (tu.getAdded ()));
 					}
-					catch ( Exception e )
+					else
 					{
-						log.debug ("Transaction message error", e);
+						listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
 					}
 				}
 			});
@@ -603,325 +1854,415 @@ public class JMSServerConnector implements BCSAPI
 	}
 
 	@Override
-	public void removeTransactionListener (TransactionListener listener)
+	public void removeTrunkListener (TrunkListener listener)
 	{
-		removeTopicListener ("transaction", listener);
+		removeTopicListener ("trunk", listener);
 	}
 
-	@Override
-	public void registerTrunkListener (final TrunkListener listener) throws BCSAPIException
+	/**
+	 * Pass trunk and transaction messages of the event log after a sequence number to the listeners, on the calling thread. Register the
+	 * listeners before replay, so that no message is missed between, and expect messages delivered both ways.
+	 *
+	 * @param after
+	 *            - sequence number of the last message processed earlier, 0 to replay the whole log
+	 * @param transactionListener
+	 *            - or null
+	 * @param trunkListener
+	 *            - or null
+	 * @return sequence number of the last message replayed
+	 * @throws BCSAPIException
+	 *             if there is no event log or it does not reach back to the sequence number
+	 */
+	public long replayEvents (long after, final TransactionListener transactionListener, final TrunkListener trunkListener)
+			throws BCSAPIException
 	{
+		if ( eventLog == null )
+		{
+			throw new BCSAPIException ("No event log to replay");
+		}
 		try
 		{
-			addTopicListener ("trunk", listener, new ByteArrayMessageListener ()
+			return eventLog.replay (after, new TopicEventLog.EventHandler ()
 			{
 				@Override
-				public void onMessage (byte[] body)
+				public void event (long sequence, String topic, byte[] body)
 				{
 					try
 					{
-						TrunkUpdateMessage tu = TrunkUpdateMessage.fromProtobuf (BCSAPIMessage.TrunkUpdate.parseFrom (body));
-						if ( tu.getRemoved () != null )
+						if ( topic.equals ("transaction") && transactionListener != null )
 						{
-							for ( Block b : tu.getRemoved () )
-							{
-								b.computeHash ();
-							}
+							transactionListener.process (transactionReply.decode (body));
 						}
-						if ( tu.getAdded () != null )
+						else if ( topic.equals ("trunk") && trunkListener != null )
 						{
-							for ( Block b : tu.getAdded () )
-							{
-								b.computeHash ();
-							}
+							TrunkUpdateMessage tu = trunkReply.decode (body);
+							trunkListener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
 						}
-						listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
 					}
-					catch ( Exception e )
+					catch ( InvalidProtocolBufferException | BCSAPIException e )
 					{
-						log.debug ("Block message error", e);
+						log.error ("Message format error in event log at " + sequence, e);
 					}
 				}
 			});
 		}
-		catch ( JMSException e )
+		catch ( IOException e )
 		{
 			throw new BCSAPIException (e);
 		}
 	}
 
-	@Override
-	public void removeTrunkListener (TrunkListener listener)
+	private String nextCorrelationID ()
 	{
-		removeTopicListener ("trunk", listener);
+		return correlationPrefix + correlationSequence.incrementAndGet ();
 	}
 
-	private byte[] synchronousRequest (Session session, MessageProducer producer, Message m) throws BCSAPIException
+	private void dispatchReply (Message message)
 	{
-		TemporaryQueue answerQueue = null;
-		MessageConsumer consumer = null;
 		try
 		{
-			answerQueue = session.createTemporaryQueue ();
-			m.setJMSReplyTo (answerQueue);
-			consumer = session.createConsumer (answerQueue);
-			producer.send (m);
-			BytesMessage reply = (BytesMessage) consumer.receive (timeout);
-			if ( reply == null )
+			String correlationID = message.getJMSCorrelationID ();
+			ReplyHandler handler = correlationID != null ? pendingReplies.get (correlationID) : null;
+			if ( handler == null )
 			{
-				throw new BCSAPIException ("timeout");
+				log.trace ("Reply to unknown or expired request " + correlationID);
+				return;
 			}
-			if ( reply.getBodyLength () == 0 )
+			if ( compression && !serverAcceptsDeflate && DEFLATE.equals (message.getStringProperty (ACCEPT_ENCODING)) )
 			{
-				return null;
+				serverAcceptsDeflate = true;
 			}
-			else
+			if ( handler.onReply (readBody (message)) )
 			{
-				byte[] body = new byte[(int) reply.getBodyLength ()];
-				reply.readBytes (body);
-				return body;
+				pendingReplies.remove (correlationID);
 			}
 		}
-		catch ( JMSException e )
+		catch ( JMSException | DataFormatException e )
 		{
-			throw new BCSAPIException (e);
+			log.error ("Malformed reply ", e);
 		}
-		finally
+	}
+
+	/**
+	 * @return message body, decompressed if needed, or null if empty
+	 */
+	private byte[] readBody (Message message) throws JMSException, DataFormatException
+	{
+		BytesMessage m = (BytesMessage) message;
+		byte[] body;
+		if ( m instanceof SharedBodyMessage )
 		{
-			try
+			// in-process transport, the body is not copied
+			body = ((SharedBodyMessage) m).getSharedBody ();
+			if ( body == null || body.length == 0 )
 			{
-				if ( consumer != null )
-				{
-					consumer.close ();
-				}
-				answerQueue.delete ();
+				return null;
 			}
-			catch ( JMSException e )
+		}
+		else
+		{
+			if ( m.getBodyLength () == 0 )
 			{
+				return null;
 			}
+			body = new byte[(int) m.getBodyLength ()];
+			m.readBytes (body);
+		}
+		if ( DEFLATE.equals (m.getStringProperty (ENCODING)) )
+		{
+			return deflate.decompress (body);
 		}
+		return body;
 	}
 
-	@Override
-	public Transaction getTransaction (String hash) throws BCSAPIException
+	private void send (String destination, boolean topic, byte[] body, String correlationID) throws BCSAPIException
 	{
-		log.trace ("get transaction " + hash);
-		BytesMessage m;
-		Session session = null;
+		if ( !connected )
+		{
+			throw new BCSAPIException ("JMS connection lost");
+		}
+		PooledSession session = null;
 		try
 		{
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer transactionRequestProducer = session.createProducer (session.createQueue ("transactionRequest"));
-
-			m = session.createBytesMessage ();
-			BCSAPIMessage.Hash.Builder builder = BCSAPIMessage.Hash.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.addHash (ByteString.copyFrom (new Hash (hash).toByteArray ()));
-			m.writeBytes (builder.build ().toByteArray ());
-			byte[] response = synchronousRequest (session, transactionRequestProducer, m);
-			if ( response != null )
+			session = borrowSession ();
+			BytesMessage m = session.getSession ().createBytesMessage ();
+			if ( compression )
 			{
-				Transaction t;
-				t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (response));
-				t.computeHash ();
-				return t;
+				m.setStringProperty (ACCEPT_ENCODING, DEFLATE);
+				if ( serverAcceptsDeflate && body.length >= compressionThreshold )
+				{
+					body = deflate.compress (body);
+					m.setStringProperty (ENCODING, DEFLATE);
+				}
 			}
+			m.writeBytes (body);
+			m.setJMSReplyTo (replyQueue);
+			m.setJMSCorrelationID (correlationID);
+			session.getProducer (destination, topic).send (m);
+			returnSession (session);
 		}
 		catch ( JMSException e )
 		{
-			throw new BCSAPIException (e);
-		}
-		catch ( InvalidProtocolBufferException e )
-		{
-			throw new BCSAPIException (e);
-		}
-		finally
-		{
-			try
+			if ( session != null )
 			{
 				session.close ();
 			}
-			catch ( JMSException e )
-			{
-			}
+			throw new BCSAPIException (e);
 		}
-		return null;
 	}
 
-	@Override
-	public Block getBlock (String hash) throws BCSAPIException
+	// a request holds a slot of the in-flight window from sending until it completes
+	private class PipelinedRequest<T> implements BCSAPIFuture.Callback<T>
 	{
-		Session session = null;
-		try
-		{
-			log.trace ("get block " + hash);
-
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer blockRequestProducer = session.createProducer (session.createQueue ("blockRequest"));
+		private final String destination;
+		private final boolean topic;
+		private final byte[] body;
+		private final String correlationID = nextCorrelationID ();
+		private final FutureReply<T> reply;
+		private final AtomicBoolean holdsSlot = new AtomicBoolean (false);
+		private ScheduledFuture<?> expiry;
 
-			BytesMessage m = session.createBytesMessage ();
-			BCSAPIMessage.Hash.Builder builder = BCSAPIMessage.Hash.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.addHash (ByteString.copyFrom (new Hash (hash).toByteArray ()));
-			m.writeBytes (builder.build ().toByteArray ());
-			byte[] response = synchronousRequest (session, blockRequestProducer, m);
-			if ( response != null )
-			{
-				Block b = Block.fromProtobuf (BCSAPIMessage.Block.parseFrom (response));
-				b.computeHash ();
-				return b;
-			}
+		public PipelinedRequest (String destination, boolean topic, byte[] body, ReplyDecoder<T> decoder)
+		{
+			this.destination = destination;
+			this.topic = topic;
+			this.body = body;
+			reply = new FutureReply<T> (decoder);
 		}
-		catch ( JMSException e )
+
+		public void submit ()
 		{
-			throw new BCSAPIException (e);
+			final FutureReply<T> r = reply;
+			expiry = timer.schedule (new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					r.fail (new BCSAPIException ("timeout"));
+				}
+			}, getTimeout (destination), TimeUnit.MILLISECONDS);
+			reply.addCallback (this);
+			waitingRequests.offer (this);
+			sendWaitingRequests ();
 		}
-		catch ( InvalidProtocolBufferException e )
+
+		public void send ()
 		{
-			throw new BCSAPIException (e);
+			holdsSlot.set (true);
+			if ( reply.isDone () )
+			{
+				// expired while waiting
+				releaseSlot ();
+				return;
+			}
+			pendingReplies.put (correlationID, reply);
+			sentRequests.put (correlationID, this);
+			resend ();
 		}
-		finally
+
+		public void resend ()
 		{
+			if ( !connected || reply.isDone () )
+			{
+				// sent once connected again
+				return;
+			}
 			try
 			{
-				session.close ();
+				JMSServerConnector.this.send (destination, topic, body, correlationID);
 			}
-			catch ( JMSException e )
+			catch ( BCSAPIException e )
 			{
+				reply.fail (e);
 			}
 		}
-		return null;
-	}
 
-	@Override
-	public Block getBlockHeader (String hash) throws BCSAPIException
-	{
-		Session session = null;
-		try
+		private void releaseSlot ()
 		{
-			log.trace ("get block header" + hash);
-
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer blockHeaderRequestProducer = session.createProducer (session.createQueue ("headerRequest"));
-
-			BytesMessage m = session.createBytesMessage ();
-			BCSAPIMessage.Hash.Builder builder = BCSAPIMessage.Hash.newBuilder ();
-			builder.setBcsapiversion (1);
-			builder.addHash (ByteString.copyFrom (new Hash (hash).toByteArray ()));
-			m.writeBytes (builder.build ().toByteArray ());
-			byte[] response = synchronousRequest (session, blockHeaderRequestProducer, m);
-			if ( response != null )
+			if ( holdsSlot.compareAndSet (true, false) )
 			{
-				Block b = Block.fromProtobuf (BCSAPIMessage.Block.parseFrom (response));
-				b.computeHash ();
-				return b;
+				inFlight.decrementAndGet ();
+				sendWaitingRequests ();
 			}
 		}
-		catch ( JMSException e )
+
+		private void completed ()
 		{
-			throw new BCSAPIException (e);
+			pendingReplies.remove (correlationID);
+			sentRequests.remove (correlationID);
+			expiry.cancel (false);
+			releaseSlot ();
 		}
-		catch ( InvalidProtocolBufferException e )
+
+		// also called if cancelled or expired
+		@Override
+		public void onSuccess (T result)
 		{
-			throw new BCSAPIException (e);
+			completed ();
 		}
-		finally
+
+		@Override
+		public void onFailure (BCSAPIException e)
 		{
-			try
-			{
-				session.close ();
-			}
-			catch ( JMSException e )
-			{
-			}
+			completed ();
 		}
-		return null;
 	}
 
-	@Override
-	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	private void sendWaitingRequests ()
 	{
-		Session session = null;
-		try
+		while ( !waitingRequests.isEmpty () )
 		{
-			transaction.computeHash ();
-			log.trace ("send transaction " + transaction.getHash ());
-
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer transactionProducer = session.createProducer (session.createTopic ("newTransaction"));
-
-			BytesMessage m = session.createBytesMessage ();
-			m.writeBytes (transaction.toProtobuf ().toByteArray ());
-			byte[] reply = synchronousRequest (session, transactionProducer, m);
-			if ( reply != null )
+			int n = inFlight.get ();
+			if ( n >= maxInFlight )
 			{
-				try
+				// a completing request will continue
+				return;
+			}
+			if ( inFlight.compareAndSet (n, n + 1) )
+			{
+				PipelinedRequest<?> request = waitingRequests.poll ();
+				if ( request == null )
 				{
-					BCSAPIMessage.ExceptionMessage em = BCSAPIMessage.ExceptionMessage.parseFrom (reply);
-					throw new BCSAPIException (em.getMessage (0));
+					inFlight.decrementAndGet ();
 				}
-				catch ( InvalidProtocolBufferException e )
+				else
 				{
-					throw new BCSAPIException ("Invalid response", e);
+					request.send ();
 				}
 			}
 		}
-		catch ( JMSException e )
+	}
+
+	private <T> BCSAPIFuture<T> asyncRequest (String destination, boolean topic, byte[] body, ReplyDecoder<T> decoder)
+	{
+		PipelinedRequest<T> request = new PipelinedRequest<T> (destination, topic, body, decoder);
+		request.submit ();
+		return request.reply;
+	}
+
+	private byte[] synchronousRequest (String destination, boolean topic, byte[] body) throws BCSAPIException
+	{
+		return asyncRequest (destination, topic, body, rawReply).getResult ();
+	}
+
+	private static final ReplyDecoder<Transaction> transactionReply = new ReplyDecoder<Transaction> ()
+	{
+		@Override
+		public Transaction decode (byte[] body) throws InvalidProtocolBufferException
 		{
-			throw new BCSAPIException (e);
+			return decodeTransaction (body);
 		}
-		finally
+	};
+
+	private static final ReplyDecoder<Block> blockReply = new ReplyDecoder<Block> ()
+	{
+		@Override
+		public Block decode (byte[] body) throws InvalidProtocolBufferException
 		{
-			try
-			{
-				session.close ();
-			}
-			catch ( JMSException e )
-			{
-			}
+			return decodeBlock (body);
 		}
-	}
+	};
 
-	@Override
-	public void sendBlock (Block block) throws BCSAPIException
+	private static final ReplyDecoder<Chunk> chunkReply = new ReplyDecoder<Chunk> ()
 	{
-		Session session = null;
-		try
+		@Override
+		public Chunk decode (byte[] body) throws InvalidProtocolBufferException
 		{
-			block.computeHash ();
-			log.trace ("send block " + block.getHash ());
-			session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-			MessageProducer blockProducer = session.createProducer (session.createTopic ("newBlock"));
+			return decodeChunk (body);
+		}
+	};
 
-			BytesMessage m = session.createBytesMessage ();
-			m.writeBytes (block.toProtobuf ().toByteArray ());
-			byte[] reply = synchronousRequest (session, blockProducer, m);
-			if ( reply != null )
-			{
-				try
-				{
-					BCSAPIMessage.ExceptionMessage em = BCSAPIMessage.ExceptionMessage.parseFrom (reply);
-					throw new BCSAPIException (em.getMessage (0));
-				}
-				catch ( InvalidProtocolBufferException e )
-				{
-					throw new BCSAPIException ("Invalid response", e);
-				}
-			}
+	private static final ReplyDecoder<TrunkUpdateMessage> trunkReply = new ReplyDecoder<TrunkUpdateMessage> ()
+	{
+		@Override
+		public TrunkUpdateMessage decode (byte[] body) throws InvalidProtocolBufferException
+		{
+			return decodeTrunkUpdate (body);
 		}
-		catch ( JMSException e )
+	};
+
+	private static final ReplyDecoder<BCSAPIMessage.Alert> alertReply = new ReplyDecoder<BCSAPIMessage.Alert> ()
+	{
+		@Override
+		public BCSAPIMessage.Alert decode (byte[] body) throws InvalidProtocolBufferException
 		{
-			throw new BCSAPIException (e);
+			return BCSAPIMessage.Alert.parseFrom (body);
 		}
-		finally
+	};
+
+	// an empty reply means accepted, otherwise the reason of rejection
+	private static final ReplyDecoder<Void> acceptReply = new ReplyDecoder<Void> ()
+	{
+		@Override
+		public Void decode (byte[] body) throws InvalidProtocolBufferException, BCSAPIException
 		{
-			try
-			{
-				session.close ();
-			}
-			catch ( JMSException e )
+			if ( body != null )
 			{
+				BCSAPIMessage.ExceptionMessage em = BCSAPIMessage.ExceptionMessage.parseFrom (body);
+				throw new BCSAPIException (em.getMessage (0));
 			}
+			return null;
 		}
+	};
+
+	@Override
+	public Transaction getTransaction (String hash) throws BCSAPIException
+	{
+		return getTransactionAsync (hash).getResult ();
+	}
+
+	@Override
+	public BCSAPIFuture<Transaction> getTransactionAsync (String hash)
+	{
+		log.trace ("get transaction " + hash);
+		return asyncRequest ("transactionRequest", false, hashRequest (hash), transactionReply);
+	}
+
+	@Override
+	public Block getBlock (String hash) throws BCSAPIException
+	{
+		return getBlockAsync (hash).getResult ();
+	}
+
+	@Override
+	public BCSAPIFuture<Block> getBlockAsync (String hash)
+	{
+		log.trace ("get block " + hash);
+		return asyncRequest ("blockRequest", false, hashRequest (hash), blockReply);
+	}
+
+	@Override
+	public Block getBlockHeader (String hash) throws BCSAPIException
+	{
+		return getBlockHeaderAsync (hash).getResult ();
+	}
+
+	@Override
+	public BCSAPIFuture<Block> getBlockHeaderAsync (String hash)
+	{
+		log.trace ("get block header" + hash);
+		return asyncRequest ("headerRequest", false, hashRequest (hash), blockReply);
+	}
+
+	@Override
+	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	{
+		sendTransactionAsync (transaction).getResult ();
+	}
+
+	@Override
+	public BCSAPIFuture<Void> sendTransactionAsync (Transaction transaction)
+	{
+		transaction.computeHash ();
+		log.trace ("send transaction " + transaction.getHash ());
+		return asyncRequest ("newTransaction", true, transaction.toProtobuf ().toByteArray (), acceptReply);
+	}
+
+	@Override
+	public void sendBlock (Block block) throws BCSAPIException
+	{
+		block.computeHash ();
+		log.trace ("send block " + block.getHash ());
+		asyncRequest ("newBlock", true, block.toProtobuf ().toByteArray (), acceptReply).getResult ();
 	}
 }
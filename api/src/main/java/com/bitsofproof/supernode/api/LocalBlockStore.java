@@ -0,0 +1,797 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ByteVector;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.ListenerRegistry;
+import com.bitsofproof.supernode.common.ScriptFormat;
+import com.bitsofproof.supernode.common.ValidationException;
+import com.bitsofproof.supernode.common.WireFormat;
+
+/**
+ * Block chain held in memory, with the indexes needed to answer BCSAPI requests. It is a stand-in for a server in tests and load tests, it
+ * does not validate proof of work or scripts. Blocks are connected to the first block stored, the longest branch is the trunk. Unconfirmed
+ * transactions are accepted if they spend known outputs not spent yet.
+ * <p>
+ * Transactions are identified in scans by their position: height of the block in the trunk and index within the block, unconfirmed
+ * transactions follow the trunk in the order they were received.
+ * <p>
+ * Blocks and transactions loaded or added are not copied, the caller must not modify them later. Only transactions and blocks sent are
+ * told to event listeners.
+ */
+public class LocalBlockStore implements BCSAPIHandler
+{
+	private static final Logger log = LoggerFactory.getLogger (LocalBlockStore.class);
+
+	private static final int UNCONFIRMED = Integer.MAX_VALUE;
+
+	private final Map<String, Block> blocks = new HashMap<String, Block> ();
+	private final Map<String, List<Block>> orphans = new HashMap<String, List<Block>> ();
+	private final List<Block> trunk = new ArrayList<Block> ();
+
+	private final Map<String, Transaction> transactions = new HashMap<String, Transaction> ();
+	private final Map<String, Long> positions = new HashMap<String, Long> ();
+	private final LinkedHashMap<String, Transaction> unconfirmed = new LinkedHashMap<String, Transaction> ();
+	private long unconfirmedSequence;
+	// data pushed by output scripts
+	private final Map<ByteVector, List<Transaction>> outputData = new HashMap<ByteVector, List<Transaction>> ();
+	private final Map<String, Transaction> spentBy = new HashMap<String, Transaction> ();
+
+	private final ListenerRegistry<EventListener> eventListeners = new ListenerRegistry<EventListener> (new EventListener[0]);
+
+	public static long position (int height, long index)
+	{
+		return ((long) height << 24) + index;
+	}
+
+	public static int height (long position)
+	{
+		return (int) (position >>> 24);
+	}
+
+	private static String outpoint (String hash, long ix)
+	{
+		return hash + ":" + ix;
+	}
+
+	/**
+	 * Read blocks in the format of the reference client's block files: each block is preceded by the network's magic number and its length.
+	 * Reading ends at the end of stream or zero padding.
+	 *
+	 * @return number of blocks read
+	 */
+	public int loadBlocks (InputStream input) throws IOException, ValidationException
+	{
+		DataInputStream in = new DataInputStream (new BufferedInputStream (input));
+		byte[] magic = new byte[4];
+		int n = 0;
+		while ( true )
+		{
+			try
+			{
+				in.readFully (magic);
+			}
+			catch ( EOFException e )
+			{
+				break;
+			}
+			if ( Arrays.equals (magic, new byte[4]) )
+			{
+				break;
+			}
+			int length = Integer.reverseBytes (in.readInt ());
+			byte[] data = new byte[length];
+			in.readFully (data);
+			addBlock (Block.fromWire (new WireFormat.Reader (data)));
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of blocks read
+	 */
+	public int loadBlockFile (File file) throws IOException, ValidationException
+	{
+		try (InputStream in = new FileInputStream (file))
+		{
+			int n = loadBlocks (in);
+			log.debug ("Loaded " + n + " blocks from " + file);
+			return n;
+		}
+	}
+
+	/**
+	 * load the blk*.dat files of the reference client's data directory, in the order of their names
+	 *
+	 * @return number of blocks read
+	 */
+	public int loadBlockFiles (File directory) throws IOException, ValidationException
+	{
+		File[] files = directory.listFiles (new FilenameFilter ()
+		{
+			@Override
+			public boolean accept (File dir, String name)
+			{
+				return name.startsWith ("blk") && name.endsWith (".dat");
+			}
+		});
+		if ( files == null )
+		{
+			throw new IOException ("Can not list " + directory);
+		}
+		Arrays.sort (files);
+		int n = 0;
+		for ( File file : files )
+		{
+			n += loadBlockFile (file);
+		}
+		return n;
+	}
+
+	/**
+	 * Store a block. The first block stored is the root of the chain, others are connected once their previous block is stored.
+	 *
+	 * @return the change of the trunk, or null if the trunk did not change
+	 */
+	public synchronized TrunkUpdateMessage addBlock (Block block) throws ValidationException
+	{
+		if ( block.getHash () == null )
+		{
+			block.computeHash ();
+		}
+		else if ( block.getTransactions () != null )
+		{
+			for ( Transaction t : block.getTransactions () )
+			{
+				t.setBlockHash (block.getHash ());
+			}
+		}
+		if ( blocks.containsKey (block.getHash ()) )
+		{
+			return null;
+		}
+		Block tip = trunk.isEmpty () ? null : trunk.get (trunk.size () - 1);
+		Block best = tip;
+		if ( tip == null )
+		{
+			block.setHeight (0);
+			best = connect (block, best);
+		}
+		else if ( blocks.containsKey (block.getPreviousHash ()) )
+		{
+			best = connect (block, best);
+		}
+		else
+		{
+			List<Block> waiting = orphans.get (block.getPreviousHash ());
+			if ( waiting == null )
+			{
+				waiting = new ArrayList<Block> ();
+				orphans.put (block.getPreviousHash (), waiting);
+			}
+			waiting.add (block);
+			return null;
+		}
+		if ( best == tip )
+		{
+			return null;
+		}
+		return extendTrunk (best);
+	}
+
+	// connect the block and orphans waiting for it, returns the highest of best and the blocks connected
+	private Block connect (Block block, Block best)
+	{
+		ArrayDeque<Block> work = new ArrayDeque<Block> ();
+		work.add (block);
+		while ( !work.isEmpty () )
+		{
+			Block b = work.poll ();
+			Block previous = blocks.get (b.getPreviousHash ());
+			if ( previous != null )
+			{
+				b.setHeight (previous.getHeight () + 1);
+			}
+			blocks.put (b.getHash (), b);
+			if ( best == null || b.getHeight () > best.getHeight () )
+			{
+				best = b;
+			}
+			List<Block> waiting = orphans.remove (b.getHash ());
+			if ( waiting != null )
+			{
+				work.addAll (waiting);
+			}
+		}
+		return best;
+	}
+
+	private TrunkUpdateMessage extendTrunk (Block tip)
+	{
+		List<Block> added = new ArrayList<Block> ();
+		Block b = tip;
+		while ( b != null && !isOnTrunk (b) )
+		{
+			added.add (b);
+			b = blocks.get (b.getPreviousHash ());
+		}
+		Collections.reverse (added);
+		int fork = b == null ? -1 : b.getHeight ();
+		List<Block> removed = new ArrayList<Block> ();
+		for ( int h = trunk.size () - 1; h > fork; --h )
+		{
+			Block r = trunk.remove (h);
+			removed.add (r);
+			unindexBlock (r);
+		}
+		for ( Block a : added )
+		{
+			trunk.add (a);
+			indexBlock (a);
+		}
+		return new TrunkUpdateMessage (added, removed);
+	}
+
+	private boolean isOnTrunk (Block b)
+	{
+		return b.getHeight () < trunk.size () && trunk.get (b.getHeight ()) == b;
+	}
+
+	private void indexBlock (Block b)
+	{
+		if ( b.getTransactions () == null )
+		{
+			return;
+		}
+		long ix = 0;
+		for ( Transaction t : b.getTransactions () )
+		{
+			if ( unconfirmed.remove (t.getHash ()) != null )
+			{
+				unindex (transactions.get (t.getHash ()));
+			}
+			if ( t.getInputs () != null )
+			{
+				for ( TransactionInput in : t.getInputs () )
+				{
+					Transaction conflict = spentBy.get (outpoint (in.getSourceHash (), in.getIx ()));
+					if ( conflict != null && unconfirmed.remove (conflict.getHash ()) != null )
+					{
+						log.debug ("Dropping unconfirmed " + conflict.getHash () + " double spent by " + t.getHash ());
+						unindex (conflict);
+					}
+				}
+			}
+			t.setHeight (b.getHeight ());
+			index (t, position (b.getHeight (), ix++));
+		}
+	}
+
+	// transactions of blocks removed from the trunk are not returned to the unconfirmed
+	private void unindexBlock (Block b)
+	{
+		if ( b.getTransactions () == null )
+		{
+			return;
+		}
+		List<Transaction> reverse = new ArrayList<Transaction> (b.getTransactions ());
+		Collections.reverse (reverse);
+		for ( Transaction t : reverse )
+		{
+			unindex (t);
+		}
+		// unconfirmed spending the removed are no longer valid
+		Iterator<Transaction> i = unconfirmed.values ().iterator ();
+		while ( i.hasNext () )
+		{
+			Transaction t = i.next ();
+			for ( TransactionInput in : t.getInputs () )
+			{
+				if ( !transactions.containsKey (in.getSourceHash ()) )
+				{
+					i.remove ();
+					unindex (t);
+					break;
+				}
+			}
+		}
+	}
+
+	private static List<byte[]> pushedData (byte[] script)
+	{
+		List<byte[]> data = new ArrayList<byte[]> ();
+		try
+		{
+			for ( ScriptFormat.Token token : ScriptFormat.parse (script) )
+			{
+				if ( token.data != null && token.data.length > 0 )
+				{
+					data.add (token.data);
+				}
+			}
+		}
+		catch ( ValidationException e )
+		{
+			// non standard script, nothing to match
+		}
+		return data;
+	}
+
+	private void index (Transaction t, long position)
+	{
+		transactions.put (t.getHash (), t);
+		positions.put (t.getHash (), position);
+		if ( t.getOutputs () != null )
+		{
+			// outputs read from the wire do not know their transaction
+			long ix = 0;
+			for ( TransactionOutput o : t.getOutputs () )
+			{
+				o.setTxHash (t.getHash ());
+				o.setIx (ix++);
+				for ( byte[] data : pushedData (o.getScript ()) )
+				{
+					ByteVector key = new ByteVector (data);
+					List<Transaction> tl = outputData.get (key);
+					if ( tl == null )
+					{
+						tl = new ArrayList<Transaction> (1);
+						outputData.put (key, tl);
+					}
+					if ( tl.isEmpty () || tl.get (tl.size () - 1) != t )
+					{
+						tl.add (t);
+					}
+				}
+			}
+		}
+		if ( t.getInputs () != null )
+		{
+			for ( TransactionInput in : t.getInputs () )
+			{
+				if ( !in.getSourceHash ().equals (Hash.ZERO_HASH_STRING) )
+				{
+					spentBy.put (outpoint (in.getSourceHash (), in.getIx ()), t);
+				}
+			}
+		}
+	}
+
+	private void unindex (Transaction t)
+	{
+		if ( positions.remove (t.getHash ()) == null )
+		{
+			return;
+		}
+		transactions.remove (t.getHash ());
+		if ( t.getOutputs () != null )
+		{
+			for ( TransactionOutput o : t.getOutputs () )
+			{
+				for ( byte[] data : pushedData (o.getScript ()) )
+				{
+					ByteVector key = new ByteVector (data);
+					List<Transaction> tl = outputData.get (key);
+					if ( tl != null )
+					{
+						tl.remove (t);
+						if ( tl.isEmpty () )
+						{
+							outputData.remove (key);
+						}
+					}
+				}
+			}
+		}
+		if ( t.getInputs () != null )
+		{
+			for ( TransactionInput in : t.getInputs () )
+			{
+				String o = outpoint (in.getSourceHash (), in.getIx ());
+				if ( spentBy.get (o) == t )
+				{
+					spentBy.remove (o);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store an unconfirmed transaction.
+	 *
+	 * @return false if the transaction is already known
+	 * @throws ValidationException
+	 *             if it spends unknown or spent outputs
+	 */
+	public synchronized boolean addTransaction (Transaction t) throws ValidationException
+	{
+		if ( t.getHash () == null )
+		{
+			t.computeHash ();
+		}
+		if ( transactions.containsKey (t.getHash ()) )
+		{
+			return false;
+		}
+		if ( t.getInputs () == null || t.getOutputs () == null )
+		{
+			throw new ValidationException ("Transaction without inputs or outputs " + t.getHash ());
+		}
+		Set<String> spent = new HashSet<String> ();
+		for ( TransactionInput in : t.getInputs () )
+		{
+			Transaction source = transactions.get (in.getSourceHash ());
+			if ( source == null || source.getOutputs () == null || in.getIx () >= source.getOutputs ().size () )
+			{
+				throw new ValidationException ("Transaction " + t.getHash () + " spends unknown output " + in.getSourceHash () + ":" + in.getIx ());
+			}
+			String o = outpoint (in.getSourceHash (), in.getIx ());
+			if ( spentBy.containsKey (o) || !spent.add (o) )
+			{
+				throw new ValidationException ("Transaction " + t.getHash () + " double spends " + o);
+			}
+		}
+		unconfirmed.put (t.getHash (), t);
+		index (t, position (UNCONFIRMED, unconfirmedSequence++));
+		return true;
+	}
+
+	@Override
+	public void addEventListener (EventListener listener)
+	{
+		eventListeners.add (listener);
+	}
+
+	@Override
+	public void removeEventListener (EventListener listener)
+	{
+		eventListeners.remove (listener);
+	}
+
+	// listeners are called outside of the lock of the store, so that they may query it
+	@Override
+	public void sendTransaction (Transaction transaction) throws ValidationException
+	{
+		if ( addTransaction (transaction) )
+		{
+			for ( EventListener listener : eventListeners.getListeners () )
+			{
+				listener.transaction (transaction);
+			}
+		}
+	}
+
+	@Override
+	public void sendBlock (Block block) throws ValidationException
+	{
+		TrunkUpdateMessage update = addBlock (block);
+		if ( update != null )
+		{
+			for ( EventListener listener : eventListeners.getListeners () )
+			{
+				listener.trunkUpdate (update);
+			}
+		}
+	}
+
+	@Override
+	public void sendAlert (String alert, int severity)
+	{
+		for ( EventListener listener : eventListeners.getListeners () )
+		{
+			listener.alert (alert, severity);
+		}
+	}
+
+	@Override
+	public synchronized Block getBlock (String hash)
+	{
+		return blocks.get (hash);
+	}
+
+	/**
+	 * @return the block without transactions, or null if not known
+	 */
+	@Override
+	public synchronized Block getBlockHeader (String hash)
+	{
+		Block b = blocks.get (hash);
+		if ( b == null )
+		{
+			return null;
+		}
+		Block header = new Block ();
+		header.setHash (b.getHash ());
+		header.setVersion (b.getVersion ());
+		header.setPreviousHash (b.getPreviousHash ());
+		header.setMerkleRoot (b.getMerkleRoot ());
+		header.setCreateTime (b.getCreateTime ());
+		header.setDifficultyTarget (b.getDifficultyTarget ());
+		header.setNonce (b.getNonce ());
+		header.setHeight (b.getHeight ());
+		return header;
+	}
+
+	/**
+	 * @return a transaction of the trunk or unconfirmed, or null if not known
+	 */
+	@Override
+	public synchronized Transaction getTransaction (String hash)
+	{
+		return transactions.get (hash);
+	}
+
+	/**
+	 * @return the last block of the trunk, or null if empty
+	 */
+	public synchronized Block getTrunkTip ()
+	{
+		return trunk.isEmpty () ? null : trunk.get (trunk.size () - 1);
+	}
+
+	/**
+	 * Changes of the trunk since a block known to the caller.
+	 *
+	 * @param inventory
+	 *            - hashes of blocks known to the caller, the first stored is used
+	 * @return blocks removed from and added to the trunk since that block, or null if none of them is known
+	 */
+	@Override
+	public synchronized TrunkUpdateMessage catchUp (List<String> inventory)
+	{
+		for ( String hash : inventory )
+		{
+			Block b = blocks.get (hash);
+			if ( b != null )
+			{
+				List<Block> removed = new ArrayList<Block> ();
+				while ( !isOnTrunk (b) )
+				{
+					removed.add (b);
+					b = blocks.get (b.getPreviousHash ());
+				}
+				List<Block> added = new ArrayList<Block> (trunk.subList (b.getHeight () + 1, trunk.size ()));
+				return new TrunkUpdateMessage (added, removed);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Transactions with outputs that push any of the data, such as an address hash or a public key, and depending on the mode transactions
+	 * spending those outputs.
+	 *
+	 * @param after
+	 *            - only transactions of blocks created at or after this time, in milliseconds
+	 * @param utxo
+	 *            - only transactions with matching outputs not yet spent
+	 * @return transactions by their position
+	 */
+	@Override
+	public synchronized NavigableMap<Long, Transaction> scan (Collection<byte[]> match, UpdateMode mode, long after, boolean utxo)
+	{
+		Matcher matcher = new Matcher (mode);
+		for ( byte[] data : match )
+		{
+			matcher.add (new ByteVector (data));
+		}
+		return matcher.run (after, utxo);
+	}
+
+	/**
+	 * Transactions of the addresses of an account and transactions spending their outputs. Keys are derived beyond the highest key used
+	 * until lookAhead keys in sequence are unused.
+	 *
+	 * @param after
+	 *            - only transactions of blocks created at or after this time, in milliseconds
+	 * @param utxo
+	 *            - only transactions with outputs of the account not yet spent
+	 * @return transactions by their position
+	 */
+	@Override
+	public synchronized NavigableMap<Long, Transaction> scan (ExtendedKey master, int firstIndex, int lookAhead, long after, boolean utxo)
+			throws ValidationException
+	{
+		AccountMatcher matcher = new AccountMatcher (master, firstIndex, lookAhead);
+		matcher.extend (firstIndex);
+		return matcher.run (after, utxo);
+	}
+
+	private class Matcher
+	{
+		private final UpdateMode mode;
+		private final Set<ByteVector> seen = new HashSet<ByteVector> ();
+		private final ArrayDeque<ByteVector> work = new ArrayDeque<ByteVector> ();
+		private final Set<String> matchedOutputs = new HashSet<String> ();
+		private final NavigableMap<Long, Transaction> result = new TreeMap<Long, Transaction> ();
+
+		public Matcher (UpdateMode mode)
+		{
+			this.mode = mode;
+		}
+
+		public void add (ByteVector data)
+		{
+			if ( seen.add (data) )
+			{
+				work.add (data);
+			}
+		}
+
+		protected void matched (ByteVector data) throws ValidationException
+		{
+		}
+
+		public NavigableMap<Long, Transaction> run (long after, boolean utxo)
+		{
+			ByteVector data;
+			while ( (data = work.poll ()) != null )
+			{
+				List<Transaction> tl = outputData.get (data);
+				if ( tl == null )
+				{
+					continue;
+				}
+				try
+				{
+					matched (data);
+				}
+				catch ( ValidationException e )
+				{
+					log.error ("Can not derive key", e);
+				}
+				for ( Transaction t : tl )
+				{
+					result.put (positions.get (t.getHash ()), t);
+					long ix = 0;
+					for ( TransactionOutput o : t.getOutputs () )
+					{
+						if ( pushes (o.getScript (), data) )
+						{
+							String op = outpoint (t.getHash (), ix);
+							matchedOutputs.add (op);
+							Transaction spending = spentBy.get (op);
+							if ( spending != null && followSpend (o.getScript ()) )
+							{
+								result.put (positions.get (spending.getHash ()), spending);
+							}
+						}
+						++ix;
+					}
+				}
+			}
+			if ( utxo )
+			{
+				NavigableMap<Long, Transaction> unspent = new TreeMap<Long, Transaction> ();
+				for ( String op : matchedOutputs )
+				{
+					if ( !spentBy.containsKey (op) )
+					{
+						Transaction t = transactions.get (op.substring (0, op.indexOf (':')));
+						unspent.put (positions.get (t.getHash ()), t);
+					}
+				}
+				return filter (unspent, after);
+			}
+			return filter (result, after);
+		}
+
+		private boolean followSpend (byte[] script)
+		{
+			if ( mode == UpdateMode.all )
+			{
+				return true;
+			}
+			return mode == UpdateMode.keys && (ScriptFormat.isPayToKey (script) || ScriptFormat.isMultiSig (script));
+		}
+
+		private boolean pushes (byte[] script, ByteVector data)
+		{
+			for ( byte[] d : pushedData (script) )
+			{
+				if ( Arrays.equals (d, data.toByteArray ()) )
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private NavigableMap<Long, Transaction> filter (NavigableMap<Long, Transaction> found, long after)
+		{
+			if ( after > 0 )
+			{
+				Iterator<Map.Entry<Long, Transaction>> i = found.entrySet ().iterator ();
+				while ( i.hasNext () )
+				{
+					int height = height (i.next ().getKey ());
+					if ( height != UNCONFIRMED && trunk.get (height).getCreateTime () * 1000 < after )
+					{
+						i.remove ();
+					}
+				}
+			}
+			return found;
+		}
+	}
+
+	private class AccountMatcher extends Matcher
+	{
+		private final ExtendedKey master;
+		private final int lookAhead;
+		private final Map<ByteVector, Integer> keyIndex = new HashMap<ByteVector, Integer> ();
+		private int next;
+
+		public AccountMatcher (ExtendedKey master, int firstIndex, int lookAhead)
+		{
+			super (UpdateMode.all);
+			this.master = master;
+			this.lookAhead = lookAhead;
+			this.next = firstIndex;
+		}
+
+		// derive keys up to lookAhead beyond the index
+		public void extend (int index) throws ValidationException
+		{
+			for ( ; next < index + lookAhead; ++next )
+			{
+				ByteVector address = new ByteVector (master.getKey (next).getAddress ().toByteArray ());
+				keyIndex.put (address, next);
+				add (address);
+			}
+		}
+
+		@Override
+		protected void matched (ByteVector data) throws ValidationException
+		{
+			Integer index = keyIndex.get (data);
+			if ( index != null )
+			{
+				extend (index + 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.CAPACITY_OFFSET;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.EMPTY;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.HEADER;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.MAGIC;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.PADDING;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.POSITION_OFFSET;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.SEQUENCE_OFFSET;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.checksum;
+import static com.bitsofproof.supernode.api.MappedTopicPublisher.recordSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.ListenerRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * BCSAPI receiving the transaction, trunk and alert topics from the shared memory ring of a {@link MappedTopicPublisher} on the same host.
+ * Other requests are passed to a delegate, such as a {@link SocketServerConnector}, as the ring carries events from the server only.
+ * <p>
+ * A thread of the connector polls the ring and calls listeners in the order of events, decoding each event once for all listeners of its
+ * topic. Listeners must keep up with the publisher, events overwritten before they were read are lost and counted.
+ */
+public class MappedTopicConnector implements BCSAPI
+{
+	private static final Logger log = LoggerFactory.getLogger (MappedTopicConnector.class);
+
+	// polls spinning before the reader parks, and the longest park
+	private static final int SPIN = 100;
+	private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos (1);
+	// longest wait for a record to become visible once the position passed it
+	private static final long VISIBILITY_TIMEOUT = TimeUnit.SECONDS.toNanos (1);
+
+	private BCSAPI delegate;
+	private File file;
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private int capacity;
+	private long readPosition;
+	private long lastSequence;
+	private long waitingSince;
+	private Thread reader;
+	private volatile boolean running;
+	private final AtomicLong lost = new AtomicLong (0);
+
+	private final ListenerRegistry<TransactionListener> transactionListeners = new ListenerRegistry<TransactionListener> (
+			new TransactionListener[0]);
+	private final ListenerRegistry<TrunkListener> trunkListeners = new ListenerRegistry<TrunkListener> (new TrunkListener[0]);
+	private final ListenerRegistry<AlertListener> alertListeners = new ListenerRegistry<AlertListener> (new AlertListener[0]);
+
+	/**
+	 * BCSAPI serving requests other than topic listeners
+	 */
+	public void setDelegate (BCSAPI delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * file of the publisher's ring
+	 */
+	public void setFile (File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return number of events overwritten before they were read
+	 */
+	public long getLostEvents ()
+	{
+		return lost.get ();
+	}
+
+	public void init () throws IOException
+	{
+		raf = new RandomAccessFile (file, "r");
+		map = raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, raf.length ());
+		if ( map.capacity () < HEADER || map.getInt (0) != MAGIC )
+		{
+			raf.close ();
+			throw new IOException ("Not a topic ring " + file);
+		}
+		capacity = map.getInt (CAPACITY_OFFSET);
+		// only events published from now on, the sequence read first can only be behind the position
+		lastSequence = map.getLong (SEQUENCE_OFFSET);
+		readPosition = map.getLong (POSITION_OFFSET);
+		running = true;
+		reader = new Thread (new Runnable ()
+		{
+			@Override
+			public void run ()
+			{
+				read ();
+			}
+		}, "BCSAPI mapped topic reader");
+		reader.setDaemon (true);
+		reader.start ();
+		log.debug ("Reading topics from " + file + " at " + readPosition);
+	}
+
+	public void destroy ()
+	{
+		running = false;
+		LockSupport.unpark (reader);
+		try
+		{
+			reader.join (1000);
+			raf.close ();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread ().interrupt ();
+		}
+		catch ( IOException e )
+		{
+		}
+	}
+
+	private void read ()
+	{
+		int idle = 0;
+		while ( running )
+		{
+			if ( poll () )
+			{
+				idle = 0;
+			}
+			else if ( ++idle < SPIN )
+			{
+				Thread.yield ();
+			}
+			else
+			{
+				LockSupport.parkNanos (Math.min (MAX_PARK, (idle - SPIN + 1) * 10000L));
+			}
+		}
+	}
+
+	/**
+	 * @return true if the read position advanced
+	 */
+	private boolean poll ()
+	{
+		long written = map.getLong (POSITION_OFFSET);
+		if ( written == readPosition )
+		{
+			return false;
+		}
+		if ( written < readPosition || written - readPosition > capacity )
+		{
+			skipTo (written, "overwritten");
+			return true;
+		}
+		int offset = (int) (readPosition & (capacity - 1));
+		int length = map.getInt (HEADER + offset);
+		boolean padding = length == PADDING;
+		if ( padding )
+		{
+			length = 0;
+		}
+		if ( length >= 0 && recordSize (length) <= capacity / 2 && offset + recordSize (length) <= capacity )
+		{
+			byte[] record = padding ? EMPTY : new byte[length];
+			ByteBuffer b = map.duplicate ();
+			b.position (HEADER + offset + 4);
+			long position = b.getLong ();
+			b.get (record);
+			int check = b.getInt ();
+			if ( map.getLong (POSITION_OFFSET) - readPosition > capacity )
+			{
+				skipTo (map.getLong (POSITION_OFFSET), "overwritten while read");
+				return true;
+			}
+			// a record or padding of the previous round of the ring if not yet overwritten as far as this thread sees
+			if ( position == readPosition && check == checksum (position, record) )
+			{
+				if ( padding )
+				{
+					readPosition += capacity - offset;
+					waitingSince = 0;
+					return true;
+				}
+				try
+				{
+					BCSAPIMessage.Frame frame = BCSAPIMessage.Frame.parseFrom (record);
+					if ( frame.getId () > lastSequence + 1 )
+					{
+						lost.addAndGet (frame.getId () - lastSequence - 1);
+					}
+					lastSequence = frame.getId ();
+					readPosition += recordSize (length);
+					waitingSince = 0;
+					deliver (frame.getDestination (), frame.getBody ().toByteArray ());
+					return true;
+				}
+				catch ( InvalidProtocolBufferException e )
+				{
+					log.error ("Malformed record in " + file, e);
+				}
+			}
+		}
+		// the position is ahead of the record as seen here, wait for the record to appear
+		long now = System.nanoTime ();
+		if ( waitingSince == 0 )
+		{
+			waitingSince = now;
+		}
+		else if ( now - waitingSince > VISIBILITY_TIMEOUT )
+		{
+			skipTo (written, "unreadable");
+		}
+		return false;
+	}
+
+	// events skipped are counted by the gap of sequence numbers at the next event read
+	private void skipTo (long written, String reason)
+	{
+		log.warn ("Skipping " + reason + " events of " + file);
+		readPosition = written;
+		waitingSince = 0;
+	}
+
+	private void deliver (String topic, byte[] body)
+	{
+		try
+		{
+			if ( topic.equals ("transaction") && !transactionListeners.isEmpty () )
+			{
+				Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
+				t.computeHash ();
+				for ( TransactionListener listener : transactionListeners.getListeners () )
+				{
+					listener.process (t);
+				}
+			}
+			else if ( topic.equals ("trunk") && !trunkListeners.isEmpty () )
+			{
+				TrunkUpdateMessage tu = TrunkUpdateMessage.fromProtobuf (BCSAPIMessage.TrunkUpdate.parseFrom (body));
+				computeHashes (tu.getRemoved ());
+				computeHashes (tu.getAdded ());
+				for ( TrunkListener listener : trunkListeners.getListeners () )
+				{
+					listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
+				}
+			}
+			else if ( topic.equals ("alert") && !alertListeners.isEmpty () )
+			{
+				BCSAPIMessage.Alert alert = BCSAPIMessage.Alert.parseFrom (body);
+				for ( AlertListener listener : alertListeners.getListeners () )
+				{
+					listener.alert (alert.getAlert (), alert.getSeverity ());
+				}
+			}
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			log.error ("Malformed " + topic + " message", e);
+		}
+		catch ( Exception e )
+		{
+			log.error ("Listener failed on " + topic + " message", e);
+		}
+	}
+
+	private static void computeHashes (List<Block> blocks)
+	{
+		if ( blocks != null )
+		{
+			for ( Block b : blocks )
+			{
+				b.computeHash ();
+			}
+		}
+	}
+
+	@Override
+	public void addAlertListener (AlertListener listener) throws BCSAPIException
+	{
+		alertListeners.add (listener);
+	}
+
+	@Override
+	public void removeAlertListener (AlertListener listener)
+	{
+		alertListeners.remove (listener);
+	}
+
+	@Override
+	public void registerTransactionListener (TransactionListener listener) throws BCSAPIException
+	{
+		transactionListeners.add (listener);
+	}
+
+	@Override
+	public void removeTransactionListener (TransactionListener listener)
+	{
+		transactionListeners.remove (listener);
+	}
+
+	@Override
+	public void registerTrunkListener (TrunkListener listener) throws BCSAPIException
+	{
+		trunkListeners.add (listener);
+	}
+
+	@Override
+	public void removeTrunkListener (TrunkListener listener)
+	{
+		trunkListeners.remove (listener);
+	}
+
+	@Override
+	public long ping (long nonce) throws BCSAPIException
+	{
+		return delegate.ping (nonce);
+	}
+
+	@Override
+	public boolean isProduction () throws BCSAPIException
+	{
+		return delegate.isProduction ();
+	}
+
+	@Override
+	public Block getBlockHeader (String hash) throws BCSAPIException
+	{
+		return delegate.getBlockHeader (hash);
+	}
+
+	@Override
+	public Block getBlock (String hash) throws BCSAPIException
+	{
+		return delegate.getBlock (hash);
+	}
+
+	@Override
+	public Transaction getTransaction (String hash) throws BCSAPIException
+	{
+		return delegate.getTransaction (hash);
+	}
+
+	@Override
+	public void getTransactions (List<String> hashes, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.getTransactions (hashes, listener);
+	}
+
+	@Override
+	public void getBlockHeaders (List<String> hashes, BlockListener listener) throws BCSAPIException
+	{
+		delegate.getBlockHeaders (hashes, listener);
+	}
+
+	@Override
+	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	{
+		delegate.sendTransaction (transaction);
+	}
+
+	@Override
+	public void sendBlock (Block block) throws BCSAPIException
+	{
+		delegate.sendBlock (block);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanTransactionsForAddresses (addresses, mode, after, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanTransactionsForAddresses (addresses, mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanTransactions (master, firstIndex, lookAhead, after, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanTransactions (master, firstIndex, lookAhead, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanUTXOForAddresses (addresses, mode, after, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanUTXOForAddresses (addresses, mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		delegate.scanUTXO (master, firstIndex, lookAhead, after, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		delegate.scanUTXO (master, firstIndex, lookAhead, after, resume, listener);
+	}
+
+	@Override
+	public void catchUp (String hash, TrunkListener listener) throws BCSAPIException
+	{
+		delegate.catchUp (hash, listener);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Publishes the topics of a {@link BCSAPIHandler} to a ring buffer in a memory mapped file, so that clients on the same host read every
+ * event from one copy in shared memory, see {@link MappedTopicConnector}. Events are written once, whether there are readers or not, and
+ * readers do not hold back the writer: a reader that falls behind by more than the ring loses events.
+ * <p>
+ * The file starts with a header of {@link #HEADER} bytes: magic number, capacity of the ring, the write position, that is the count of
+ * bytes ever written, and the sequence number of the last event. Events follow as {@link BCSAPIMessage.Frame} with the topic as
+ * destination and the sequence number as id, each preceded by its length and its position in the ring, followed by a checksum of both,
+ * and aligned to 16 bytes. The position tells readers a new record from one of the previous round of the ring. A record that does not
+ * fit before the end of the ring is written at its start, after a padding record of {@link #PADDING} length, its position and checksum.
+ */
+public class MappedTopicPublisher
+{
+	private static final Logger log = LoggerFactory.getLogger (MappedTopicPublisher.class);
+
+	static final int MAGIC = 0x42435341;
+	static final int HEADER = 64;
+	static final int CAPACITY_OFFSET = 4;
+	static final int POSITION_OFFSET = 8;
+	static final int SEQUENCE_OFFSET = 16;
+	static final int PADDING = -1;
+	static final byte[] EMPTY = new byte[0];
+
+	private BCSAPIHandler handler;
+	private File file;
+	private int capacity = 64 * 1024 * 1024;
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private long position;
+	private long sequence;
+
+	private final BCSAPIHandler.EventListener writer = new BCSAPIHandler.EventListener ()
+	{
+		@Override
+		public void transaction (Transaction t)
+		{
+			write ("transaction", t.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void trunkUpdate (TrunkUpdateMessage update)
+		{
+			write ("trunk", update.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void alert (String alert, int severity)
+		{
+			BCSAPIMessage.Alert.Builder builder = BCSAPIMessage.Alert.newBuilder ();
+			builder.setBcsapiversion (1);
+			builder.setAlert (alert);
+			builder.setSeverity (severity);
+			write ("alert", builder.build ().toByteArray ());
+		}
+	};
+
+	public void setHandler (BCSAPIHandler handler)
+	{
+		this.handler = handler;
+	}
+
+	public void setFile (File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * bytes of the ring, rounded to a power of two. An event larger than half of it is not published.
+	 */
+	public void setCapacity (int capacity)
+	{
+		this.capacity = Integer.highestOneBit (Math.max (capacity - 1, 1024)) << 1;
+	}
+
+	public void init () throws IOException
+	{
+		raf = new RandomAccessFile (file, "rw");
+		map = raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity);
+		if ( map.getInt (0) == MAGIC && map.getInt (CAPACITY_OFFSET) == capacity )
+		{
+			// continue the ring, so that readers attached to it keep reading
+			position = map.getLong (POSITION_OFFSET);
+			sequence = map.getLong (SEQUENCE_OFFSET);
+		}
+		else
+		{
+			map.putLong (POSITION_OFFSET, 0);
+			map.putLong (SEQUENCE_OFFSET, 0);
+			map.putInt (CAPACITY_OFFSET, capacity);
+			map.putInt (0, MAGIC);
+			position = 0;
+			sequence = 0;
+		}
+		log.debug ("Publishing topics to " + file + " at " + position);
+		handler.addEventListener (writer);
+	}
+
+	public void destroy ()
+	{
+		handler.removeEventListener (writer);
+		try
+		{
+			raf.close ();
+		}
+		catch ( IOException e )
+		{
+		}
+	}
+
+	private synchronized void write (String topic, byte[] body)
+	{
+		BCSAPIMessage.Frame.Builder builder = BCSAPIMessage.Frame.newBuilder ();
+		builder.setId (++sequence);
+		builder.setDestination (topic);
+		builder.setBody (ByteString.copyFrom (body));
+		byte[] record = builder.build ().toByteArray ();
+		int size = recordSize (record.length);
+		if ( size > capacity / 2 )
+		{
+			log.error ("Can not publish " + topic + " message of " + record.length + " bytes to " + file);
+			return;
+		}
+		int offset = (int) (position & (capacity - 1));
+		ByteBuffer b = map.duplicate ();
+		if ( offset + size > capacity )
+		{
+			// there is room for it as records are aligned to its size
+			b.position (HEADER + offset);
+			b.putInt (PADDING);
+			b.putLong (position);
+			b.putInt (checksum (position, EMPTY));
+			position += capacity - offset;
+			offset = 0;
+		}
+		b.position (HEADER + offset);
+		b.putInt (record.length);
+		b.putLong (position);
+		b.put (record);
+		map.putInt (HEADER + offset + 12 + record.length, checksum (position, record));
+		// readers trust the position only with the record's checksum, as the order of writes to the map is not guaranteed for them
+		position += size;
+		map.putLong (SEQUENCE_OFFSET, sequence);
+		map.putLong (POSITION_OFFSET, position);
+	}
+
+	static int recordSize (int length)
+	{
+		return (length + 16 + 15) & ~15;
+	}
+
+	static int checksum (long position, byte[] record)
+	{
+		CRC32 crc = new CRC32 ();
+		crc.update (ByteBuffer.allocate (8).putLong (position).array ());
+		crc.update (record);
+		return (int) crc.getValue ();
+	}
+}
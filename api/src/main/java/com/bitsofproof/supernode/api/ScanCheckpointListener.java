@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+/**
+ * Implemented by a scan listener or subscriber that wants to resume the scan if interrupted. Checkpoints are sent by servers replying in
+ * chunks.
+ */
+public interface ScanCheckpointListener
+{
+	/**
+	 * called once all transactions up to the checkpoint were processed
+	 * 
+	 * @param checkpoint
+	 *            - pass to the scan to continue after this point
+	 */
+	public void checkpoint (String checkpoint);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+/**
+ * Handle of an asynchronous scan given to its {@link TransactionSubscriber}
+ */
+public interface ScanSubscription
+{
+	/**
+	 * allow delivery of n more transactions to the subscriber
+	 *
+	 * @param n
+	 *            - positive, Long.MAX_VALUE for unbounded delivery
+	 */
+	public void request (long n);
+
+	/**
+	 * stop delivery, no further callbacks will be made once the current one returned
+	 */
+	public void cancel ();
+}
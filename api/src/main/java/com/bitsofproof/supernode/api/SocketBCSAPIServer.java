@@ -0,0 +1,516 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.TaskExecutors;
+import com.bitsofproof.supernode.common.ValidationException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * BCSAPI server answering {@link SocketServerConnector} over TCP from a {@link BCSAPIHandler}. Requests and replies are the messages of the
+ * JMS protocol in {@link BCSAPIMessage.Frame} envelopes, replies carry the id of their request. Clients subscribe to the transaction, trunk
+ * and alert topics, that are pushed to them with id 0.
+ * <p>
+ * Scans always reply in chunks of transactions. There is no credit, a scan waits while replies to the connection are not yet written.
+ */
+public class SocketBCSAPIServer
+{
+	private static final Logger log = LoggerFactory.getLogger (SocketBCSAPIServer.class);
+
+	private static final List<String> TOPICS = Collections.unmodifiableList (Arrays.asList ("transaction", "trunk", "alert"));
+
+	private BCSAPIHandler handler;
+	private InetSocketAddress address = new InetSocketAddress ("localhost", 0);
+	private boolean virtualThreads = false;
+	private int scanChunkSize = 100;
+	private long maxPendingBytes = 4 * 1024 * 1024;
+
+	private ServerSocketChannel server;
+	private FrameSelector selector;
+	private ExecutorService executor;
+	private final Map<String, RequestHandler> handlers = new HashMap<String, RequestHandler> ();
+	private final Map<FrameSelector.Connection, Set<String>> subscriptions = new ConcurrentHashMap<FrameSelector.Connection, Set<String>> ();
+
+	public void setHandler (BCSAPIHandler handler)
+	{
+		this.handler = handler;
+	}
+
+	public BCSAPIHandler getHandler ()
+	{
+		return handler;
+	}
+
+	/**
+	 * address to listen on, the default is an ephemeral port of the loopback interface
+	 */
+	public void setAddress (InetSocketAddress address)
+	{
+		this.address = address;
+	}
+
+	/**
+	 * @return address listened on, after init
+	 */
+	public InetSocketAddress getAddress ()
+	{
+		return (InetSocketAddress) server.socket ().getLocalSocketAddress ();
+	}
+
+	/**
+	 * serve requests on virtual threads if the JVM supports them, set before init
+	 */
+	public void setVirtualThreads (boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * transactions in a reply chunk of a scan, if the request does not set it
+	 */
+	public void setScanChunkSize (int scanChunkSize)
+	{
+		this.scanChunkSize = scanChunkSize;
+	}
+
+	/**
+	 * bytes of replies queued to a connection before a scan waits for the client to read them
+	 */
+	public void setMaxPendingBytes (long maxPendingBytes)
+	{
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	private interface RequestHandler
+	{
+		/**
+		 * @param body
+		 *            - request body or null if empty
+		 */
+		public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException, InvalidProtocolBufferException,
+				ValidationException, InterruptedException;
+	}
+
+	private final BCSAPIHandler.EventListener publisher = new BCSAPIHandler.EventListener ()
+	{
+		@Override
+		public void transaction (Transaction t)
+		{
+			publish ("transaction", t.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void trunkUpdate (TrunkUpdateMessage update)
+		{
+			publish ("trunk", update.toProtobuf ().toByteArray ());
+		}
+
+		@Override
+		public void alert (String alert, int severity)
+		{
+			BCSAPIMessage.Alert.Builder builder = BCSAPIMessage.Alert.newBuilder ();
+			builder.setBcsapiversion (1);
+			builder.setAlert (alert);
+			builder.setSeverity (severity);
+			publish ("alert", builder.build ().toByteArray ());
+		}
+	};
+
+	public void init () throws IOException
+	{
+		log.debug ("Initialize socket BCSAPI server");
+		if ( handler == null )
+		{
+			handler = new LocalBlockStore ();
+		}
+		registerHandlers ();
+		executor = TaskExecutors.newTaskExecutor ("BCSAPI socket server", virtualThreads);
+		selector = new FrameSelector ("BCSAPI socket server selector", new FrameSelector.FrameHandler ()
+		{
+			@Override
+			public void accepted (FrameSelector.Connection connection)
+			{
+				subscriptions.put (connection, Collections.newSetFromMap (new ConcurrentHashMap<String, Boolean> ()));
+			}
+
+			@Override
+			public void frame (FrameSelector.Connection connection, BCSAPIMessage.Frame frame)
+			{
+				dispatch (connection, frame);
+			}
+
+			@Override
+			public void closed (FrameSelector.Connection connection)
+			{
+				subscriptions.remove (connection);
+			}
+		});
+		server = ServerSocketChannel.open ();
+		server.socket ().bind (address);
+		selector.listen (server);
+		selector.start ();
+		handler.addEventListener (publisher);
+		log.debug ("Socket BCSAPI server listening on " + getAddress ());
+	}
+
+	public void destroy ()
+	{
+		handler.removeEventListener (publisher);
+		selector.close ();
+		executor.shutdownNow ();
+	}
+
+	private void registerHandlers ()
+	{
+		handlers.put ("ping", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				reply (connection, id, body);
+			}
+		});
+		handlers.put ("headerRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				Block b = handler.getBlockHeader (hashes (body).get (0));
+				reply (connection, id, b == null ? null : b.toProtobuf ().toByteArray ());
+			}
+		});
+		handlers.put ("blockRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				Block b = handler.getBlock (hashes (body).get (0));
+				reply (connection, id, b == null ? null : b.toProtobuf ().toByteArray ());
+			}
+		});
+		handlers.put ("transactionRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				Transaction t = handler.getTransaction (hashes (body).get (0));
+				reply (connection, id, t == null ? null : t.toProtobuf ().toByteArray ());
+			}
+		});
+		handlers.put ("transactionsRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				for ( String hash : hashes (body) )
+				{
+					Transaction t = handler.getTransaction (hash);
+					if ( t != null )
+					{
+						reply (connection, id, t.toProtobuf ().toByteArray ());
+					}
+				}
+				reply (connection, id, null);
+			}
+		});
+		handlers.put ("headersRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				for ( String hash : hashes (body) )
+				{
+					Block b = handler.getBlockHeader (hash);
+					if ( b != null )
+					{
+						reply (connection, id, b.toProtobuf ().toByteArray ());
+					}
+				}
+				reply (connection, id, null);
+			}
+		});
+		handlers.put ("catchUpRequest", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				TrunkUpdateMessage tu = handler.catchUp (hashes (body));
+				reply (connection, id, tu == null ? null : tu.toProtobuf ().toByteArray ());
+			}
+		});
+		handlers.put ("matchRequest", matchHandler (false));
+		handlers.put ("utxoMatchRequest", matchHandler (true));
+		handlers.put ("accountRequest", accountHandler (false));
+		handlers.put ("utxoAccountRequest", accountHandler (true));
+		handlers.put ("newTransaction", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				Transaction t = Transaction.fromProtobuf (BCSAPIMessage.Transaction.parseFrom (body));
+				t.computeHash ();
+				try
+				{
+					handler.sendTransaction (t);
+					reply (connection, id, null);
+				}
+				catch ( ValidationException e )
+				{
+					reject (connection, id, e);
+				}
+			}
+		});
+		handlers.put ("newBlock", new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException
+			{
+				Block b = Block.fromProtobuf (BCSAPIMessage.Block.parseFrom (body));
+				b.computeHash ();
+				try
+				{
+					handler.sendBlock (b);
+					reply (connection, id, null);
+				}
+				catch ( ValidationException e )
+				{
+					reject (connection, id, e);
+				}
+			}
+		});
+	}
+
+	private RequestHandler matchHandler (final boolean utxo)
+	{
+		return new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException, InterruptedException
+			{
+				BCSAPIMessage.ExactMatchRequest request = BCSAPIMessage.ExactMatchRequest.parseFrom (body);
+				List<byte[]> match = new ArrayList<byte[]> (request.getMatchCount ());
+				for ( ByteString d : request.getMatchList () )
+				{
+					match.add (d.toByteArray ());
+				}
+				NavigableMap<Long, Transaction> found = handler.scan (match, UpdateMode.values ()[request.getMode ()], request.getAfter (), utxo);
+				stream (found, request.getChunkSize (), request.hasResume () ? request.getResume ().toByteArray () : null, connection, id);
+			}
+		};
+	}
+
+	private RequestHandler accountHandler (final boolean utxo)
+	{
+		return new RequestHandler ()
+		{
+			@Override
+			public void handle (byte[] body, FrameSelector.Connection connection, long id) throws IOException, ValidationException,
+					InterruptedException
+			{
+				BCSAPIMessage.AccountRequest request = BCSAPIMessage.AccountRequest.parseFrom (body);
+				ExtendedKey master = ExtendedKey.parse (request.getPublicKey ());
+				NavigableMap<Long, Transaction> found =
+						handler.scan (master, request.getFirstIndex (), request.getLookAhead (), request.getAfter (), utxo);
+				stream (found, request.getChunkSize (), request.hasResume () ? request.getResume ().toByteArray () : null, connection, id);
+			}
+		};
+	}
+
+	/**
+	 * Reply to a scan with chunks of transactions, the checkpoint of a chunk is the position of its last transaction.
+	 */
+	private void stream (NavigableMap<Long, Transaction> found, int chunkSize, byte[] resume, FrameSelector.Connection connection, long id)
+			throws IOException, InterruptedException
+	{
+		if ( resume != null && resume.length == 8 )
+		{
+			found = found.tailMap (ByteBuffer.wrap (resume).getLong (), false);
+		}
+		if ( chunkSize <= 0 )
+		{
+			chunkSize = scanChunkSize;
+		}
+		Iterator<Map.Entry<Long, Transaction>> i = found.entrySet ().iterator ();
+		while ( i.hasNext () )
+		{
+			if ( !connection.awaitPending (maxPendingBytes) )
+			{
+				log.debug ("Abandon scan " + id + " of closed connection");
+				return;
+			}
+			BCSAPIMessage.TransactionChunk.Builder builder = BCSAPIMessage.TransactionChunk.newBuilder ();
+			builder.setBcsapiversion (1);
+			long last = 0;
+			for ( int n = 0; n < chunkSize && i.hasNext (); ++n )
+			{
+				Map.Entry<Long, Transaction> e = i.next ();
+				builder.addTransactions (e.getValue ().toProtobuf ());
+				last = e.getKey ();
+			}
+			builder.setCheckpoint (ByteString.copyFrom (ByteBuffer.allocate (8).putLong (last).array ()));
+			reply (connection, id, builder.build ().toByteArray ());
+		}
+		reply (connection, id, null);
+	}
+
+	private static List<String> hashes (byte[] body) throws InvalidProtocolBufferException
+	{
+		BCSAPIMessage.Hash request = BCSAPIMessage.Hash.parseFrom (body);
+		List<String> hashes = new ArrayList<String> (request.getHashCount ());
+		for ( ByteString h : request.getHashList () )
+		{
+			hashes.add (new Hash (h.toByteArray ()).toString ());
+		}
+		return hashes;
+	}
+
+	// subscriptions are served on the selector thread, requests on the executor as the handler may block
+	private void dispatch (final FrameSelector.Connection connection, BCSAPIMessage.Frame frame)
+	{
+		final String name = frame.getDestination ();
+		final long id = frame.getId ();
+		if ( name.equals ("subscribe") || name.equals ("unsubscribe") )
+		{
+			String topic = frame.getBody ().toStringUtf8 ();
+			Set<String> topics = subscriptions.get (connection);
+			if ( topics != null && TOPICS.contains (topic) )
+			{
+				if ( name.equals ("subscribe") )
+				{
+					topics.add (topic);
+				}
+				else
+				{
+					topics.remove (topic);
+				}
+			}
+			return;
+		}
+		final RequestHandler requestHandler = handlers.get (name);
+		if ( requestHandler == null )
+		{
+			log.error ("Unknown request " + name);
+			return;
+		}
+		final byte[] body = frame.hasBody () ? frame.getBody ().toByteArray () : null;
+		try
+		{
+			executor.execute (new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					try
+					{
+						requestHandler.handle (body, connection, id);
+					}
+					catch ( InvalidProtocolBufferException e )
+					{
+						log.error ("Malformed request on " + name, e);
+					}
+					catch ( IOException e )
+					{
+						log.trace ("Can not reply to request on " + name, e);
+					}
+					catch ( ValidationException e )
+					{
+						log.error ("Can not serve request on " + name, e);
+					}
+					catch ( InterruptedException e )
+					{
+						Thread.currentThread ().interrupt ();
+					}
+				}
+			});
+		}
+		catch ( RejectedExecutionException e )
+		{
+			log.trace ("Discarding request on " + name + " after destroy");
+		}
+	}
+
+	private static void reject (FrameSelector.Connection connection, long id, ValidationException e) throws IOException
+	{
+		BCSAPIMessage.ExceptionMessage.Builder builder = BCSAPIMessage.ExceptionMessage.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.addMessage (e.getMessage ());
+		reply (connection, id, builder.build ().toByteArray ());
+	}
+
+	/**
+	 * @param body
+	 *            - null for an empty message, that ends a stream of replies or tells success
+	 */
+	private static void reply (FrameSelector.Connection connection, long id, byte[] body) throws IOException
+	{
+		connection.send (frame (id, "", body));
+	}
+
+	private void publish (String topic, byte[] body)
+	{
+		BCSAPIMessage.Frame frame = frame (0, topic, body);
+		for ( Map.Entry<FrameSelector.Connection, Set<String>> e : subscriptions.entrySet () )
+		{
+			if ( e.getValue ().contains (topic) )
+			{
+				try
+				{
+					e.getKey ().send (frame);
+				}
+				catch ( IOException ex )
+				{
+					log.trace ("Can not publish on " + topic + " to closed connection");
+				}
+			}
+		}
+	}
+
+	static BCSAPIMessage.Frame frame (long id, String destination, byte[] body)
+	{
+		BCSAPIMessage.Frame.Builder builder = BCSAPIMessage.Frame.newBuilder ();
+		builder.setId (id);
+		builder.setDestination (destination);
+		if ( body != null )
+		{
+			builder.setBody (ByteString.copyFrom (body));
+		}
+		return builder.build ();
+	}
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static com.bitsofproof.supernode.api.BCSAPIMessages.GENESIS;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeBlock;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeChunk;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeTransaction;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.decodeTrunkUpdate;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.hashRequest;
+import static com.bitsofproof.supernode.api.BCSAPIMessages.toMatch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.ListenerRegistry;
+import com.bitsofproof.supernode.common.TaskExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * BCSAPI over a TCP connection to a {@link SocketBCSAPIServer}, without a message broker. Requests are multiplexed on the connection by
+ * their id and may be issued from any number of threads. Topic listeners are registered as with {@link JMSServerConnector}, the server pushes
+ * only topics with listeners, and they are called in the order of events on a thread of their own.
+ */
+public class SocketServerConnector implements BCSAPI
+{
+	private static final Logger log = LoggerFactory.getLogger (SocketServerConnector.class);
+
+	// markers of an empty reply and of a lost connection in reply queues
+	private static final byte[] EMPTY = new byte[0];
+	private static final byte[] CLOSED = new byte[0];
+
+	private InetSocketAddress address;
+	private long timeout = 10 * 60 * 1000;
+	private int scanChunkSize = 100;
+	private int replyQueueSize = 16;
+
+	private volatile Boolean production = null;
+
+	private FrameSelector selector;
+	private FrameSelector.Connection connection;
+	private ExecutorService listenerExecutor;
+	private final AtomicLong requestSequence = new AtomicLong (0);
+	private final ConcurrentHashMap<Long, BlockingQueue<byte[]>> pendingReplies = new ConcurrentHashMap<Long, BlockingQueue<byte[]>> ();
+	// reply queues a thread waits on, reading goes on while any of them is empty
+	private final Set<BlockingQueue<byte[]>> waiting = Collections.newSetFromMap (new ConcurrentHashMap<BlockingQueue<byte[]>, Boolean> ());
+
+	private final ListenerRegistry<TransactionListener> transactionListeners = new ListenerRegistry<TransactionListener> (
+			new TransactionListener[0]);
+	private final ListenerRegistry<TrunkListener> trunkListeners = new ListenerRegistry<TrunkListener> (new TrunkListener[0]);
+	private final ListenerRegistry<AlertListener> alertListeners = new ListenerRegistry<AlertListener> (new AlertListener[0]);
+
+	public void setAddress (InetSocketAddress address)
+	{
+		this.address = address;
+	}
+
+	/**
+	 * timeout of requests in milliseconds. For scans and batch requests this is the longest wait for the next reply.
+	 */
+	public void setTimeout (long timeout)
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * transactions in a reply chunk of a scan
+	 */
+	public void setScanChunkSize (int scanChunkSize)
+	{
+		this.scanChunkSize = scanChunkSize;
+	}
+
+	/**
+	 * replies received but not yet processed for a request, before reading from the connection pauses until the request catches up. The
+	 * server then waits with its scans, but replies and topic messages to others wait too, unless a thread waits for a reply meanwhile.
+	 */
+	public void setReplyQueueSize (int replyQueueSize)
+	{
+		this.replyQueueSize = replyQueueSize;
+	}
+
+	private interface ReplyProcessor
+	{
+		public void process (byte[] body) throws InvalidProtocolBufferException, BCSAPIException;
+	}
+
+	public void init () throws IOException
+	{
+		log.debug ("Initialize socket BCSAPI connector to " + address);
+		listenerExecutor = Executors.newSingleThreadExecutor (TaskExecutors.daemonThreads ("BCSAPI socket listener"));
+		selector = new FrameSelector ("BCSAPI socket connector", new FrameSelector.FrameHandler ()
+		{
+			@Override
+			public void accepted (FrameSelector.Connection connection)
+			{
+			}
+
+			@Override
+			public void frame (FrameSelector.Connection connection, BCSAPIMessage.Frame frame)
+			{
+				if ( frame.getId () == 0 )
+				{
+					onTopicMessage (frame.getDestination (), frame.getBody ().toByteArray ());
+					return;
+				}
+				BlockingQueue<byte[]> replies = pendingReplies.get (frame.getId ());
+				if ( replies != null )
+				{
+					replies.add (frame.hasBody () ? frame.getBody ().toByteArray () : EMPTY);
+					if ( replies.size () >= replyQueueSize && !othersWaiting (replies) )
+					{
+						connection.suspendReading ();
+					}
+				}
+				else
+				{
+					log.trace ("Reply to unknown or expired request " + frame.getId ());
+				}
+			}
+
+			@Override
+			public void closed (FrameSelector.Connection connection)
+			{
+				log.debug ("Connection to " + address + " closed");
+				for ( BlockingQueue<byte[]> replies : pendingReplies.values () )
+				{
+					replies.add (CLOSED);
+				}
+			}
+		});
+		connection = selector.register (SocketChannel.open (address));
+		selector.start ();
+	}
+
+	public void destroy ()
+	{
+		selector.close ();
+		listenerExecutor.shutdown ();
+	}
+
+	private long send (String destination, byte[] body, BlockingQueue<byte[]> replies) throws BCSAPIException
+	{
+		long id = requestSequence.incrementAndGet ();
+		if ( replies != null )
+		{
+			pendingReplies.put (id, replies);
+		}
+		try
+		{
+			connection.send (SocketBCSAPIServer.frame (replies == null ? 0 : id, destination, body));
+		}
+		catch ( IOException e )
+		{
+			pendingReplies.remove (id);
+			throw new BCSAPIException (e);
+		}
+		return id;
+	}
+
+	/**
+	 * @return reply body or null if empty
+	 */
+	private byte[] take (BlockingQueue<byte[]> replies) throws BCSAPIException
+	{
+		try
+		{
+			byte[] body = replies.poll ();
+			if ( body == null )
+			{
+				// the reply may be behind those of a request that is not processing them, as this thread might be its processor
+				waiting.add (replies);
+				try
+				{
+					connection.resumeReading ();
+					body = replies.poll (timeout, TimeUnit.MILLISECONDS);
+				}
+				finally
+				{
+					waiting.remove (replies);
+				}
+			}
+			else if ( replies.size () <= replyQueueSize / 2 && connection.isReadingSuspended () )
+			{
+				connection.resumeReading ();
+			}
+			if ( body == null )
+			{
+				throw new BCSAPIException ("timeout");
+			}
+			if ( body == CLOSED )
+			{
+				throw new BCSAPIException ("Connection to " + address + " closed");
+			}
+			return body == EMPTY ? null : body;
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread ().interrupt ();
+			throw new BCSAPIException (e);
+		}
+	}
+
+	private boolean othersWaiting (BlockingQueue<byte[]> replies)
+	{
+		for ( BlockingQueue<byte[]> other : waiting )
+		{
+			if ( other != replies && other.isEmpty () )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return replies received but not yet processed
+	 */
+	public int getQueuedReplies ()
+	{
+		int queued = 0;
+		for ( BlockingQueue<byte[]> replies : pendingReplies.values () )
+		{
+			queued += replies.size ();
+		}
+		return queued;
+	}
+
+	private byte[] synchronousRequest (String destination, byte[] body) throws BCSAPIException
+	{
+		BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]> ();
+		long id = send (destination, body, replies);
+		try
+		{
+			return take (replies);
+		}
+		finally
+		{
+			pendingReplies.remove (id);
+		}
+	}
+
+	// replies are processed on the calling thread until the empty reply that ends the stream
+	private void streamingRequest (String destination, byte[] body, ReplyProcessor processor) throws BCSAPIException
+	{
+		BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]> ();
+		long id = send (destination, body, replies);
+		try
+		{
+			byte[] reply;
+			while ( (reply = take (replies)) != null )
+			{
+				processor.process (reply);
+			}
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			throw new BCSAPIException (e);
+		}
+		finally
+		{
+			pendingReplies.remove (id);
+			// replies no longer processed should not hold the connection
+			if ( connection.isReadingSuspended () )
+			{
+				connection.resumeReading ();
+			}
+		}
+	}
+
+	private void onTopicMessage (final String topic, final byte[] body)
+	{
+		try
+		{
+			listenerExecutor.execute (new Runnable ()
+			{
+				@Override
+				public void run ()
+				{
+					try
+					{
+						if ( topic.equals ("transaction") )
+						{
+							Transaction t = decodeTransaction (body);
+							for ( TransactionListener listener : transactionListeners.getListeners () )
+							{
+								listener.process (t);
+							}
+						}
+						else if ( topic.equals ("trunk") )
+						{
+							TrunkUpdateMessage tu = decodeTrunkUpdate (body);
+							for ( TrunkListener listener : trunkListeners.getListeners () )
+							{
+								listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
+							}
+						}
+						else if ( topic.equals ("alert") )
+						{
+							BCSAPIMessage.Alert alert = BCSAPIMessage.Alert.parseFrom (body);
+							for ( AlertListener listener : alertListeners.getListeners () )
+							{
+								listener.alert (alert.getAlert (), alert.getSeverity ());
+							}
+						}
+					}
+					catch ( InvalidProtocolBufferException e )
+					{
+						log.error ("Malformed " + topic + " message", e);
+					}
+					catch ( Exception e )
+					{
+						log.error ("Listener failed on " + topic + " message", e);
+					}
+				}
+			});
+		}
+		catch ( RejectedExecutionException e )
+		{
+			log.trace ("Discarding " + topic + " message after destroy");
+		}
+	}
+
+	// the server pushes a topic while it has listeners here
+	private <L> void addTopicListener (String topic, ListenerRegistry<L> registry, L listener) throws BCSAPIException
+	{
+		synchronized ( registry )
+		{
+			boolean first = registry.isEmpty ();
+			registry.add (listener);
+			if ( first )
+			{
+				send ("subscribe", ByteString.copyFromUtf8 (topic).toByteArray (), null);
+			}
+		}
+	}
+
+	private <L> void removeTopicListener (String topic, ListenerRegistry<L> registry, L listener)
+	{
+		synchronized ( registry )
+		{
+			if ( registry.remove (listener) != null && registry.isEmpty () )
+			{
+				try
+				{
+					send ("unsubscribe", ByteString.copyFromUtf8 (topic).toByteArray (), null);
+				}
+				catch ( BCSAPIException e )
+				{
+					log.trace ("Can not unsubscribe " + topic, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public long ping (long nonce) throws BCSAPIException
+	{
+		BCSAPIMessage.Ping.Builder builder = BCSAPIMessage.Ping.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setNonce (nonce);
+		byte[] body = synchronousRequest ("ping", builder.build ().toByteArray ());
+		try
+		{
+			if ( body == null || BCSAPIMessage.Ping.parseFrom (body).getNonce () != nonce )
+			{
+				throw new BCSAPIException ("Incorrect echo nonce from ping");
+			}
+			return nonce;
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			throw new BCSAPIException (e);
+		}
+	}
+
+	@Override
+	public void addAlertListener (AlertListener listener) throws BCSAPIException
+	{
+		addTopicListener ("alert", alertListeners, listener);
+	}
+
+	@Override
+	public void removeAlertListener (AlertListener listener)
+	{
+		removeTopicListener ("alert", alertListeners, listener);
+	}
+
+	@Override
+	public boolean isProduction () throws BCSAPIException
+	{
+		if ( production != null )
+		{
+			return production;
+		}
+		return production = getBlockHeader (GENESIS) != null;
+	}
+
+	@Override
+	public Block getBlockHeader (String hash) throws BCSAPIException
+	{
+		return block (synchronousRequest ("headerRequest", hashRequest (hash)));
+	}
+
+	@Override
+	public Block getBlock (String hash) throws BCSAPIException
+	{
+		return block (synchronousRequest ("blockRequest", hashRequest (hash)));
+	}
+
+	@Override
+	public Transaction getTransaction (String hash) throws BCSAPIException
+	{
+		byte[] body = synchronousRequest ("transactionRequest", hashRequest (hash));
+		try
+		{
+			return decodeTransaction (body);
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			throw new BCSAPIException (e);
+		}
+	}
+
+	@Override
+	public void getTransactions (List<String> hashes, final TransactionListener listener) throws BCSAPIException
+	{
+		streamingRequest ("transactionsRequest", hashRequest (hashes), new ReplyProcessor ()
+		{
+			@Override
+			public void process (byte[] body) throws InvalidProtocolBufferException
+			{
+				listener.process (decodeTransaction (body));
+			}
+		});
+	}
+
+	@Override
+	public void getBlockHeaders (List<String> hashes, final BlockListener listener) throws BCSAPIException
+	{
+		streamingRequest ("headersRequest", hashRequest (hashes), new ReplyProcessor ()
+		{
+			@Override
+			public void process (byte[] body) throws InvalidProtocolBufferException
+			{
+				listener.process (decodeBlock (body));
+			}
+		});
+	}
+
+	@Override
+	public void sendTransaction (Transaction transaction) throws BCSAPIException
+	{
+		accept (synchronousRequest ("newTransaction", transaction.toProtobuf ().toByteArray ()));
+	}
+
+	@Override
+	public void sendBlock (Block block) throws BCSAPIException
+	{
+		accept (synchronousRequest ("newBlock", block.toProtobuf ().toByteArray ()));
+	}
+
+	// an empty reply means accepted, otherwise the reason of rejection
+	private static void accept (byte[] body) throws BCSAPIException
+	{
+		if ( body != null )
+		{
+			try
+			{
+				throw new BCSAPIException (BCSAPIMessage.ExceptionMessage.parseFrom (body).getMessage (0));
+			}
+			catch ( InvalidProtocolBufferException e )
+			{
+				throw new BCSAPIException (e);
+			}
+		}
+	}
+
+	@Override
+	public void registerTransactionListener (TransactionListener listener) throws BCSAPIException
+	{
+		addTopicListener ("transaction", transactionListeners, listener);
+	}
+
+	@Override
+	public void removeTransactionListener (TransactionListener listener)
+	{
+		removeTopicListener ("transaction", transactionListeners, listener);
+	}
+
+	@Override
+	public void registerTrunkListener (TrunkListener listener) throws BCSAPIException
+	{
+		addTopicListener ("trunk", trunkListeners, listener);
+	}
+
+	@Override
+	public void removeTrunkListener (TrunkListener listener)
+	{
+		removeTopicListener ("trunk", trunkListeners, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactionsForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanTransactions (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXOForAddresses (Set<Address> addresses, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		scanUTXO (toMatch (addresses), mode, after, resume, listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (match, mode, after, null, listener);
+	}
+
+	public void scanTransactions (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		streamingRequest ("matchRequest", matchRequest (match, mode, after, resume), chunkProcessor (listener));
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (match, mode, after, null, listener);
+	}
+
+	public void scanUTXO (Collection<byte[]> match, UpdateMode mode, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		streamingRequest ("utxoMatchRequest", matchRequest (match, mode, after, resume), chunkProcessor (listener));
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanTransactions (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanTransactions (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		streamingRequest ("accountRequest", accountRequest (master, firstIndex, lookAhead, after, resume), chunkProcessor (listener));
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, TransactionListener listener) throws BCSAPIException
+	{
+		scanUTXO (master, firstIndex, lookAhead, after, null, listener);
+	}
+
+	@Override
+	public void scanUTXO (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume, TransactionListener listener)
+			throws BCSAPIException
+	{
+		streamingRequest ("utxoAccountRequest", accountRequest (master, firstIndex, lookAhead, after, resume), chunkProcessor (listener));
+	}
+
+	@Override
+	public void catchUp (String hash, TrunkListener listener) throws BCSAPIException
+	{
+		byte[] body = synchronousRequest ("catchUpRequest", hashRequest (hash));
+		if ( body != null )
+		{
+			try
+			{
+				TrunkUpdateMessage tu = decodeTrunkUpdate (body);
+				listener.trunkUpdate (tu.getRemoved (), tu.getAdded ());
+			}
+			catch ( InvalidProtocolBufferException e )
+			{
+				throw new BCSAPIException (e);
+			}
+		}
+	}
+
+	private static ReplyProcessor chunkProcessor (final TransactionListener listener)
+	{
+		return new ReplyProcessor ()
+		{
+			@Override
+			public void process (byte[] body) throws InvalidProtocolBufferException
+			{
+				decodeChunk (body).deliver (listener);
+			}
+		};
+	}
+
+	private static Block block (byte[] body) throws BCSAPIException
+	{
+		try
+		{
+			return decodeBlock (body);
+		}
+		catch ( InvalidProtocolBufferException e )
+		{
+			throw new BCSAPIException (e);
+		}
+	}
+
+	private byte[] matchRequest (Collection<byte[]> match, UpdateMode mode, long after, String resume)
+	{
+		BCSAPIMessage.ExactMatchRequest.Builder builder = BCSAPIMessage.ExactMatchRequest.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setMode (mode.ordinal ());
+		for ( byte[] d : match )
+		{
+			builder.addMatch (ByteString.copyFrom (d));
+		}
+		if ( after != 0 )
+		{
+			builder.setAfter (after);
+		}
+		if ( resume != null )
+		{
+			builder.setResume (ByteString.copyFrom (ByteUtils.fromHex (resume)));
+		}
+		builder.setChunkSize (scanChunkSize);
+		return builder.build ().toByteArray ();
+	}
+
+	private byte[] accountRequest (ExtendedKey master, int firstIndex, int lookAhead, long after, String resume) throws BCSAPIException
+	{
+		if ( !master.isReadOnly () )
+		{
+			master = master.getReadOnly ();
+		}
+		BCSAPIMessage.AccountRequest.Builder builder = BCSAPIMessage.AccountRequest.newBuilder ();
+		builder.setBcsapiversion (1);
+		builder.setPublicKey (master.serialize (isProduction ()));
+		builder.setLookAhead (lookAhead);
+		// servers that predate firstIndex get the request they know
+		if ( firstIndex != 0 )
+		{
+			builder.setFirstIndex (firstIndex);
+		}
+		builder.setAfter (after);
+		if ( resume != null )
+		{
+			builder.setResume (ByteString.copyFrom (ByteUtils.fromHex (resume)));
+		}
+		builder.setChunkSize (scanChunkSize);
+		return builder.build ().toByteArray ();
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Persistent log of topic messages, each numbered in sequence, so that a client can replay events after a restart from the last one it
+ * processed instead of catching up and scanning again. Messages are stored as {@link BCSAPIMessage.Frame} with the topic as destination and
+ * the sequence number as id, preceded by their length and followed by their checksum. A torn record at the end of the log is discarded at
+ * open.
+ * <p>
+ * The log is split into segments named by the sequence number of their first message. A new segment is started once the current grew
+ * beyond the segment size, and the oldest segments are deleted beyond the number of segments kept.
+ */
+public class TopicEventLog
+{
+	private static final Logger log = LoggerFactory.getLogger (TopicEventLog.class);
+
+	private static final String SUFFIX = ".events";
+
+	/**
+	 * receives messages replayed from the log
+	 */
+	public interface EventHandler
+	{
+		public void event (long sequence, String topic, byte[] body);
+	}
+
+	private final File directory;
+	private final String name;
+	private long segmentSize = 64 * 1024 * 1024;
+	private int maxSegments = 4;
+	private boolean syncOnWrite = false;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long lastSequence;
+
+	public TopicEventLog (File directory, String name) throws IOException
+	{
+		this.directory = directory;
+		this.name = name;
+		open ();
+	}
+
+	/**
+	 * bytes of a segment before a new one is started
+	 */
+	public void setSegmentSize (long segmentSize)
+	{
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * number of segments kept, older are deleted
+	 */
+	public void setMaxSegments (int maxSegments)
+	{
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * force every message to disk before returning. Without this the log survives a crash of the process but not necessarily of the host.
+	 */
+	public void setSyncOnWrite (boolean syncOnWrite)
+	{
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/**
+	 * @return sequence number of the last message logged, 0 if none
+	 */
+	public synchronized long getLastSequence ()
+	{
+		return lastSequence;
+	}
+
+	/**
+	 * @return sequence number of the first message that can be replayed, or 0 if the log is empty
+	 */
+	public synchronized long getFirstSequence ()
+	{
+		File[] segments = segments ();
+		return segments.length == 0 || lastSequence == 0 ? 0 : Math.max (1, firstSequence (segments[0]));
+	}
+
+	private File[] segments ()
+	{
+		File[] segments = directory.listFiles (new FilenameFilter ()
+		{
+			@Override
+			public boolean accept (File dir, String n)
+			{
+				return n.startsWith (name + "-") && n.endsWith (SUFFIX);
+			}
+		});
+		if ( segments == null )
+		{
+			return new File[0];
+		}
+		// names are zero padded, so they sort by sequence
+		Arrays.sort (segments);
+		return segments;
+	}
+
+	private long firstSequence (File segment)
+	{
+		String n = segment.getName ();
+		return Long.parseLong (n.substring (name.length () + 1, n.length () - SUFFIX.length ()));
+	}
+
+	private File segment (long firstSequence)
+	{
+		return new File (directory, String.format ("%s-%020d%s", name, firstSequence, SUFFIX));
+	}
+
+	private void open () throws IOException
+	{
+		File[] segments = segments ();
+		File last = segments.length == 0 ? segment (1) : segments[segments.length - 1];
+		lastSequence = segments.length == 0 ? 0 : firstSequence (last) - 1;
+		file = new RandomAccessFile (last, "rw");
+		channel = file.getChannel ();
+		// find the end of the last segment, discard a torn record
+		long position = 0;
+		try (DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream (last))))
+		{
+			BCSAPIMessage.Frame frame;
+			while ( (frame = readRecord (in)) != null )
+			{
+				lastSequence = frame.getId ();
+				position += frame.getSerializedSize () + 8;
+			}
+		}
+		if ( position < channel.size () )
+		{
+			log.warn ("Discarding incomplete record at " + position + " of " + last);
+			channel.truncate (position);
+		}
+		channel.position (position);
+		log.trace ("Opened event log " + name + " at sequence " + lastSequence);
+	}
+
+	/**
+	 * @return the next record, or null at the end of the segment or at a torn record
+	 */
+	private static BCSAPIMessage.Frame readRecord (DataInputStream in) throws IOException
+	{
+		try
+		{
+			int length = in.readInt ();
+			if ( length <= 0 )
+			{
+				return null;
+			}
+			byte[] record = new byte[length];
+			in.readFully (record);
+			CRC32 crc = new CRC32 ();
+			crc.update (record);
+			if ( (int) crc.getValue () != in.readInt () )
+			{
+				return null;
+			}
+			return BCSAPIMessage.Frame.parseFrom (record);
+		}
+		catch ( EOFException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return sequence number of the message
+	 */
+	public synchronized long append (String topic, byte[] body) throws IOException
+	{
+		if ( channel.position () >= segmentSize )
+		{
+			roll ();
+		}
+		BCSAPIMessage.Frame.Builder builder = BCSAPIMessage.Frame.newBuilder ();
+		builder.setId (lastSequence + 1);
+		builder.setDestination (topic);
+		builder.setBody (ByteString.copyFrom (body));
+		byte[] record = builder.build ().toByteArray ();
+		CRC32 crc = new CRC32 ();
+		crc.update (record);
+		ByteBuffer buffer = ByteBuffer.allocate (record.length + 8);
+		buffer.putInt (record.length);
+		buffer.put (record);
+		buffer.putInt ((int) crc.getValue ());
+		buffer.flip ();
+		while ( buffer.hasRemaining () )
+		{
+			channel.write (buffer);
+		}
+		if ( syncOnWrite )
+		{
+			channel.force (false);
+		}
+		return ++lastSequence;
+	}
+
+	private void roll () throws IOException
+	{
+		file.close ();
+		file = new RandomAccessFile (segment (lastSequence + 1), "rw");
+		channel = file.getChannel ();
+		File[] segments = segments ();
+		for ( int i = 0; i < segments.length - maxSegments; ++i )
+		{
+			log.trace ("Deleting event log segment " + segments[i]);
+			if ( !segments[i].delete () )
+			{
+				log.warn ("Can not delete " + segments[i]);
+			}
+		}
+	}
+
+	/**
+	 * Pass messages logged after a sequence number to the handler, in order. Messages appended meanwhile may or may not be passed.
+	 *
+	 * @param after
+	 *            - sequence number of the last message processed earlier, 0 to replay all
+	 * @return sequence number of the last message replayed, or after if none
+	 * @throws IOException
+	 *             also if messages after the sequence number are no longer kept
+	 */
+	public long replay (long after, EventHandler handler) throws IOException
+	{
+		List<File> replayed = new ArrayList<File> ();
+		synchronized ( this )
+		{
+			if ( after >= lastSequence )
+			{
+				return after;
+			}
+			File[] segments = segments ();
+			if ( segments.length == 0 || firstSequence (segments[0]) > after + 1 )
+			{
+				throw new IOException ("Events after " + after + " are no longer in the log " + name);
+			}
+			for ( int i = 0; i < segments.length; ++i )
+			{
+				// segments ending before the sequence number are skipped
+				if ( i + 1 < segments.length && firstSequence (segments[i + 1]) <= after + 1 )
+				{
+					continue;
+				}
+				replayed.add (segments[i]);
+			}
+		}
+		long last = after;
+		for ( File segment : replayed )
+		{
+			try (InputStream in = new FileInputStream (segment))
+			{
+				DataInputStream data = new DataInputStream (new BufferedInputStream (in));
+				BCSAPIMessage.Frame frame;
+				while ( (frame = readRecord (data)) != null )
+				{
+					if ( frame.getId () > last )
+					{
+						last = frame.getId ();
+						handler.event (frame.getId (), frame.getDestination (), frame.getBody ().toByteArray ());
+					}
+				}
+			}
+		}
+		return last;
+	}
+
+	public synchronized void close ()
+	{
+		try
+		{
+			file.close ();
+		}
+		catch ( IOException e )
+		{
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+/**
+ * Receiver of an asynchronous scan. Transactions are delivered only as requested through the subscription, calls are not concurrent but
+ * might come from different threads.
+ */
+public interface TransactionSubscriber
+{
+	/**
+	 * called first, nothing is delivered before subscription.request
+	 */
+	public void onSubscribe (ScanSubscription subscription);
+
+	public void onNext (Transaction t);
+
+	/**
+	 * scan failed, no further calls follow
+	 */
+	public void onError (BCSAPIException e);
+
+	/**
+	 * all transactions were delivered, no further calls follow
+	 */
+	public void onComplete ();
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message bodies. Deflater and Inflater hold native buffers that are expensive to create, so they are pooled and
+ * reset for reuse. Bodies inflating beyond a limit are rejected, so that a small message can not exhaust memory.
+ */
+public class DeflateCodec
+{
+	private static final int MAX_POOLED = 32;
+
+	private final int level;
+	private final int maxLength;
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater> ();
+	private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater> ();
+
+	public DeflateCodec ()
+	{
+		this (Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param level
+	 *            - Deflater compression level
+	 */
+	public DeflateCodec (int level)
+	{
+		this (level, 64 * 1024 * 1024);
+	}
+
+	/**
+	 * @param level
+	 *            - Deflater compression level
+	 * @param maxLength
+	 *            - largest body decompressed
+	 */
+	public DeflateCodec (int level, int maxLength)
+	{
+		this.level = level;
+		this.maxLength = maxLength;
+	}
+
+	public byte[] compress (byte[] data)
+	{
+		Deflater deflater = deflaters.poll ();
+		if ( deflater == null )
+		{
+			deflater = new Deflater (level);
+		}
+		try
+		{
+			deflater.setInput (data);
+			deflater.finish ();
+			ByteArrayOutputStream out = new ByteArrayOutputStream (data.length / 2 + 64);
+			byte[] buffer = new byte[8192];
+			while ( !deflater.finished () )
+			{
+				out.write (buffer, 0, deflater.deflate (buffer));
+			}
+			return out.toByteArray ();
+		}
+		finally
+		{
+			// the size is approximate, it only limits idle instances
+			if ( deflaters.size () < MAX_POOLED )
+			{
+				deflater.reset ();
+				deflaters.offer (deflater);
+			}
+			else
+			{
+				deflater.end ();
+			}
+		}
+	}
+
+	public byte[] decompress (byte[] data) throws DataFormatException
+	{
+		Inflater inflater = inflaters.poll ();
+		if ( inflater == null )
+		{
+			inflater = new Inflater ();
+		}
+		try
+		{
+			inflater.setInput (data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream ((int) Math.min (data.length * 3L, maxLength));
+			byte[] buffer = new byte[8192];
+			while ( !inflater.finished () )
+			{
+				int n = inflater.inflate (buffer);
+				if ( n == 0 && !inflater.finished () && (inflater.needsInput () || inflater.needsDictionary ()) )
+				{
+					throw new DataFormatException ("truncated input");
+				}
+				if ( n > maxLength - out.size () )
+				{
+					throw new DataFormatException ("inflates beyond " + maxLength + " bytes");
+				}
+				out.write (buffer, 0, n);
+			}
+			return out.toByteArray ();
+		}
+		finally
+		{
+			if ( inflaters.size () < MAX_POOLED )
+			{
+				inflater.reset ();
+				inflaters.offer (inflater);
+			}
+			else
+			{
+				inflater.end ();
+			}
+		}
+	}
+}
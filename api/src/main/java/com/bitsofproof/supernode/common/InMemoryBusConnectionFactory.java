@@ -17,15 +17,22 @@ package com.bitsofproof.supernode.common;
 
 import java.io.Serializable;
 import java.security.SecureRandom;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.jms.BytesMessage;
 import javax.jms.Connection;
@@ -59,12 +66,15 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 {
 	private static final Logger log = LoggerFactory.getLogger (InMemoryBusConnectionFactory.class);
 
-	private static class MockBytesMessage implements BytesMessage
+	// the body is passed by reference from the sender to all consumers
+	private static class MockBytesMessage implements SharedBodyMessage
 	{
 		Destination destination;
 		Destination replyTo;
 		private byte[] bytes;
 		String correlationID;
+		// only string properties are kept
+		private final Map<String, String> properties = new HashMap<String, String> ();
 
 		@Override
 		public String getJMSMessageID () throws JMSException
@@ -193,12 +203,13 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void clearProperties () throws JMSException
 		{
+			properties.clear ();
 		}
 
 		@Override
 		public boolean propertyExists (String name) throws JMSException
 		{
-			return false;
+			return properties.containsKey (name);
 		}
 
 		@Override
@@ -246,20 +257,20 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public String getStringProperty (String name) throws JMSException
 		{
-			return null;
+			return properties.get (name);
 		}
 
 		@Override
 		public Object getObjectProperty (String name) throws JMSException
 		{
-			return null;
+			return properties.get (name);
 		}
 
 		@SuppressWarnings ("rawtypes")
 		@Override
 		public Enumeration getPropertyNames () throws JMSException
 		{
-			return null;
+			return Collections.enumeration (properties.keySet ());
 		}
 
 		@Override
@@ -300,6 +311,7 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void setStringProperty (String name, String value) throws JMSException
 		{
+			properties.put (name, value);
 		}
 
 		@Override
@@ -317,6 +329,12 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		{
 		}
 
+		@Override
+		public byte[] getSharedBody ()
+		{
+			return bytes;
+		}
+
 		@Override
 		public long getBodyLength () throws JMSException
 		{
@@ -461,8 +479,14 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void writeBytes (byte[] value, int offset, int length) throws JMSException
 		{
-			bytes = new byte[length];
-			System.arraycopy (value, offset, bytes, 0, length);
+			if ( offset == 0 && length == value.length )
+			{
+				bytes = value;
+			}
+			else
+			{
+				bytes = Arrays.copyOfRange (value, offset, offset + length);
+			}
 		}
 
 		@Override
@@ -530,37 +554,199 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		}
 	}
 
-	private static class MessageWithDestination
+	/**
+	 * Bounded multi-producer single-consumer ring buffer. Producers claim a slot by advancing the tail and publish it by setting the slot's
+	 * sequence, so neither side takes a lock. Only the channel draining the buffer polls.
+	 */
+	private static class RingBuffer
 	{
-		private final String destination;
-		private final Message message;
+		private final int mask;
+		private final AtomicReferenceArray<Message> slots;
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong ();
+		// only accessed by the draining thread, handed over with the channel's scheduled flag
+		private long head;
+
+		public RingBuffer (int capacity)
+		{
+			mask = capacity - 1;
+			slots = new AtomicReferenceArray<Message> (capacity);
+			sequences = new AtomicLongArray (capacity);
+			for ( int i = 0; i < capacity; ++i )
+			{
+				sequences.set (i, i);
+			}
+		}
 
-		public String getDestination ()
+		/**
+		 * @return false if the buffer is full
+		 */
+		public boolean offer (Message message)
 		{
-			return destination;
+			while ( true )
+			{
+				long t = tail.get ();
+				int i = (int) (t & mask);
+				long sequence = sequences.get (i);
+				if ( sequence == t )
+				{
+					if ( tail.compareAndSet (t, t + 1) )
+					{
+						slots.set (i, message);
+						sequences.set (i, t + 1);
+						return true;
+					}
+				}
+				else if ( sequence < t )
+				{
+					return false;
+				}
+			}
 		}
 
-		public Message getMessage ()
+		public Message poll ()
 		{
+			int i = (int) (head & mask);
+			if ( sequences.get (i) != head + 1 )
+			{
+				return null;
+			}
+			Message message = slots.get (i);
+			slots.set (i, null);
+			sequences.set (i, head + mask + 1);
+			++head;
 			return message;
 		}
 
-		public MessageWithDestination (String destination, Message message)
+		public boolean isEmpty ()
 		{
-			this.destination = destination;
-			this.message = message;
+			return sequences.get ((int) (head & mask)) != head + 1;
 		}
 	}
 
-	private static class MockProducer implements MessageProducer
+	/**
+	 * Delivery channel of a destination. Messages are delivered in order to every consumer of the destination by at most one task at a time,
+	 * that is scheduled on the connection's executor only while there is something to deliver.
+	 */
+	private static class Channel implements Runnable
 	{
+		private static final int BATCH = 64;
+
 		private final String name;
-		private final LinkedBlockingQueue<MessageWithDestination> queue;
+		private final RingBuffer ring;
+		private final ExecutorService executor;
+		private final ListenerRegistry<MockConsumer> consumer = new ListenerRegistry<MockConsumer> (new MockConsumer[0]);
+		private final AtomicBoolean scheduled = new AtomicBoolean (false);
 
-		public MockProducer (String name, LinkedBlockingQueue<MessageWithDestination> queue)
+		public Channel (String name, int capacity, ExecutorService executor)
 		{
 			this.name = name;
-			this.queue = queue;
+			this.ring = new RingBuffer (capacity);
+			this.executor = executor;
+		}
+
+		public void send (Message message) throws JMSException
+		{
+			if ( executor.isShutdown () )
+			{
+				throw new JMSException ("Bus is closed, can not send to " + name);
+			}
+			while ( !ring.offer (message) )
+			{
+				// full, let the drain catch up
+				if ( !schedule () )
+				{
+					throw new JMSException ("Bus is closed, can not send to " + name);
+				}
+				LockSupport.parkNanos (100000);
+				if ( Thread.interrupted () )
+				{
+					Thread.currentThread ().interrupt ();
+					throw new JMSException ("Interrupted while sending to " + name);
+				}
+			}
+			if ( !schedule () )
+			{
+				throw new JMSException ("Bus is closed, " + name + " is not delivered");
+			}
+		}
+
+		// false if the executor rejected the drain, it is not going to run
+		private boolean schedule ()
+		{
+			if ( scheduled.compareAndSet (false, true) )
+			{
+				try
+				{
+					executor.execute (this);
+				}
+				catch ( RejectedExecutionException e )
+				{
+					scheduled.set (false);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void run ()
+		{
+			try
+			{
+				for ( int i = 0; i < BATCH; ++i )
+				{
+					Message message = ring.poll ();
+					if ( message == null )
+					{
+						break;
+					}
+					deliver (message);
+				}
+			}
+			finally
+			{
+				scheduled.set (false);
+				// a producer may have published after the last poll but before the flag was cleared
+				if ( !ring.isEmpty () )
+				{
+					schedule ();
+				}
+			}
+		}
+
+		private void deliver (Message message)
+		{
+			for ( MockConsumer c : consumer.getListeners () )
+			{
+				c.deliver (message);
+			}
+		}
+	}
+
+	private static String nameOf (Destination destination) throws JMSException
+	{
+		if ( destination instanceof Topic )
+		{
+			return ((Topic) destination).getTopicName ();
+		}
+		if ( destination instanceof Queue )
+		{
+			return ((Queue) destination).getQueueName ();
+		}
+		throw new JMSException ("Unsupported destination " + destination);
+	}
+
+	private static class MockProducer implements MessageProducer
+	{
+		// routing is resolved once, sending does not look up the destination
+		private final MockConnection connection;
+		private final Channel channel;
+
+		public MockProducer (MockConnection connection, Channel channel)
+		{
+			this.connection = connection;
+			this.channel = channel;
 		}
 
 		@Override
@@ -653,16 +839,52 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 			sendToConsumer (message);
 		}
 
-		private void sendToConsumer (Message message)
+		private void sendToConsumer (Message message) throws JMSException
 		{
-			queue.add (new MessageWithDestination (name, message));
+			if ( connection.isClosed () )
+			{
+				throw new JMSException ("Connection is closed");
+			}
+			channel.send (message);
 		}
 	}
 
 	private static class MockConsumer implements MessageConsumer
 	{
-		private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message> ();
-		private MessageListener listener;
+		protected final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message> ();
+		protected final Channel channel;
+		private final Set<MockConsumer> owner;
+		protected volatile MessageListener listener;
+
+		public MockConsumer (Channel channel, Set<MockConsumer> owner)
+		{
+			this.channel = channel;
+			this.owner = owner;
+			if ( owner != null )
+			{
+				owner.add (this);
+			}
+		}
+
+		protected void deliver (Message message)
+		{
+			MessageListener l = listener;
+			if ( l != null )
+			{
+				try
+				{
+					l.onMessage (message);
+				}
+				catch ( Exception e )
+				{
+					log.error ("Uncaught exception in message listener", e);
+				}
+			}
+			else
+			{
+				queue.offer (message);
+			}
+		}
 
 		@Override
 		public String getMessageSelector () throws JMSException
@@ -682,15 +904,6 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 			this.listener = listener;
 		}
 
-		public void putMessage (Message m) throws JMSException
-		{
-			if ( listener != null )
-			{
-				throw new JMSException ("Use either setListener or receive");
-			}
-			queue.offer (m);
-		}
-
 		@Override
 		public Message receive () throws JMSException
 		{
@@ -736,64 +949,92 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		}
 
 		@Override
-		public synchronized void close () throws JMSException
+		public void close () throws JMSException
 		{
+			channel.consumer.remove (this);
+			if ( owner != null )
+			{
+				owner.remove (this);
+			}
 		}
 	}
 
-	private static class MockSession implements Session, Runnable
+	/**
+	 * Stays registered with the channel when closed, and queues messages until a subscriber of the same client id and name takes it over
+	 * or it is unsubscribed.
+	 */
+	private static class MockDurableSubscriber extends MockConsumer implements TopicSubscriber
 	{
-		private final LinkedBlockingQueue<MessageWithDestination> queue;
-		private volatile boolean run = true;
-		private final Map<String, List<MockConsumer>> consumer;
+		private final Topic topic;
 
-		public MockSession (LinkedBlockingQueue<MessageWithDestination> queue, Map<String, List<MockConsumer>> consumer)
+		public MockDurableSubscriber (Channel channel, Topic topic)
 		{
-			this.consumer = consumer;
-			this.queue = queue;
+			// not owned by a connection, it outlives them
+			super (channel, null);
+			this.topic = topic;
 		}
 
 		@Override
-		public void run ()
+		protected synchronized void deliver (Message message)
 		{
-			MessageWithDestination md = null;
-			do
+			super.deliver (message);
+		}
+
+		@Override
+		public synchronized void setMessageListener (MessageListener listener) throws JMSException
+		{
+			// messages queued while inactive are delivered first, in order
+			Message message;
+			while ( listener != null && (message = queue.poll ()) != null )
 			{
 				try
 				{
-					md = queue.poll (1, TimeUnit.SECONDS);
-					if ( md != null )
-					{
-						List<MockConsumer> cl;
-						cl = consumer.get (md.getDestination ());
-						if ( cl != null )
-						{
-							for ( MockConsumer c : cl )
-							{
-								if ( c.getMessageListener () != null )
-								{
-									try
-									{
-										c.getMessageListener ().onMessage (md.getMessage ());
-									}
-									catch ( Exception e )
-									{
-										log.error ("Uncaught exception in message listener", e);
-									}
-								}
-								else
-								{
-									c.putMessage (md.getMessage ());
-								}
-							}
-						}
-					}
+					listener.onMessage (message);
 				}
-				catch ( InterruptedException | JMSException e )
+				catch ( Exception e )
 				{
+					log.error ("Uncaught exception in message listener", e);
 				}
-			} while ( md != null || run );
+			}
+			this.listener = listener;
+		}
+
+		@Override
+		public synchronized void close () throws JMSException
+		{
+			listener = null;
+		}
+
+		public void unsubscribe ()
+		{
+			channel.consumer.remove (this);
+		}
+
+		@Override
+		public Topic getTopic () throws JMSException
+		{
+			return topic;
+		}
 
+		@Override
+		public boolean getNoLocal () throws JMSException
+		{
+			return false;
+		}
+	}
+
+	private static class MockSession implements Session
+	{
+		private final MockConnection connection;
+
+		public MockSession (MockConnection connection)
+		{
+			this.connection = connection;
+		}
+
+		@Override
+		public void run ()
+		{
 		}
 
 		@Override
@@ -869,7 +1110,6 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void close () throws JMSException
 		{
-			run = false;
 		}
 
 		@Override
@@ -891,51 +1131,15 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public MessageProducer createProducer (Destination destination) throws JMSException
 		{
-			String name = null;
-			if ( destination instanceof MockTopic )
-			{
-				name = ((MockTopic) destination).getTopicName ();
-			}
-			if ( destination instanceof MockQueue )
-			{
-				name = ((MockQueue) destination).getQueueName ();
-			}
-			if ( destination instanceof MockTemporaryQueue )
-			{
-				name = ((MockTemporaryQueue) destination).getQueueName ();
-			}
-			return new MockProducer (name, queue);
+			return new MockProducer (connection, connection.channel (nameOf (destination)));
 		}
 
 		@Override
 		public MessageConsumer createConsumer (Destination destination) throws JMSException
 		{
-			String name = null;
-			if ( destination instanceof MockTopic )
-			{
-				name = ((MockTopic) destination).getTopicName ();
-			}
-			if ( destination instanceof MockQueue )
-			{
-				name = ((MockQueue) destination).getQueueName ();
-			}
-			if ( destination instanceof MockTemporaryQueue )
-			{
-				name = ((MockTemporaryQueue) destination).getQueueName ();
-			}
-
-			MockConsumer c = new MockConsumer ();
-			List<MockConsumer> cl;
-			synchronized ( consumer )
-			{
-				cl = consumer.get (name);
-				if ( cl == null )
-				{
-					cl = new ArrayList<MockConsumer> ();
-					consumer.put (name, cl);
-				}
-				cl.add (c);
-			}
+			Channel channel = connection.channel (nameOf (destination));
+			MockConsumer c = new MockConsumer (channel, connection.consumers);
+			channel.consumer.add (c);
 			return c;
 		}
 
@@ -966,13 +1170,25 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public TopicSubscriber createDurableSubscriber (Topic topic, String name) throws JMSException
 		{
-			return null;
+			String key = connection.durableName (name);
+			synchronized ( connection.durableSubscribers () )
+			{
+				MockDurableSubscriber s = connection.durableSubscribers ().get (key);
+				if ( s == null )
+				{
+					Channel channel = connection.channel (topic.getTopicName ());
+					s = new MockDurableSubscriber (channel, topic);
+					channel.consumer.add (s);
+					connection.durableSubscribers ().put (key, s);
+				}
+				return s;
+			}
 		}
 
 		@Override
 		public TopicSubscriber createDurableSubscriber (Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException
 		{
-			return null;
+			return createDurableSubscriber (topic, name);
 		}
 
 		@Override
@@ -1002,34 +1218,66 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void unsubscribe (String name) throws JMSException
 		{
+			MockDurableSubscriber s;
+			synchronized ( connection.durableSubscribers () )
+			{
+				s = connection.durableSubscribers ().remove (connection.durableName (name));
+			}
+			if ( s == null )
+			{
+				throw new JMSException ("No durable subscription " + name);
+			}
+			s.unsubscribe ();
 		}
 	}
 
+	// sessions and consumers belong to a connection, channels and durable subscriptions to the factory
 	private class MockConnection implements Connection
 	{
-		private final List<Session> sessions = new ArrayList<Session> ();
-		private final ExecutorService consumerExecutor = Executors.newCachedThreadPool ();
-		private final Map<String, List<MockConsumer>> consumer = new ConcurrentHashMap<> ();
-		private final LinkedBlockingQueue<MessageWithDestination> queue = new LinkedBlockingQueue<> ();
+		private final Set<MockConsumer> consumers = Collections.newSetFromMap (new ConcurrentHashMap<MockConsumer, Boolean> ());
+		private final AtomicBoolean closed = new AtomicBoolean (false);
+		private volatile String clientID;
+
+		public Channel channel (String name)
+		{
+			return InMemoryBusConnectionFactory.this.channel (name);
+		}
+
+		public boolean isClosed ()
+		{
+			return closed.get ();
+		}
+
+		public Map<String, MockDurableSubscriber> durableSubscribers ()
+		{
+			return durableSubscribers;
+		}
+
+		public String durableName (String name) throws JMSException
+		{
+			if ( clientID == null )
+			{
+				throw new JMSException ("Durable subscription requires a client id");
+			}
+			return clientID + ":" + name;
+		}
 
 		@Override
 		public Session createSession (boolean transacted, int acknowledgeMode) throws JMSException
 		{
-			Session session = new MockSession (queue, consumer);
-			sessions.add (session);
-			consumerExecutor.execute (session);
-			return session;
+			return new MockSession (this);
 		}
 
 		@Override
 		public String getClientID () throws JMSException
 		{
-			return null;
+			return clientID;
 		}
 
 		@Override
 		public void setClientID (String clientID) throws JMSException
 		{
+			this.clientID = clientID;
 		}
 
 		@Override
@@ -1062,9 +1310,13 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 		@Override
 		public void close () throws JMSException
 		{
-			for ( Session session : sessions )
+			if ( closed.compareAndSet (false, true) )
 			{
-				session.close ();
+				for ( MockConsumer c : consumers )
+				{
+					c.close ();
+				}
+				release ();
 			}
 		}
 
@@ -1084,25 +1336,71 @@ public class InMemoryBusConnectionFactory implements ConnectionFactory
 
 	}
 
-	private Connection connection;
+	private int capacity = 16384;
+	private boolean virtualThreads = false;
 
-	@Override
-	public Connection createConnection () throws JMSException
+	// shared by all connections, guarded by this
+	private ExecutorService consumerExecutor;
+	private int openConnections = 0;
+	private final Map<String, Channel> channels = new HashMap<String, Channel> ();
+	private final Map<String, MockDurableSubscriber> durableSubscribers = new HashMap<String, MockDurableSubscriber> ();
+
+	/**
+	 * @param capacity
+	 *            - number of messages a destination buffers before senders wait, rounded up to a power of two
+	 */
+	public void setCapacity (int capacity)
+	{
+		this.capacity = Integer.highestOneBit (Math.max (capacity, 2) - 1) << 1;
+	}
+
+	/**
+	 * deliver on virtual threads if the JVM supports them, set before the connection is created
+	 */
+	public void setVirtualThreads (boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	private synchronized Channel channel (String name)
 	{
-		if ( connection == null )
+		Channel channel = channels.get (name);
+		if ( channel == null )
 		{
-			connection = new MockConnection ();
+			channels.put (name, channel = new Channel (name, capacity, consumerExecutor));
 		}
-		return connection;
+		return channel;
 	}
 
-	@Override
-	public Connection createConnection (String userName, String password) throws JMSException
+	private synchronized void open ()
+	{
+		if ( openConnections++ == 0 )
+		{
+			consumerExecutor = TaskExecutors.newTaskExecutor ("InMemoryBus", virtualThreads);
+		}
+	}
+
+	// the bus stops with the last connection, messages already sent are still delivered
+	private synchronized void release ()
 	{
-		if ( connection == null )
+		if ( --openConnections == 0 )
 		{
-			connection = new MockConnection ();
+			consumerExecutor.shutdown ();
+			channels.clear ();
+			durableSubscribers.clear ();
 		}
-		return connection;
+	}
+
+	@Override
+	public Connection createConnection () throws JMSException
+	{
+		open ();
+		return new MockConnection ();
+	}
+
+	@Override
+	public Connection createConnection (String userName, String password) throws JMSException
+	{
+		return createConnection ();
 	}
 }
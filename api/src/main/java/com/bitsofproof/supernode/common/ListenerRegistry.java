@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.common;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write registry of listeners, each registered under a key. Registration copies, broadcast iterates an immutable snapshot without
+ * locking or allocation. Suitable for listeners that change rarely but are called often.
+ */
+public class ListenerRegistry<L>
+{
+	private static class Snapshot<L>
+	{
+		private final Object[] keys;
+		private final L[] listeners;
+
+		public Snapshot (Object[] keys, L[] listeners)
+		{
+			this.keys = keys;
+			this.listeners = listeners;
+		}
+
+		public int indexOf (Object key)
+		{
+			for ( int i = 0; i < keys.length; ++i )
+			{
+				if ( keys[i].equals (key) )
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private volatile Snapshot<L> snapshot;
+
+	/**
+	 * @param empty
+	 *            - empty array of the listener type, snapshots are of its type
+	 */
+	public ListenerRegistry (L[] empty)
+	{
+		snapshot = new Snapshot<L> (new Object[0], empty);
+	}
+
+	/**
+	 * register a listener under its own identity
+	 */
+	public void add (L listener)
+	{
+		put (listener, listener);
+	}
+
+	/**
+	 * @return the listener registered earlier under the key, or null
+	 */
+	public synchronized L put (Object key, L listener)
+	{
+		Snapshot<L> s = snapshot;
+		int i = s.indexOf (key);
+		if ( i >= 0 )
+		{
+			L[] listeners = s.listeners.clone ();
+			L replaced = listeners[i];
+			listeners[i] = listener;
+			snapshot = new Snapshot<L> (s.keys, listeners);
+			return replaced;
+		}
+		int n = s.keys.length;
+		Object[] keys = Arrays.copyOf (s.keys, n + 1);
+		L[] listeners = Arrays.copyOf (s.listeners, n + 1);
+		keys[n] = key;
+		listeners[n] = listener;
+		snapshot = new Snapshot<L> (keys, listeners);
+		return null;
+	}
+
+	/**
+	 * @return the listener removed, or null if none was registered under the key
+	 */
+	public synchronized L remove (Object key)
+	{
+		Snapshot<L> s = snapshot;
+		int i = s.indexOf (key);
+		if ( i < 0 )
+		{
+			return null;
+		}
+		int n = s.keys.length;
+		Object[] keys = Arrays.copyOf (s.keys, n - 1);
+		L[] listeners = Arrays.copyOf (s.listeners, n - 1);
+		System.arraycopy (s.keys, i + 1, keys, i, n - i - 1);
+		System.arraycopy (s.listeners, i + 1, listeners, i, n - i - 1);
+		snapshot = new Snapshot<L> (keys, listeners);
+		return s.listeners[i];
+	}
+
+	/**
+	 * @return listeners registered at the time of the call, the array must not be modified
+	 */
+	public L[] getListeners ()
+	{
+		return snapshot.listeners;
+	}
+
+	public boolean isEmpty ()
+	{
+		return snapshot.keys.length == 0;
+	}
+}
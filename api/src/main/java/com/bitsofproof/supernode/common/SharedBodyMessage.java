@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.common;
+
+import javax.jms.BytesMessage;
+
+/**
+ * A bytes message of an in-process transport that hands its body over by reference instead of copying it. The body written is shared by the
+ * sender and all receivers, none of them may modify it.
+ */
+public interface SharedBodyMessage extends BytesMessage
+{
+	/**
+	 * @return the body as written, or null if none
+	 */
+	public byte[] getSharedBody ();
+}
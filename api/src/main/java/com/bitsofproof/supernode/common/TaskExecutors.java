@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors for tasks that may block. On a JVM with virtual threads each task can run on a virtual thread of its own, so that many blocked
+ * tasks do not hold as many platform threads. Elsewhere, or if not asked for, tasks run on a cached pool of daemon threads.
+ */
+public class TaskExecutors
+{
+	private static final Logger log = LoggerFactory.getLogger (TaskExecutors.class);
+
+	// resolved reflectively as the code is compiled for JVMs without virtual threads
+	private static final Method ofVirtual;
+	private static final Method named;
+	private static final Method factory;
+	private static final Method newThreadPerTaskExecutor;
+
+	static
+	{
+		Method o = null, n = null, f = null, e = null;
+		try
+		{
+			o = Thread.class.getMethod ("ofVirtual");
+			n = Class.forName ("java.lang.Thread$Builder").getMethod ("name", String.class, long.class);
+			f = Class.forName ("java.lang.Thread$Builder").getMethod ("factory");
+			e = Executors.class.getMethod ("newThreadPerTaskExecutor", ThreadFactory.class);
+		}
+		catch ( NoSuchMethodException | ClassNotFoundException ex )
+		{
+			o = null;
+		}
+		ofVirtual = o;
+		named = n;
+		factory = f;
+		newThreadPerTaskExecutor = e;
+	}
+
+	/**
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadAvailable ()
+	{
+		return ofVirtual != null;
+	}
+
+	/**
+	 * @param name
+	 *            - prefix of thread names
+	 * @return factory of daemon threads named by the prefix and a sequence number
+	 */
+	public static ThreadFactory daemonThreads (final String name)
+	{
+		return new ThreadFactory ()
+		{
+			private final AtomicInteger n = new AtomicInteger (0);
+
+			@Override
+			public Thread newThread (Runnable r)
+			{
+				Thread thread = new Thread (r, name + " " + n.incrementAndGet ());
+				thread.setDaemon (true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @param name
+	 *            - prefix of thread names
+	 * @param virtual
+	 *            - run each task on a new virtual thread if the JVM supports it
+	 * @return executor that does not queue tasks, but runs them on a new or idle thread
+	 */
+	public static ExecutorService newTaskExecutor (String name, boolean virtual)
+	{
+		if ( virtual )
+		{
+			if ( isVirtualThreadAvailable () )
+			{
+				try
+				{
+					Object builder = named.invoke (ofVirtual.invoke (null), name + " ", 1L);
+					return (ExecutorService) newThreadPerTaskExecutor.invoke (null, factory.invoke (builder));
+				}
+				catch ( ReflectiveOperationException e )
+				{
+					log.warn ("Can not create virtual threads, using platform threads for " + name, e);
+				}
+			}
+			else
+			{
+				log.debug ("Virtual threads are not available, using platform threads for " + name);
+			}
+		}
+		return Executors.newCachedThreadPool (daemonThreads (name));
+	}
+}
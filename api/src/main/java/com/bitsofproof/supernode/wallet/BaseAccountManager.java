@@ -15,6 +15,8 @@
  */
 package com.bitsofproof.supernode.wallet;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -22,41 +24,100 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.bitsofproof.supernode.api.Address;
+import com.bitsofproof.supernode.api.BCSAPI;
+import com.bitsofproof.supernode.api.BCSAPIException;
+import com.bitsofproof.supernode.api.Block;
 import com.bitsofproof.supernode.api.Transaction;
 import com.bitsofproof.supernode.api.TransactionInput;
 import com.bitsofproof.supernode.api.TransactionOutput;
+import com.bitsofproof.supernode.api.TrunkListener;
 import com.bitsofproof.supernode.common.ByteUtils;
 import com.bitsofproof.supernode.common.ECKeyPair;
 import com.bitsofproof.supernode.common.Key;
+import com.bitsofproof.supernode.common.ListenerRegistry;
 import com.bitsofproof.supernode.common.ScriptFormat;
 import com.bitsofproof.supernode.common.ValidationException;
 import com.bitsofproof.supernode.common.WireFormat;
 
-public abstract class BaseAccountManager implements AccountManager
+public abstract class BaseAccountManager implements AccountManager, TrunkListener
 {
 	private static final Logger log = LoggerFactory.getLogger (BaseAccountManager.class);
 
 	private static final long MINIMUM_FEE = 10000;
 	private static final long MAXIMUM_FEE = 1000000;
 
-	private UTXO confirmed = createConfirmedUTXO ();
-	private UTXO change = createChangeUTXO ();
-	private UTXO receiving = createReceivingUTXO ();
-	private UTXO sending = createSendingUTXO ();
+	// serializes updates of the account state. Readers do not take it, they rely on thread safe UTXO sets, the published balance and the
+	// spendable snapshot.
+	private final Object updateLock = new Object ();
+
+	private volatile UTXO confirmed = createConfirmedUTXO ();
+	private volatile UTXO change = createChangeUTXO ();
+	private volatile UTXO receiving = createReceivingUTXO ();
+	private volatile UTXO sending = createSendingUTXO ();
+
+	// running totals of the UTXO sets above, only modified while holding updateLock
+	private long confirmedTotal = confirmed.getTotal ();
+	private long changeTotal = change.getTotal ();
+	private long receivingTotal = receiving.getTotal ();
+	private long sendingTotal = sending.getTotal ();
+
+	// value ordered views of the spendable UTXO sets for coin selection, only modified while holding updateLock
+	private volatile UTXOIndex confirmedIndex = new UTXOIndex (confirmed.getUTXO ());
+	private volatile UTXOIndex changeIndex = new UTXOIndex (change.getUTXO ());
+
+	// copies of the indexes above taken at a single moment, payments select from them without updateLock. Updates that change the
+	// indexes drop it and the next payment takes a new copy, so listeners wait for that copy at most, not for coin selection.
+	private static class Spendable
+	{
+		private final UTXOIndex confirmed;
+		private final UTXOIndex change;
+
+		public Spendable (UTXOIndex confirmed, UTXOIndex change)
+		{
+			this.confirmed = new UTXOIndex (confirmed);
+			this.change = new UTXOIndex (change);
+		}
+	}
+
+	private volatile Spendable spendable;
+
+	private volatile CoinSelector coinSelector = new CoinSelector.SmallestFirst ();
+
+	private static class Balance
+	{
+		private final long confirmed;
+		private final long change;
+		private final long receiving;
+		private final long sending;
+
+		public Balance (long confirmed, long change, long receiving, long sending)
+		{
+			this.confirmed = confirmed;
+			this.change = change;
+			this.receiving = receiving;
+			this.sending = sending;
+		}
+	}
+
+	// consistent snapshot of the totals for readers that should not wait for updates
+	private volatile Balance balance = new Balance (confirmedTotal, changeTotal, receivingTotal, sendingTotal);
 
 	private long created;
 
+	// journals of the UTXO sets, or null to keep them in memory only
+	private File utxoDirectory;
+
 	@Override
 	public long getCreated ()
 	{
@@ -68,35 +129,234 @@ public abstract class BaseAccountManager implements AccountManager
 		this.created = created;
 	}
 
-	private final List<AccountListener> accountListener = Collections.synchronizedList (new ArrayList<AccountListener> ());
-	private final Map<String, Transaction> transactions = new HashMap<String, Transaction> ();
+	private final ListenerRegistry<AccountListener> accountListener = new ListenerRegistry<AccountListener> (new AccountListener[0]);
+	private final Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction> ();
 
 	protected UTXO createConfirmedUTXO ()
 	{
-		return new InMemoryUTXO ();
+		return createUTXO ("confirmed");
 	}
 
 	protected UTXO createChangeUTXO ()
 	{
-		return new InMemoryUTXO ();
+		return createUTXO ("change");
 	}
 
 	protected UTXO createSendingUTXO ()
 	{
-		return new InMemoryUTXO ();
+		return createUTXO ("sending");
 	}
 
 	protected UTXO createReceivingUTXO ()
 	{
-		return new InMemoryUTXO ();
+		return createUTXO ("receiving");
+	}
+
+	private UTXO createUTXO (String name)
+	{
+		if ( utxoDirectory == null )
+		{
+			return new InMemoryUTXO ();
+		}
+		try
+		{
+			return new MappedUTXO (utxoDirectory, name);
+		}
+		catch ( IOException e )
+		{
+			throw new IllegalStateException ("Can not open UTXO journal " + name + " in " + utxoDirectory, e);
+		}
+	}
+
+	/**
+	 * Keep the UTXO sets in journals of the directory. Sets journaled there earlier are loaded, the account may then {@link #catchUp}
+	 * instead of a sync.
+	 */
+	public void setUTXODirectory (File directory) throws IOException
+	{
+		synchronized ( updateLock )
+		{
+			close (false);
+			utxoDirectory = directory;
+			load ();
+		}
+	}
+
+	public File getUTXODirectory ()
+	{
+		return utxoDirectory;
 	}
 
 	protected void reset ()
+	{
+		synchronized ( updateLock )
+		{
+			try
+			{
+				close (true);
+			}
+			catch ( IOException e )
+			{
+				log.error ("Can not remove UTXO journals in " + utxoDirectory, e);
+			}
+			load ();
+		}
+	}
+
+	// caller holds updateLock
+	private void load ()
 	{
 		confirmed = createConfirmedUTXO ();
 		change = createChangeUTXO ();
 		receiving = createReceivingUTXO ();
 		sending = createSendingUTXO ();
+		confirmedTotal = confirmed.getTotal ();
+		changeTotal = change.getTotal ();
+		receivingTotal = receiving.getTotal ();
+		sendingTotal = sending.getTotal ();
+		confirmedIndex = new UTXOIndex (confirmed.getUTXO ());
+		changeIndex = new UTXOIndex (change.getUTXO ());
+		spendable = null;
+		publishBalance ();
+	}
+
+	// caller holds updateLock
+	private void close (boolean delete) throws IOException
+	{
+		for ( UTXO set : new UTXO[] { confirmed, change, receiving, sending } )
+		{
+			if ( set instanceof MappedUTXO )
+			{
+				if ( delete )
+				{
+					((MappedUTXO) set).delete ();
+				}
+				else
+				{
+					((MappedUTXO) set).close ();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Release the journals of the UTXO sets. The account is not to be used afterwards.
+	 */
+	public void close () throws IOException
+	{
+		synchronized ( updateLock )
+		{
+			close (false);
+		}
+	}
+
+	/**
+	 * @return the last block of the trunk the journaled UTXO sets reflect, or null if not known
+	 */
+	public String getLastBlock ()
+	{
+		UTXO c = confirmed;
+		if ( c instanceof MappedUTXO )
+		{
+			return ((MappedUTXO) c).getLastBlock ();
+		}
+		return null;
+	}
+
+	/**
+	 * Process the blocks missed since the last block recorded in the journals, as after a restart with journaled UTXO sets. The account
+	 * should be registered as trunk listener before, so that no block is missed in between.
+	 *
+	 * @return false if no block was recorded, the account has to sync instead
+	 */
+	public boolean catchUp (BCSAPI api) throws BCSAPIException
+	{
+		String last = getLastBlock ();
+		if ( last == null )
+		{
+			return false;
+		}
+		log.trace ("Catch up from " + last);
+		api.catchUp (last, this);
+		return true;
+	}
+
+	@Override
+	public void trunkUpdate (List<Block> removed, List<Block> added)
+	{
+		// transactions of blocks removed from the trunk are unconfirmed again
+		if ( removed != null )
+		{
+			for ( Block b : removed )
+			{
+				if ( b.getTransactions () != null )
+				{
+					for ( Transaction t : b.getTransactions () )
+					{
+						process (inBlock (t, null));
+					}
+				}
+			}
+		}
+		if ( added != null && !added.isEmpty () )
+		{
+			for ( Block b : added )
+			{
+				if ( b.getTransactions () != null )
+				{
+					for ( Transaction t : b.getTransactions () )
+					{
+						process (inBlock (t, b.getHash ()));
+					}
+				}
+			}
+			synchronized ( updateLock )
+			{
+				if ( confirmed instanceof MappedUTXO )
+				{
+					((MappedUTXO) confirmed).setLastBlock (added.get (added.size () - 1).getHash ());
+				}
+			}
+		}
+	}
+
+	// blocks and their transactions are shared with other listeners and the server's store, the account confirms a copy
+	private static Transaction inBlock (Transaction t, String blockHash)
+	{
+		if ( blockHash == null ? t.getBlockHash () == null : blockHash.equals (t.getBlockHash ()) )
+		{
+			return t;
+		}
+		try
+		{
+			Transaction copy = t.clone ();
+			copy.setBlockHash (blockHash);
+			return copy;
+		}
+		catch ( CloneNotSupportedException e )
+		{
+			throw new IllegalStateException (e);
+		}
+	}
+
+	public CoinSelector getCoinSelector ()
+	{
+		return coinSelector;
+	}
+
+	public void setCoinSelector (CoinSelector coinSelector)
+	{
+		this.coinSelector = coinSelector;
+	}
+
+	private void publishBalance ()
+	{
+		balance = new Balance (confirmedTotal, changeTotal, receivingTotal, sendingTotal);
+	}
+
+	private static long valueOf (TransactionOutput o)
+	{
+		return o != null ? o.getValue () : 0;
 	}
 
 	public boolean isOwnAddress (Address address)
@@ -302,66 +562,77 @@ public abstract class BaseAccountManager implements AccountManager
 
 	protected List<TransactionOutput> getSufficientSources (long amount, long fee, String color)
 	{
-		List<TransactionOutput> candidates = new ArrayList<TransactionOutput> ();
-		candidates.addAll (confirmed.getUTXO ());
-		// prefer confirmed
-		Collections.sort (candidates, new Comparator<TransactionOutput> ()
+		Spendable s = spendable;
+		if ( s == null )
 		{
-			// prefer aggregation of UTXO
-			@Override
-			public int compare (TransactionOutput o1, TransactionOutput o2)
+			synchronized ( updateLock )
 			{
-				return o1.getValue () < o2.getValue () ? -1 : o1.getValue () > o2.getValue () ? 1 : 0;
+				s = spendable;
+				if ( s == null )
+				{
+					spendable = s = new Spendable (confirmedIndex, changeIndex);
+				}
 			}
-		});
-		List<TransactionOutput> changelist = new ArrayList<TransactionOutput> ();
-		changelist.addAll (change.getUTXO ());
-		// ... then change
-		Collections.sort (changelist, new Comparator<TransactionOutput> ()
+		}
+		List<UTXOIndex.Entry> selected = selectSources (s.confirmed, s.change, amount, fee, color);
+		if ( selected == null )
 		{
-			// prefer aggregation of UTXO
-			@Override
-			public int compare (TransactionOutput o1, TransactionOutput o2)
-			{
-				return o1.getValue () < o2.getValue () ? -1 : o1.getValue () > o2.getValue () ? 1 : 0;
-			}
-		});
-		candidates.addAll (changelist);
+			return null;
+		}
+		List<TransactionOutput> result = getOutputs (selected);
+		if ( result != null )
+		{
+			return result;
+		}
+		// an update spent a selected output since the copy was taken, select again without letting updates in
+		synchronized ( updateLock )
+		{
+			selected = selectSources (confirmedIndex, changeIndex, amount, fee, color);
+			return selected == null ? null : getOutputs (selected);
+		}
+	}
 
-		List<TransactionOutput> result = new ArrayList<TransactionOutput> ();
-		long sum = 0;
-		for ( TransactionOutput o : candidates )
+	private List<UTXOIndex.Entry> selectSources (UTXOIndex confirmedIndex, UTXOIndex changeIndex, long amount, long fee, String color)
+	{
+		List<UTXOIndex.Entry> selected;
+		if ( color == null )
+		{
+			selected = coinSelector.select (confirmedIndex.getOutputs (null), changeIndex.getOutputs (null), amount + fee);
+		}
+		else
 		{
-			if ( color == null )
+			selected = coinSelector.select (confirmedIndex.getOutputs (color), changeIndex.getOutputs (color), amount);
+			if ( selected != null && fee > 0 )
 			{
-				if ( o.getColor () == null )
+				List<UTXOIndex.Entry> feeSources = coinSelector.select (confirmedIndex.getOutputs (null), changeIndex.getOutputs (null), fee);
+				if ( feeSources == null )
 				{
-					sum += o.getValue ();
-					result.add (o);
-					if ( sum >= (amount + fee) )
-					{
-						return result;
-					}
+					return null;
 				}
+				selected.addAll (feeSources);
 			}
-			else
+		}
+		return selected;
+	}
+
+	// null if any of the outputs was spent
+	private List<TransactionOutput> getOutputs (List<UTXOIndex.Entry> selected)
+	{
+		List<TransactionOutput> result = new ArrayList<TransactionOutput> (selected.size ());
+		for ( UTXOIndex.Entry e : selected )
+		{
+			TransactionOutput o = confirmed.get (e.getTxHash (), e.getIx ());
+			if ( o == null )
 			{
-				if ( o.getColor ().equals (color) )
-				{
-					sum += o.getValue ();
-					result.add (o);
-					if ( sum >= amount )
-					{
-						if ( fee > 0 )
-						{
-							result.addAll (getSufficientSources (0, fee, null));
-						}
-						return result;
-					}
-				}
+				o = change.get (e.getTxHash (), e.getIx ());
+			}
+			if ( o == null )
+			{
+				return null;
 			}
+			result.add (o);
 		}
-		return null;
+		return result;
 	}
 
 	@Override
@@ -383,46 +654,44 @@ public abstract class BaseAccountManager implements AccountManager
 	@Override
 	public Transaction pay (List<Address> receiver, List<Long> amounts, long fee, boolean senderPaysFee) throws ValidationException
 	{
-		synchronized ( confirmed )
+		long amount = 0;
+		for ( Long a : amounts )
 		{
-			long amount = 0;
-			for ( Long a : amounts )
-			{
-				amount += a;
-			}
-			log.trace ("pay " + amount + (senderPaysFee ? " + " + fee : ""));
-			List<TransactionOutput> sources = getSufficientSources (amount, senderPaysFee ? fee : 0, null);
-			if ( sources == null )
-			{
-				throw new ValidationException ("Insufficient funds to pay " + amount + (senderPaysFee ? " + " + fee : ""));
-			}
-			long in = 0;
-			for ( TransactionOutput o : sources )
-			{
-				log.trace ("using input " + o.getTxHash () + "[" + o.getIx () + "] " + o.getValue ());
-				in += o.getValue ();
-			}
-			List<TransactionSink> sinks = new ArrayList<TransactionSink> ();
-			Iterator<Long> ai = amounts.iterator ();
-			for ( Address r : receiver )
-			{
-				sinks.add (new TransactionSink (r, ai.next ()));
-			}
-			if ( !senderPaysFee )
-			{
-				TransactionSink last = sinks.get (sinks.size () - 1);
-				sinks.set (sinks.size () - 1, new TransactionSink (last.getAddress (),
-						Math.max (last.getValue () - fee, 0)));
-			}
-			if ( (in - amount) > (senderPaysFee ? fee : 0) )
-			{
-				TransactionSink change = new TransactionSink (getNextAddress (), in - amount - (senderPaysFee ? fee : 0));
-				log.trace ("change to " + change.getAddress () + " " + change.getValue ());
-				sinks.add (change);
-			}
-			Collections.shuffle (sinks);
-			return createSpend (sources, sinks, fee);
+			amount += a;
+		}
+		log.trace ("pay " + amount + (senderPaysFee ? " + " + fee : ""));
+		// sources are selected from a copy of the spendable outputs, neither selection nor signing blocks updates
+		List<TransactionOutput> sources = getSufficientSources (amount, senderPaysFee ? fee : 0, null);
+		if ( sources == null )
+		{
+			throw new ValidationException ("Insufficient funds to pay " + amount + (senderPaysFee ? " + " + fee : ""));
+		}
+		long in = 0;
+		for ( TransactionOutput o : sources )
+		{
+			log.trace ("using input " + o.getTxHash () + "[" + o.getIx () + "] " + o.getValue ());
+			in += o.getValue ();
 		}
+		List<TransactionSink> sinks = new ArrayList<TransactionSink> ();
+		Iterator<Long> ai = amounts.iterator ();
+		for ( Address r : receiver )
+		{
+			sinks.add (new TransactionSink (r, ai.next ()));
+		}
+		if ( !senderPaysFee )
+		{
+			TransactionSink last = sinks.get (sinks.size () - 1);
+			sinks.set (sinks.size () - 1, new TransactionSink (last.getAddress (),
+					Math.max (last.getValue () - fee, 0)));
+		}
+		if ( (in - amount) > (senderPaysFee ? fee : 0) )
+		{
+			TransactionSink change = new TransactionSink (getNextAddress (), in - amount - (senderPaysFee ? fee : 0));
+			log.trace ("change to " + change.getAddress () + " " + change.getValue ());
+			sinks.add (change);
+		}
+		Collections.shuffle (sinks);
+		return createSpend (sources, sinks, fee);
 	}
 
 	@Override
@@ -458,7 +727,7 @@ public abstract class BaseAccountManager implements AccountManager
 
 	public boolean updateWithTransaction (Transaction t)
 	{
-		synchronized ( confirmed )
+		synchronized ( updateLock )
 		{
 			boolean modified = false;
 			if ( !t.isDoubleSpend () )
@@ -470,6 +739,8 @@ public abstract class BaseAccountManager implements AccountManager
 					if ( spend != null )
 					{
 						confirmed.remove (i.getSourceHash (), i.getIx ());
+						confirmedTotal -= spend.getValue ();
+						confirmedIndex.remove (spend);
 						log.trace ("Spend settled output " + i.getSourceHash () + " [" + i.getIx () + "] " + spend.getValue ());
 					}
 					else
@@ -478,6 +749,8 @@ public abstract class BaseAccountManager implements AccountManager
 						if ( spend != null )
 						{
 							change.remove (i.getSourceHash (), i.getIx ());
+							changeTotal -= spend.getValue ();
+							changeIndex.remove (spend);
 							log.trace ("Spend change output " + i.getSourceHash () + " [" + i.getIx () + "] " + spend.getValue ());
 						}
 						else
@@ -486,6 +759,7 @@ public abstract class BaseAccountManager implements AccountManager
 							if ( spend != null )
 							{
 								receiving.remove (i.getSourceHash (), i.getIx ());
+								receivingTotal -= spend.getValue ();
 								log.trace ("Spend receiving output " + i.getSourceHash () + " [" + i.getIx () + "] " + spend.getValue ());
 							}
 						}
@@ -494,10 +768,14 @@ public abstract class BaseAccountManager implements AccountManager
 				modified = spend != null;
 				for ( TransactionOutput o : t.getOutputs () )
 				{
-					confirmed.remove (o.getTxHash (), o.getIx ());
-					change.remove (o.getTxHash (), o.getIx ());
-					receiving.remove (o.getTxHash (), o.getIx ());
-					sending.remove (o.getTxHash (), o.getIx ());
+					TransactionOutput replaced = confirmed.remove (o.getTxHash (), o.getIx ());
+					confirmedTotal -= valueOf (replaced);
+					confirmedIndex.remove (replaced);
+					replaced = change.remove (o.getTxHash (), o.getIx ());
+					changeTotal -= valueOf (replaced);
+					changeIndex.remove (replaced);
+					receivingTotal -= valueOf (receiving.remove (o.getTxHash (), o.getIx ()));
+					sendingTotal -= valueOf (sending.remove (o.getTxHash (), o.getIx ()));
 
 					if ( isOwnAddress (o.getOutputAddress ()) )
 					{
@@ -505,6 +783,8 @@ public abstract class BaseAccountManager implements AccountManager
 						if ( t.getBlockHash () != null )
 						{
 							confirmed.add (o);
+							confirmedTotal += o.getValue ();
+							confirmedIndex.add (o);
 							log.trace ("Settled " + t.getHash () + " [" + o.getIx () + "] (" + o.getOutputAddress () + ") " + o.getValue ());
 						}
 						else
@@ -512,12 +792,15 @@ public abstract class BaseAccountManager implements AccountManager
 							if ( spend != null )
 							{
 								change.add (o);
+								changeTotal += o.getValue ();
+								changeIndex.add (o);
 								log.trace ("Change " + t.getHash () + " [" + o.getIx () + "] (" + o.getOutputAddress () + ") "
 										+ o.getValue ());
 							}
 							else
 							{
 								receiving.add (o);
+								receivingTotal += o.getValue ();
 								log.trace ("Receiving " + t.getHash () + " [" + o.getIx () + "] (" + o.getOutputAddress () + ") "
 										+ o.getValue ());
 							}
@@ -529,6 +812,7 @@ public abstract class BaseAccountManager implements AccountManager
 						{
 							modified = true;
 							sending.add (o);
+							sendingTotal += o.getValue ();
 							log.trace ("Sending " + t.getHash () + " [" + o.getIx () + "] (" + o.getOutputAddress () + ") " + o.getValue ());
 						}
 					}
@@ -544,17 +828,23 @@ public abstract class BaseAccountManager implements AccountManager
 				{
 					TransactionOutput out = null;
 					out = confirmed.remove (t.getHash (), ix);
+					confirmedTotal -= valueOf (out);
+					confirmedIndex.remove (out);
 					if ( out == null )
 					{
 						out = change.remove (t.getHash (), ix);
+						changeTotal -= valueOf (out);
+						changeIndex.remove (out);
 					}
 					if ( out == null )
 					{
 						out = receiving.remove (t.getHash (), ix);
+						receivingTotal -= valueOf (out);
 					}
 					if ( out == null )
 					{
 						out = sending.remove (t.getHash (), ix);
+						sendingTotal -= valueOf (out);
 					}
 					if ( out != null )
 					{
@@ -565,6 +855,11 @@ public abstract class BaseAccountManager implements AccountManager
 				}
 				transactions.remove (t.getHash ());
 			}
+			if ( modified )
+			{
+				spendable = null;
+			}
+			publishBalance ();
 			return modified;
 		}
 	}
@@ -572,46 +867,32 @@ public abstract class BaseAccountManager implements AccountManager
 	@Override
 	public long getBalance ()
 	{
-		synchronized ( confirmed )
-		{
-			return confirmed.getTotal () + change.getTotal () + receiving.getTotal ();
-		}
+		Balance b = balance;
+		return b.confirmed + b.change + b.receiving;
 	}
 
 	@Override
 	public long getConfirmed ()
 	{
-		synchronized ( confirmed )
-		{
-			return confirmed.getTotal ();
-		}
+		return balance.confirmed;
 	}
 
 	@Override
 	public long getSending ()
 	{
-		synchronized ( confirmed )
-		{
-			return sending.getTotal ();
-		}
+		return balance.sending;
 	}
 
 	@Override
 	public long getReceiving ()
 	{
-		synchronized ( confirmed )
-		{
-			return receiving.getTotal ();
-		}
+		return balance.receiving;
 	}
 
 	@Override
 	public long getChange ()
 	{
-		synchronized ( confirmed )
-		{
-			return change.getTotal ();
-		}
+		return balance.change;
 	}
 
 	@Override
@@ -652,18 +933,15 @@ public abstract class BaseAccountManager implements AccountManager
 
 	protected void notifyListener (Transaction t)
 	{
-		synchronized ( accountListener )
+		for ( AccountListener l : accountListener.getListeners () )
 		{
-			for ( AccountListener l : accountListener )
+			try
 			{
-				try
-				{
-					l.accountChanged (this, t);
-				}
-				catch ( Exception e )
-				{
-					log.error ("Uncaught exception in account listener", e);
-				}
+				l.accountChanged (this, t);
+			}
+			catch ( Exception e )
+			{
+				log.error ("Uncaught exception in account listener", e);
 			}
 		}
 	}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.wallet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+
+/**
+ * Strategy to select sources of a payment from value ordered indexes of confirmed and change outputs.
+ */
+public interface CoinSelector
+{
+	/**
+	 * @param confirmed
+	 *            - confirmed outputs in ascending order of value
+	 * @param change
+	 *            - unconfirmed change outputs in ascending order of value
+	 * @param target
+	 *            - minimum sum of selected outputs
+	 * @return selected outputs or null if the target can not be reached
+	 */
+	public List<UTXOIndex.Entry> select (NavigableSet<UTXOIndex.Entry> confirmed, NavigableSet<UTXOIndex.Entry> change, long target);
+
+	/**
+	 * Takes outputs in the order of the iterator, confirmed before change.
+	 */
+	public static abstract class Sequential implements CoinSelector
+	{
+		protected abstract Iterator<UTXOIndex.Entry> iterator (NavigableSet<UTXOIndex.Entry> set);
+
+		@Override
+		public List<UTXOIndex.Entry> select (NavigableSet<UTXOIndex.Entry> confirmed, NavigableSet<UTXOIndex.Entry> change, long target)
+		{
+			List<UTXOIndex.Entry> result = new ArrayList<UTXOIndex.Entry> ();
+			long sum = fill (iterator (confirmed), result, 0, target);
+			if ( sum < target )
+			{
+				sum = fill (iterator (change), result, sum, target);
+			}
+			return sum >= target ? result : null;
+		}
+
+		private static long fill (Iterator<UTXOIndex.Entry> source, List<UTXOIndex.Entry> result, long sum, long target)
+		{
+			while ( sum < target && source.hasNext () )
+			{
+				UTXOIndex.Entry e = source.next ();
+				result.add (e);
+				sum += e.getValue ();
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Smallest outputs first, confirmed before change. This aggregates UTXO over time.
+	 */
+	public static class SmallestFirst extends Sequential
+	{
+		@Override
+		protected Iterator<UTXOIndex.Entry> iterator (NavigableSet<UTXOIndex.Entry> set)
+		{
+			return set.iterator ();
+		}
+	}
+
+	/**
+	 * Largest outputs first, confirmed before change. Uses the fewest inputs.
+	 */
+	public static class LargestFirst extends Sequential
+	{
+		@Override
+		protected Iterator<UTXOIndex.Entry> iterator (NavigableSet<UTXOIndex.Entry> set)
+		{
+			return set.descendingIterator ();
+		}
+	}
+
+	/**
+	 * Smallest outputs first, then keeps adding the smallest confirmed outputs up to a maximum number of inputs to consolidate dust.
+	 */
+	public static class Consolidation implements CoinSelector
+	{
+		private final int maxInputs;
+
+		public Consolidation (int maxInputs)
+		{
+			this.maxInputs = maxInputs;
+		}
+
+		@Override
+		public List<UTXOIndex.Entry> select (NavigableSet<UTXOIndex.Entry> confirmed, NavigableSet<UTXOIndex.Entry> change, long target)
+		{
+			List<UTXOIndex.Entry> result = new SmallestFirst ().select (confirmed, change, target);
+			if ( result != null && result.size () < maxInputs )
+			{
+				// skip those already selected by outpoint, the set may have changed since they were taken
+				Set<UTXOIndex.Entry> selected = new HashSet<UTXOIndex.Entry> (result);
+				Iterator<UTXOIndex.Entry> i = confirmed.iterator ();
+				while ( result.size () < maxInputs && i.hasNext () )
+				{
+					UTXOIndex.Entry e = i.next ();
+					if ( !selected.contains (e) )
+					{
+						result.add (e);
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Depth first search for a set of outputs that sums up to the target within a tolerance, so that no change output is needed. Falls
+	 * back to an other strategy if no such set is found within a limited number of tries.
+	 */
+	public static class BranchAndBound implements CoinSelector
+	{
+		private static final int MAX_CANDIDATES = 1000;
+		private static final int MAX_TRIES = 10000;
+
+		private final long tolerance;
+		private final CoinSelector fallback;
+
+		public BranchAndBound (long tolerance, CoinSelector fallback)
+		{
+			this.tolerance = tolerance;
+			this.fallback = fallback;
+		}
+
+		@Override
+		public List<UTXOIndex.Entry> select (NavigableSet<UTXOIndex.Entry> confirmed, NavigableSet<UTXOIndex.Entry> change, long target)
+		{
+			long limit = target + tolerance < 0 ? Long.MAX_VALUE : target + tolerance;
+			List<UTXOIndex.Entry> candidates = new ArrayList<UTXOIndex.Entry> ();
+			Iterator<UTXOIndex.Entry> ci = UTXOIndex.atMost (confirmed, limit).descendingIterator ();
+			Iterator<UTXOIndex.Entry> hi = UTXOIndex.atMost (change, limit).descendingIterator ();
+			UTXOIndex.Entry c = ci.hasNext () ? ci.next () : null;
+			UTXOIndex.Entry h = hi.hasNext () ? hi.next () : null;
+			// merge the two sets in descending order of value
+			while ( candidates.size () < MAX_CANDIDATES && (c != null || h != null) )
+			{
+				if ( h == null || (c != null && c.getValue () >= h.getValue ()) )
+				{
+					candidates.add (c);
+					c = ci.hasNext () ? ci.next () : null;
+				}
+				else
+				{
+					candidates.add (h);
+					h = hi.hasNext () ? hi.next () : null;
+				}
+			}
+			int n = candidates.size ();
+			long[] remaining = new long[n + 1];
+			for ( int i = n - 1; i >= 0; --i )
+			{
+				remaining[i] = remaining[i + 1] + candidates.get (i).getValue ();
+			}
+			boolean[] selected = new boolean[n];
+			if ( search (candidates, remaining, selected, 0, 0, target, limit, new int[] { MAX_TRIES }) )
+			{
+				List<UTXOIndex.Entry> result = new ArrayList<UTXOIndex.Entry> ();
+				for ( int i = 0; i < n; ++i )
+				{
+					if ( selected[i] )
+					{
+						result.add (candidates.get (i));
+					}
+				}
+				return result;
+			}
+			return fallback.select (confirmed, change, target);
+		}
+
+		private boolean search (List<UTXOIndex.Entry> candidates, long[] remaining, boolean[] selected, int depth, long sum, long target, long limit,
+				int[] tries)
+		{
+			if ( sum >= target )
+			{
+				return sum <= limit;
+			}
+			if ( depth == candidates.size () || sum + remaining[depth] < target || --tries[0] < 0 )
+			{
+				return false;
+			}
+			long value = candidates.get (depth).getValue ();
+			if ( sum + value <= limit )
+			{
+				selected[depth] = true;
+				if ( search (candidates, remaining, selected, depth + 1, sum + value, target, limit, tries) )
+				{
+					return true;
+				}
+				selected[depth] = false;
+			}
+			return search (candidates, remaining, selected, depth + 1, sum, target, limit, tries);
+		}
+	}
+}
@@ -16,10 +16,9 @@
 package com.bitsofproof.supernode.wallet;
 
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import com.bitsofproof.supernode.api.Address;
 import com.bitsofproof.supernode.api.BCSAPI;
 import com.bitsofproof.supernode.api.BCSAPIException;
+import com.bitsofproof.supernode.api.ScanCheckpointListener;
 import com.bitsofproof.supernode.api.Transaction;
 import com.bitsofproof.supernode.api.TransactionListener;
 import com.bitsofproof.supernode.api.TransactionOutput;
@@ -38,8 +38,10 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 {
 	private static final Logger log = LoggerFactory.getLogger (ExtendedKeyAccountManager.class);
 
-	private final Set<Integer> usedKeys = new HashSet<Integer> ();
-	private final Map<Address, Integer> keyIDForAddress = new HashMap<Address, Integer> ();
+	// keys are looked up by pay while transactions are processed on listener threads
+	private final Set<Integer> usedKeys = Collections.newSetFromMap (new ConcurrentHashMap<Integer, Boolean> ());
+	private final Map<Address, Integer> keyIDForAddress = new ConcurrentHashMap<Address, Integer> ();
+	private final Object keyLock = new Object ();
 	private ExtendedKey master;
 	private int nextSequence;
 	private int lookAhead = 100;
@@ -91,17 +93,20 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 
 	private void ensureLookAhead (int from)
 	{
-		while ( keyIDForAddress.size () < (from + lookAhead - firstIndex) )
+		synchronized ( keyLock )
 		{
-			Key key = null;
-			try
-			{
-				key = master.getKey (keyIDForAddress.size () + firstIndex);
-			}
-			catch ( ValidationException e )
+			while ( keyIDForAddress.size () < (from + lookAhead - firstIndex) )
 			{
+				Key key = null;
+				try
+				{
+					key = master.getKey (keyIDForAddress.size () + firstIndex);
+				}
+				catch ( ValidationException e )
+				{
+				}
+				keyIDForAddress.put (key.getAddress (), keyIDForAddress.size () + firstIndex);
 			}
-			keyIDForAddress.put (key.getAddress (), keyIDForAddress.size () + firstIndex);
 		}
 	}
 
@@ -113,14 +118,22 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 
 	public void setNextKey (int i)
 	{
-		nextSequence = i;
-		ensureLookAhead (nextSequence);
+		synchronized ( keyLock )
+		{
+			nextSequence = i;
+		}
+		ensureLookAhead (i);
 	}
 
 	@Override
 	public Key getNextKey () throws ValidationException
 	{
-		return getKey (nextSequence++);
+		int i;
+		synchronized ( keyLock )
+		{
+			i = nextSequence++;
+		}
+		return getKey (i);
 	}
 
 	public Set<Integer> getUsedKeys ()
@@ -130,6 +143,10 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 
 	public Integer getKeyIDForAddress (Address address)
 	{
+		if ( address == null )
+		{
+			return null;
+		}
 		Integer id = keyIDForAddress.get (address);
 		if ( id != null )
 		{
@@ -173,20 +190,53 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 				if ( thisKey != null )
 				{
 					ensureLookAhead (thisKey);
-					nextSequence = Math.max (nextSequence, thisKey + 1);
+					synchronized ( keyLock )
+					{
+						nextSequence = Math.max (nextSequence, thisKey + 1);
+					}
 				}
 			}
 			updateWithTransaction (t);
 		}
 	};
 
+	// checkpoint of an interrupted history scan, the state built up to there is kept
+	private volatile String historyCheckpoint;
+
+	private class CheckpointingProcessor implements TransactionListener, ScanCheckpointListener
+	{
+		@Override
+		public void process (Transaction t)
+		{
+			processor.process (t);
+		}
+
+		@Override
+		public void checkpoint (String checkpoint)
+		{
+			historyCheckpoint = checkpoint;
+		}
+	}
+
+	/**
+	 * Scans the history of the account. If an earlier call was interrupted after a checkpoint the scan continues from there. Checkpoints
+	 * are only sent by servers replying scans in chunks.
+	 */
 	@Override
 	public void syncHistory (BCSAPI api) throws BCSAPIException
 	{
-		reset ();
-		ensureLookAhead (0);
+		if ( historyCheckpoint == null )
+		{
+			reset ();
+			ensureLookAhead (0);
+		}
+		else
+		{
+			log.trace ("Resume sync from checkpoint " + historyCheckpoint);
+		}
 		log.trace ("Sync nkeys: " + (nextSequence - firstIndex));
-		api.scanTransactions (getMaster (), firstIndex, lookAhead, getCreated (), processor);
+		api.scanTransactions (getMaster (), firstIndex, lookAhead, getCreated (), historyCheckpoint, new CheckpointingProcessor ());
+		historyCheckpoint = null;
 		firstIndex = nextSequence;
 		for ( Integer id : usedKeys )
 		{
@@ -195,9 +245,25 @@ public class ExtendedKeyAccountManager extends BaseAccountManager implements Tra
 		log.trace ("Sync finished with nkeys: " + (nextSequence - firstIndex));
 	}
 
+	/**
+	 * Keys are not journaled with the UTXO sets, set the next key as before the restart so that those in use are derived again.
+	 */
+	@Override
+	public boolean catchUp (BCSAPI api) throws BCSAPIException
+	{
+		int next;
+		synchronized ( keyLock )
+		{
+			next = nextSequence;
+		}
+		ensureLookAhead (next);
+		return super.catchUp (api);
+	}
+
 	@Override
 	public void sync (BCSAPI api) throws BCSAPIException
 	{
+		historyCheckpoint = null;
 		reset ();
 		ensureLookAhead (0);
 		log.trace ("Sync nkeys: " + (nextSequence - firstIndex));
@@ -17,8 +17,8 @@ package com.bitsofproof.supernode.wallet;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.bitsofproof.supernode.api.TransactionOutput;
 
@@ -50,7 +50,7 @@ public class InMemoryUTXO implements AccountManager.UTXO
 
 	}
 
-	private final Map<TxOutKey, TransactionOutput> utxo = new HashMap<TxOutKey, TransactionOutput> ();
+	private final Map<TxOutKey, TransactionOutput> utxo = new ConcurrentHashMap<TxOutKey, TransactionOutput> ();
 
 	@Override
 	public void add (TransactionOutput out)
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.wallet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bitsofproof.supernode.api.TransactionOutput;
+import com.bitsofproof.supernode.common.ByteUtils;
+
+/**
+ * A persistent UTXO set. Every change is appended to a memory mapped journal, the journal is replayed into a {@link PackedUTXO} on open and
+ * rewritten with the live outputs only once it grew too large. Records are check-summed, a torn record at the end of the journal is
+ * discarded at replay. The journal also remembers the last block seen by the account so that it can catch up from there after restart.
+ */
+public class MappedUTXO implements AccountManager.UTXO
+{
+	private static final Logger log = LoggerFactory.getLogger (MappedUTXO.class);
+
+	private static final int CHUNK = 1024 * 1024;
+	private static final int MIN_RECORDS_FOR_COMPACTION = 4096;
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte BLOCK = 3;
+
+	private final File journal;
+	private final PackedUTXO state = new PackedUTXO ();
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int position;
+	private int records;
+	private String lastBlock;
+	private boolean syncOnWrite = false;
+
+	public MappedUTXO (File directory, String name) throws IOException
+	{
+		journal = new File (directory, name + ".utxo");
+		open ();
+		replay ();
+	}
+
+	/**
+	 * force every change to disk before returning. Without this the journal survives a crash of the process but not necessarily of the
+	 * host.
+	 */
+	public void setSyncOnWrite (boolean syncOnWrite)
+	{
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	private void open () throws IOException
+	{
+		file = new RandomAccessFile (journal, "rw");
+		channel = file.getChannel ();
+		long size = Math.max (CHUNK, (channel.size () + CHUNK - 1) / CHUNK * CHUNK);
+		map = channel.map (FileChannel.MapMode.READ_WRITE, 0, size);
+		position = 0;
+		records = 0;
+	}
+
+	private void replay ()
+	{
+		boolean torn = false;
+		while ( position + 4 <= map.capacity () )
+		{
+			int length = map.getInt (position);
+			if ( length == 0 )
+			{
+				break;
+			}
+			if ( length < 0 || position + 8 + length > map.capacity () )
+			{
+				torn = true;
+				break;
+			}
+			byte[] record = new byte[length];
+			ByteBuffer b = map.duplicate ();
+			b.position (position + 4);
+			b.get (record);
+			CRC32 crc = new CRC32 ();
+			crc.update (record);
+			if ( (int) crc.getValue () != b.getInt () )
+			{
+				torn = true;
+				break;
+			}
+			apply (ByteBuffer.wrap (record));
+			position += 8 + length;
+			++records;
+		}
+		if ( torn )
+		{
+			log.warn ("Discarding incomplete record at " + position + " of " + journal);
+			for ( int i = position; i < map.capacity (); ++i )
+			{
+				map.put (i, (byte) 0);
+			}
+			map.force ();
+		}
+		log.trace ("Replayed " + records + " records with " + state.size () + " outputs from " + journal);
+	}
+
+	private void apply (ByteBuffer record)
+	{
+		byte type = record.get ();
+		byte[] hash = new byte[32];
+		record.get (hash);
+		if ( type == ADD )
+		{
+			TransactionOutput out = new TransactionOutput ();
+			out.setTxHash (ByteUtils.toHex (hash));
+			out.setIx (record.getInt ());
+			out.setValue (record.getLong ());
+			if ( record.get () != 0 )
+			{
+				byte[] color = new byte[32];
+				record.get (color);
+				out.setColor (ByteUtils.toHex (color));
+			}
+			byte[] script = new byte[record.remaining ()];
+			record.get (script);
+			out.setScript (script);
+			state.add (out);
+		}
+		else if ( type == REMOVE )
+		{
+			state.remove (ByteUtils.toHex (hash), record.getInt ());
+		}
+		else if ( type == BLOCK )
+		{
+			lastBlock = ByteUtils.toHex (hash);
+		}
+	}
+
+	private static byte[] addRecord (TransactionOutput out)
+	{
+		byte[] script = out.getScript ();
+		int scriptLength = script != null ? script.length : 0;
+		ByteBuffer b = ByteBuffer.allocate (1 + 32 + 4 + 8 + 1 + (out.getColor () != null ? 32 : 0) + scriptLength);
+		b.put (ADD);
+		b.put (ByteUtils.fromHex (out.getTxHash ()));
+		b.putInt ((int) out.getIx ());
+		b.putLong (out.getValue ());
+		if ( out.getColor () != null )
+		{
+			b.put ((byte) 1);
+			b.put (ByteUtils.fromHex (out.getColor ()));
+		}
+		else
+		{
+			b.put ((byte) 0);
+		}
+		if ( script != null )
+		{
+			b.put (script);
+		}
+		return b.array ();
+	}
+
+	private static byte[] hashRecord (byte type, String hash, long ix)
+	{
+		ByteBuffer b = ByteBuffer.allocate (1 + 32 + (type == REMOVE ? 4 : 0));
+		b.put (type);
+		b.put (ByteUtils.fromHex (hash));
+		if ( type == REMOVE )
+		{
+			b.putInt ((int) ix);
+		}
+		return b.array ();
+	}
+
+	private void append (byte[] record)
+	{
+		try
+		{
+			if ( position + 8 + record.length + 4 > map.capacity () )
+			{
+				map.force ();
+				map = channel.map (FileChannel.MapMode.READ_WRITE, 0, map.capacity () + Math.max (CHUNK, record.length + 12));
+			}
+			CRC32 crc = new CRC32 ();
+			crc.update (record);
+			ByteBuffer b = map.duplicate ();
+			b.position (position + 4);
+			b.put (record);
+			b.putInt ((int) crc.getValue ());
+			// length goes last, a record becomes visible to replay only once complete
+			map.putInt (position, record.length);
+			position += 8 + record.length;
+			++records;
+			if ( syncOnWrite )
+			{
+				map.force ();
+			}
+		}
+		catch ( IOException e )
+		{
+			throw new IllegalStateException ("Can not extend UTXO journal " + journal, e);
+		}
+	}
+
+	private void compactIfNeeded ()
+	{
+		if ( records > MIN_RECORDS_FOR_COMPACTION && records > 2 * state.size () )
+		{
+			try
+			{
+				compact ();
+			}
+			catch ( IOException e )
+			{
+				log.error ("Can not compact UTXO journal " + journal, e);
+			}
+		}
+	}
+
+	/**
+	 * rewrite the journal with the live outputs only
+	 */
+	public synchronized void compact () throws IOException
+	{
+		File compacted = new File (journal.getPath () + ".compact");
+		try ( RandomAccessFile out = new RandomAccessFile (compacted, "rw") )
+		{
+			out.setLength (0);
+			FileChannel oc = out.getChannel ();
+			if ( lastBlock != null )
+			{
+				writeRecord (oc, hashRecord (BLOCK, lastBlock, 0));
+			}
+			for ( TransactionOutput o : state.getUTXO () )
+			{
+				writeRecord (oc, addRecord (o));
+			}
+			oc.force (true);
+		}
+		map.force ();
+		// the mapping is released before the move, a mapped file can not be replaced on some platforms
+		release ();
+		try
+		{
+			Files.move (compacted.toPath (), journal.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch ( IOException e )
+		{
+			// continue with the old journal
+			reopen ();
+			Files.deleteIfExists (compacted.toPath ());
+			throw e;
+		}
+		reopen ();
+		log.trace ("Compacted " + journal + " to " + records + " records");
+	}
+
+	// opens the journal again, state is already current so only positions are needed
+	private void reopen () throws IOException
+	{
+		open ();
+		int live = 0;
+		while ( position + 4 <= map.capacity () && map.getInt (position) != 0 )
+		{
+			position += 8 + map.getInt (position);
+			++live;
+		}
+		records = live;
+	}
+
+	private void release () throws IOException
+	{
+		MappedByteBuffer mapped = map;
+		map = null;
+		channel.close ();
+		file.close ();
+		unmap (mapped);
+	}
+
+	// a mapping is otherwise released only once it is garbage collected, there is no public API for this. The buffer must not be used
+	// afterwards.
+	private static void unmap (MappedByteBuffer buffer)
+	{
+		try
+		{
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName ("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod ("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField ("theUnsafe");
+			theUnsafe.setAccessible (true);
+			invokeCleaner.invoke (theUnsafe.get (null), buffer);
+		}
+		catch ( NoSuchMethodException e )
+		{
+			// Java 8
+			try
+			{
+				Method cleaner = buffer.getClass ().getMethod ("cleaner");
+				cleaner.setAccessible (true);
+				Object c = cleaner.invoke (buffer);
+				if ( c != null )
+				{
+					c.getClass ().getMethod ("clean").invoke (c);
+				}
+			}
+			catch ( Exception e2 )
+			{
+				log.trace ("Can not release mapping, it is released once garbage collected", e2);
+			}
+		}
+		catch ( Exception e )
+		{
+			log.trace ("Can not release mapping, it is released once garbage collected", e);
+		}
+	}
+
+	private static void writeRecord (FileChannel channel, byte[] record) throws IOException
+	{
+		CRC32 crc = new CRC32 ();
+		crc.update (record);
+		ByteBuffer b = ByteBuffer.allocate (record.length + 8);
+		b.putInt (record.length);
+		b.put (record);
+		b.putInt ((int) crc.getValue ());
+		b.flip ();
+		while ( b.hasRemaining () )
+		{
+			channel.write (b);
+		}
+	}
+
+	@Override
+	public synchronized void add (TransactionOutput out)
+	{
+		append (addRecord (out));
+		state.add (out);
+		compactIfNeeded ();
+	}
+
+	@Override
+	public Collection<TransactionOutput> getUTXO ()
+	{
+		return state.getUTXO ();
+	}
+
+	@Override
+	public TransactionOutput get (String tx, long ix)
+	{
+		return state.get (tx, ix);
+	}
+
+	@Override
+	public synchronized TransactionOutput remove (String tx, long ix)
+	{
+		TransactionOutput out = state.remove (tx, ix);
+		if ( out != null )
+		{
+			append (hashRecord (REMOVE, tx, ix));
+			compactIfNeeded ();
+		}
+		return out;
+	}
+
+	@Override
+	public long getTotal ()
+	{
+		return state.getTotal ();
+	}
+
+	/**
+	 * @return hash of the last block recorded with setLastBlock, or null
+	 */
+	public synchronized String getLastBlock ()
+	{
+		return lastBlock;
+	}
+
+	/**
+	 * record the last block the account has seen, so that it can catch up from there after restart
+	 */
+	public synchronized void setLastBlock (String hash)
+	{
+		append (hashRecord (BLOCK, hash, 0));
+		lastBlock = hash;
+		compactIfNeeded ();
+	}
+
+	public synchronized void flush ()
+	{
+		map.force ();
+	}
+
+	public synchronized void close () throws IOException
+	{
+		map.force ();
+		channel.close ();
+		file.close ();
+	}
+
+	/**
+	 * close and remove the journal, the set is not to be used afterwards
+	 */
+	public synchronized void delete () throws IOException
+	{
+		close ();
+		Files.deleteIfExists (journal.toPath ());
+	}
+}
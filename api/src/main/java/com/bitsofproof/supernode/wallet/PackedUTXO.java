@@ -0,0 +1,389 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.wallet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.bitsofproof.supernode.api.TransactionOutput;
+import com.bitsofproof.supernode.common.ByteUtils;
+
+/**
+ * UTXO set for large accounts. Outpoints are kept in an open addressing table of primitive arrays keyed by the binary transaction hash and
+ * output index, scripts and colors are kept off-heap in a direct buffer. Outputs are materialized on demand, the total is maintained on
+ * every change.
+ */
+public class PackedUTXO implements AccountManager.UTXO
+{
+	private static final int HASH_LONGS = 4;
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int INITIAL_ARENA = 64 * 1024;
+
+	// per slot: binary hash as four longs, output index, value and location of script (and color) in the arena
+	private long[] hashes;
+	private int[] ixs;
+	private long[] values;
+	private int[] offsets;
+	private int[] lengths;
+
+	private ByteBuffer arena;
+	private int arenaUsed;
+	private int arenaGarbage;
+
+	private int size;
+	private long total;
+
+	public PackedUTXO ()
+	{
+		this (INITIAL_CAPACITY);
+	}
+
+	public PackedUTXO (int expectedSize)
+	{
+		int capacity = INITIAL_CAPACITY;
+		while ( capacity < expectedSize * 2 )
+		{
+			capacity <<= 1;
+		}
+		allocate (capacity);
+		arena = ByteBuffer.allocateDirect (INITIAL_ARENA);
+	}
+
+	private void allocate (int capacity)
+	{
+		hashes = new long[capacity * HASH_LONGS];
+		ixs = new int[capacity];
+		values = new long[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		for ( int i = 0; i < capacity; ++i )
+		{
+			ixs[i] = EMPTY;
+		}
+	}
+
+	private static long[] toKey (String tx)
+	{
+		byte[] h = ByteUtils.fromHex (tx);
+		if ( h.length != 32 )
+		{
+			throw new IllegalArgumentException ("Transaction hash must be 32 bytes");
+		}
+		long[] key = new long[HASH_LONGS];
+		for ( int i = 0; i < HASH_LONGS; ++i )
+		{
+			long l = 0;
+			for ( int j = 0; j < 8; ++j )
+			{
+				l = (l << 8) | (h[i * 8 + j] & 0xff);
+			}
+			key[i] = l;
+		}
+		return key;
+	}
+
+	private static String fromKey (long[] hashes, int slot)
+	{
+		byte[] h = new byte[32];
+		for ( int i = 0; i < HASH_LONGS; ++i )
+		{
+			long l = hashes[slot * HASH_LONGS + i];
+			for ( int j = 7; j >= 0; --j )
+			{
+				h[i * 8 + j] = (byte) (l & 0xff);
+				l >>>= 8;
+			}
+		}
+		return ByteUtils.toHex (h);
+	}
+
+	private int home (long[] key, int ix, int mask)
+	{
+		// transaction hashes are uniformly distributed already, just mix in the index
+		long h = key[0] ^ (ix * 0x9E3779B97F4A7C15L);
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private boolean matches (int slot, long[] key, int ix)
+	{
+		if ( ixs[slot] != ix )
+		{
+			return false;
+		}
+		int b = slot * HASH_LONGS;
+		return hashes[b] == key[0] && hashes[b + 1] == key[1] && hashes[b + 2] == key[2] && hashes[b + 3] == key[3];
+	}
+
+	private int find (long[] key, int ix)
+	{
+		int mask = ixs.length - 1;
+		int slot = home (key, ix, mask);
+		while ( ixs[slot] != EMPTY )
+		{
+			if ( matches (slot, key, ix) )
+			{
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int recordLength (byte[] script, String color)
+	{
+		return 1 + (color != null ? 32 : 0) + (script != null ? script.length : 0);
+	}
+
+	// may compact the arena, so call it before the slot being written is changed
+	private int storeRecord (byte[] script, String color)
+	{
+		int length = recordLength (script, color);
+		ensureArena (length);
+		int offset = arenaUsed;
+		ByteBuffer b = arena.duplicate ();
+		b.position (offset);
+		if ( color != null )
+		{
+			b.put ((byte) 1);
+			b.put (ByteUtils.fromHex (color));
+		}
+		else
+		{
+			b.put ((byte) 0);
+		}
+		if ( script != null )
+		{
+			b.put (script);
+		}
+		arenaUsed += length;
+		return offset;
+	}
+
+	private void ensureArena (int length)
+	{
+		if ( arenaUsed + length <= arena.capacity () )
+		{
+			return;
+		}
+		if ( arenaGarbage > arenaUsed / 2 )
+		{
+			compactArena ();
+			if ( arenaUsed + length <= arena.capacity () )
+			{
+				return;
+			}
+		}
+		int capacity = arena.capacity ();
+		while ( arenaUsed + length > capacity )
+		{
+			capacity <<= 1;
+		}
+		ByteBuffer grown = ByteBuffer.allocateDirect (capacity);
+		ByteBuffer old = arena.duplicate ();
+		old.position (0);
+		old.limit (arenaUsed);
+		grown.put (old);
+		arena = grown;
+	}
+
+	private void compactArena ()
+	{
+		ByteBuffer compacted = ByteBuffer.allocateDirect (arena.capacity ());
+		ByteBuffer old = arena.duplicate ();
+		for ( int slot = 0; slot < ixs.length; ++slot )
+		{
+			if ( ixs[slot] != EMPTY )
+			{
+				old.limit (offsets[slot] + lengths[slot]);
+				old.position (offsets[slot]);
+				offsets[slot] = compacted.position ();
+				compacted.put (old);
+				old.limit (old.capacity ());
+			}
+		}
+		arenaUsed = compacted.position ();
+		arenaGarbage = 0;
+		arena = compacted;
+	}
+
+	private TransactionOutput materialize (int slot)
+	{
+		TransactionOutput out = new TransactionOutput ();
+		out.setTxHash (fromKey (hashes, slot));
+		out.setIx (ixs[slot]);
+		out.setValue (values[slot]);
+		ByteBuffer b = arena.duplicate ();
+		b.position (offsets[slot]);
+		int scriptLength = lengths[slot] - 1;
+		if ( b.get () != 0 )
+		{
+			byte[] color = new byte[32];
+			b.get (color);
+			out.setColor (ByteUtils.toHex (color));
+			scriptLength -= 32;
+		}
+		byte[] script = new byte[scriptLength];
+		b.get (script);
+		out.setScript (script);
+		return out;
+	}
+
+	private void rehash (int capacity)
+	{
+		long[] oldHashes = hashes;
+		int[] oldIxs = ixs;
+		long[] oldValues = values;
+		int[] oldOffsets = offsets;
+		int[] oldLengths = lengths;
+		allocate (capacity);
+		int mask = capacity - 1;
+		long[] key = new long[HASH_LONGS];
+		for ( int i = 0; i < oldIxs.length; ++i )
+		{
+			if ( oldIxs[i] != EMPTY )
+			{
+				System.arraycopy (oldHashes, i * HASH_LONGS, key, 0, HASH_LONGS);
+				int slot = home (key, oldIxs[i], mask);
+				while ( ixs[slot] != EMPTY )
+				{
+					slot = (slot + 1) & mask;
+				}
+				System.arraycopy (key, 0, hashes, slot * HASH_LONGS, HASH_LONGS);
+				ixs[slot] = oldIxs[i];
+				values[slot] = oldValues[i];
+				offsets[slot] = oldOffsets[i];
+				lengths[slot] = oldLengths[i];
+			}
+		}
+	}
+
+	@Override
+	public synchronized void add (TransactionOutput out)
+	{
+		long[] key = toKey (out.getTxHash ());
+		int ix = (int) out.getIx ();
+		byte[] script = out.getScript ();
+		int offset = storeRecord (script, out.getColor ());
+		int slot = find (key, ix);
+		if ( slot >= 0 )
+		{
+			total -= values[slot];
+			arenaGarbage += lengths[slot];
+		}
+		else
+		{
+			if ( (size + 1) * 2 > ixs.length )
+			{
+				rehash (ixs.length * 2);
+			}
+			int mask = ixs.length - 1;
+			slot = home (key, ix, mask);
+			while ( ixs[slot] != EMPTY )
+			{
+				slot = (slot + 1) & mask;
+			}
+			System.arraycopy (key, 0, hashes, slot * HASH_LONGS, HASH_LONGS);
+			ixs[slot] = ix;
+			++size;
+		}
+		values[slot] = out.getValue ();
+		lengths[slot] = recordLength (script, out.getColor ());
+		offsets[slot] = offset;
+		total += out.getValue ();
+	}
+
+	@Override
+	public synchronized Collection<TransactionOutput> getUTXO ()
+	{
+		List<TransactionOutput> outputs = new ArrayList<TransactionOutput> (size);
+		for ( int slot = 0; slot < ixs.length; ++slot )
+		{
+			if ( ixs[slot] != EMPTY )
+			{
+				outputs.add (materialize (slot));
+			}
+		}
+		return Collections.unmodifiableCollection (outputs);
+	}
+
+	@Override
+	public synchronized TransactionOutput get (String tx, long ix)
+	{
+		int slot = find (toKey (tx), (int) ix);
+		if ( slot < 0 )
+		{
+			return null;
+		}
+		return materialize (slot);
+	}
+
+	@Override
+	public synchronized TransactionOutput remove (String tx, long ix)
+	{
+		int slot = find (toKey (tx), (int) ix);
+		if ( slot < 0 )
+		{
+			return null;
+		}
+		TransactionOutput out = materialize (slot);
+		total -= values[slot];
+		arenaGarbage += lengths[slot];
+		--size;
+
+		// backward shift deletion keeps probe sequences intact without tombstones
+		int mask = ixs.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		long[] key = new long[HASH_LONGS];
+		while ( ixs[next] != EMPTY )
+		{
+			System.arraycopy (hashes, next * HASH_LONGS, key, 0, HASH_LONGS);
+			int h = home (key, ixs[next], mask);
+			if ( ((next - h) & mask) >= ((next - hole) & mask) )
+			{
+				System.arraycopy (key, 0, hashes, hole * HASH_LONGS, HASH_LONGS);
+				ixs[hole] = ixs[next];
+				values[hole] = values[next];
+				offsets[hole] = offsets[next];
+				lengths[hole] = lengths[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		ixs[hole] = EMPTY;
+		if ( size == 0 )
+		{
+			arenaUsed = 0;
+			arenaGarbage = 0;
+		}
+		return out;
+	}
+
+	@Override
+	public synchronized long getTotal ()
+	{
+		return total;
+	}
+
+	public synchronized int size ()
+	{
+		return size;
+	}
+}
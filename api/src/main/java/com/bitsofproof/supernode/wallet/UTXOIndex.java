@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.wallet;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.bitsofproof.supernode.api.TransactionOutput;
+
+/**
+ * Value ordered index of a UTXO set, one bucket per color. Holds outpoints and values only, selected outputs are to be fetched from the
+ * UTXO set. Safe to read while an other thread updates it.
+ */
+public class UTXOIndex
+{
+	public static class Entry
+	{
+		private final long value;
+		private final String txHash;
+		private final long ix;
+
+		public Entry (long value, String txHash, long ix)
+		{
+			this.value = value;
+			this.txHash = txHash;
+			this.ix = ix;
+		}
+
+		public long getValue ()
+		{
+			return value;
+		}
+
+		public String getTxHash ()
+		{
+			return txHash;
+		}
+
+		public long getIx ()
+		{
+			return ix;
+		}
+
+		// an outpoint has a single value, so this agrees with the order of the index
+		@Override
+		public boolean equals (Object obj)
+		{
+			if ( !(obj instanceof Entry) )
+			{
+				return false;
+			}
+			Entry o = (Entry) obj;
+			return o.txHash.equals (txHash) && o.ix == ix;
+		}
+
+		@Override
+		public int hashCode ()
+		{
+			return (int) (txHash.hashCode () + ix);
+		}
+	}
+
+	private static final Comparator<Entry> byValue = new Comparator<Entry> ()
+	{
+		@Override
+		public int compare (Entry a, Entry b)
+		{
+			if ( a.value != b.value )
+			{
+				return a.value < b.value ? -1 : 1;
+			}
+			int c = a.txHash.compareTo (b.txHash);
+			if ( c != 0 )
+			{
+				return c;
+			}
+			return a.ix < b.ix ? -1 : a.ix > b.ix ? 1 : 0;
+		}
+	};
+
+	private static final NavigableSet<Entry> empty = new ConcurrentSkipListSet<Entry> (byValue);
+
+	private final NavigableSet<Entry> uncolored;
+	private final ConcurrentMap<String, NavigableSet<Entry>> colored = new ConcurrentHashMap<String, NavigableSet<Entry>> ();
+
+	public UTXOIndex ()
+	{
+		uncolored = new ConcurrentSkipListSet<Entry> (byValue);
+	}
+
+	public UTXOIndex (Collection<TransactionOutput> outputs)
+	{
+		this ();
+		for ( TransactionOutput o : outputs )
+		{
+			add (o);
+		}
+	}
+
+	/**
+	 * Copy of an index, it does not see later changes of the original. The original must not change while copied.
+	 */
+	public UTXOIndex (UTXOIndex index)
+	{
+		uncolored = new ConcurrentSkipListSet<Entry> (index.uncolored);
+		for ( Map.Entry<String, NavigableSet<Entry>> e : index.colored.entrySet () )
+		{
+			colored.put (e.getKey (), new ConcurrentSkipListSet<Entry> (e.getValue ()));
+		}
+	}
+
+	private NavigableSet<Entry> bucket (String color, boolean create)
+	{
+		if ( color == null )
+		{
+			return uncolored;
+		}
+		NavigableSet<Entry> set = colored.get (color);
+		if ( set == null && create )
+		{
+			NavigableSet<Entry> other = colored.putIfAbsent (color, set = new ConcurrentSkipListSet<Entry> (byValue));
+			if ( other != null )
+			{
+				set = other;
+			}
+		}
+		return set;
+	}
+
+	public void add (TransactionOutput o)
+	{
+		bucket (o.getColor (), true).add (new Entry (o.getValue (), o.getTxHash (), o.getIx ()));
+	}
+
+	public void remove (TransactionOutput o)
+	{
+		if ( o != null )
+		{
+			NavigableSet<Entry> set = bucket (o.getColor (), false);
+			if ( set != null )
+			{
+				set.remove (new Entry (o.getValue (), o.getTxHash (), o.getIx ()));
+			}
+		}
+	}
+
+	/**
+	 * @param color
+	 *            - null for uncolored outputs
+	 * @return live view of outputs of the color in ascending order of value, not to be modified
+	 */
+	public NavigableSet<Entry> getOutputs (String color)
+	{
+		NavigableSet<Entry> set = bucket (color, false);
+		if ( set == null )
+		{
+			return empty;
+		}
+		return set;
+	}
+
+	/**
+	 * @return outputs of the set with value not exceeding the limit
+	 */
+	public static NavigableSet<Entry> atMost (NavigableSet<Entry> set, long limit)
+	{
+		if ( limit == Long.MAX_VALUE )
+		{
+			return set;
+		}
+		// the empty hash sorts before any other with the same value
+		return set.headSet (new Entry (limit + 1, "", 0), false);
+	}
+}
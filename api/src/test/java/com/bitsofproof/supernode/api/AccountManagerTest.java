@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.ECKeyPair;
+import com.bitsofproof.supernode.common.ValidationException;
+import com.bitsofproof.supernode.wallet.CoinSelector;
+import com.bitsofproof.supernode.wallet.KeyListAccountManager;
+import com.bitsofproof.supernode.wallet.UTXOIndex;
+
+public class AccountManagerTest extends TestChain
+{
+	private static final long COIN = 100000000L;
+
+	private KeyListAccountManager account;
+	private ECKeyPair key;
+	private Address own;
+
+	@Before
+	public void setup () throws ValidationException
+	{
+		account = new KeyListAccountManager ();
+		key = ECKeyPair.createNew (true);
+		account.addKey (key);
+		own = key.getAddress ();
+	}
+
+	private static Transaction spend (Transaction source, long ix, Address to, String blockHash) throws ValidationException
+	{
+		Transaction t = spend (source, ix, to);
+		t.setBlockHash (blockHash);
+		return t;
+	}
+
+	private static Transaction coinbase (Address to, long value, int height) throws ValidationException
+	{
+		Transaction t = Transaction.createCoinbase (to, value, height);
+		t.setBlockHash ("block" + height);
+		return t;
+	}
+
+	private static long sum (Collection<TransactionOutput> outputs)
+	{
+		long sum = 0;
+		for ( TransactionOutput o : outputs )
+		{
+			sum += o.getValue ();
+		}
+		return sum;
+	}
+
+	private void assertTotals ()
+	{
+		assertEquals (sum (account.getConfirmedOutputs ()), account.getConfirmed ());
+		assertEquals (sum (account.getChangeOutputs ()), account.getChange ());
+		assertEquals (sum (account.getReceivingOutputs ()), account.getReceiving ());
+		assertEquals (sum (account.getSendingOutputs ()), account.getSending ());
+		assertEquals (account.getConfirmed () + account.getChange () + account.getReceiving (), account.getBalance ());
+	}
+
+	@Test
+	public void concurrentPayTest () throws Exception
+	{
+		final List<Transaction> held = new ArrayList<Transaction> ();
+		for ( int i = 0; i < 10; ++i )
+		{
+			Transaction t = coinbase (own, COIN, i);
+			account.updateWithTransaction (t);
+			held.add (t);
+		}
+		assertEquals (10 * COIN, account.getConfirmed ());
+
+		// moves confirmed outputs to new ones of the same value, the confirmed balance never changes between two updates. Payments need
+		// all of them.
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable> ();
+		Thread writer = new Thread ()
+		{
+			@Override
+			public void run ()
+			{
+				try
+				{
+					for ( int n = 0; n < 5000; ++n )
+					{
+						int i = n % held.size ();
+						Transaction t = spend (held.get (i), 0, own, "block" + n);
+						account.updateWithTransaction (t);
+						held.set (i, t);
+					}
+				}
+				catch ( Throwable e )
+				{
+					failure.set (e);
+				}
+			}
+		};
+		writer.start ();
+		while ( writer.isAlive () )
+		{
+			Transaction p = account.pay (other, 9 * COIN, 10000, true);
+			// all sources are of one coin
+			long in = p.getInputs ().size () * COIN;
+			long out = 0;
+			for ( TransactionOutput o : p.getOutputs () )
+			{
+				out += o.getValue ();
+			}
+			assertEquals (in, out + 10000);
+		}
+		writer.join ();
+		assertNull (failure.get ());
+		assertEquals (10 * COIN, account.getConfirmed ());
+		assertEquals (10, account.getConfirmedOutputs ().size ());
+	}
+
+	@Test
+	public void balanceTest () throws Exception
+	{
+		Transaction received = Transaction.createCoinbase (own, 5 * COIN, 100);
+		account.updateWithTransaction (received);
+		assertEquals (5 * COIN, account.getReceiving ());
+		assertTotals ();
+
+		received.setBlockHash ("block100");
+		account.updateWithTransaction (received);
+		account.updateWithTransaction (coinbase (own, 3 * COIN, 101));
+		assertEquals (8 * COIN, account.getConfirmed ());
+		assertEquals (0, account.getReceiving ());
+		assertTotals ();
+
+		Transaction paid = account.pay (other, 6 * COIN, 10000, true);
+		account.updateWithTransaction (paid);
+		assertEquals (6 * COIN, account.getSending ());
+		assertEquals (2 * COIN - 10000, account.getChange ());
+		assertEquals (0, account.getConfirmed ());
+		assertTotals ();
+
+		// spends the unconfirmed change
+		Transaction repaid = account.pay (other, COIN, 10000, true);
+		account.updateWithTransaction (repaid);
+		assertEquals (7 * COIN, account.getSending ());
+		assertEquals (COIN - 20000, account.getChange ());
+		assertTotals ();
+
+		paid.setBlockHash ("block102");
+		account.updateWithTransaction (paid);
+		repaid.setBlockHash ("block102");
+		account.updateWithTransaction (repaid);
+		assertEquals (COIN - 20000, account.getConfirmed ());
+		assertEquals (0, account.getSending ());
+		assertEquals (0, account.getChange ());
+		assertTotals ();
+
+		Transaction doubleSpent = Transaction.createCoinbase (own, COIN, 103);
+		account.updateWithTransaction (doubleSpent);
+		assertEquals (COIN, account.getReceiving ());
+		doubleSpent.setDoubleSpend (true);
+		account.updateWithTransaction (doubleSpent);
+		assertEquals (0, account.getReceiving ());
+		assertTotals ();
+
+		// sync resets the account and rebuilds it from the chain
+		DirectBCSAPI api = new DirectBCSAPI ();
+		try
+		{
+			LocalBlockStore store = new LocalBlockStore ();
+			store.addBlock (block (null, Transaction.createCoinbase (own, 50 * COIN, 0)));
+			api.setHandler (store);
+			api.init ();
+			account.sync (api);
+			assertEquals (50 * COIN, account.getConfirmed ());
+			assertEquals (1, account.getConfirmedOutputs ().size ());
+			assertEquals (50 * COIN, account.getBalance ());
+			assertTotals ();
+		}
+		finally
+		{
+			api.destroy ();
+		}
+	}
+
+	@Test
+	public void trunkUpdateTest () throws Exception
+	{
+		Transaction cb = Transaction.createCoinbase (own, 50 * COIN, 0);
+		Block b = block (null, cb);
+
+		account.trunkUpdate (null, Arrays.asList (b));
+		assertEquals (50 * COIN, account.getConfirmed ());
+
+		// the block is shared with other listeners and must not change
+		account.trunkUpdate (Arrays.asList (b), null);
+		assertEquals (0, account.getConfirmed ());
+		assertEquals (50 * COIN, account.getReceiving ());
+		assertEquals (b.getHash (), cb.getBlockHash ());
+
+		cb.setBlockHash (null);
+		account.trunkUpdate (null, Arrays.asList (b));
+		assertEquals (50 * COIN, account.getConfirmed ());
+		assertEquals (0, account.getReceiving ());
+		assertNull (cb.getBlockHash ());
+	}
+
+	@Test
+	public void selectWhileUpdatingTest () throws Exception
+	{
+		account.updateWithTransaction (coinbase (own, COIN, 0));
+		final CountDownLatch selecting = new CountDownLatch (1);
+		final CountDownLatch updated = new CountDownLatch (1);
+		final CoinSelector selector = new CoinSelector.SmallestFirst ();
+		account.setCoinSelector (new CoinSelector ()
+		{
+			@Override
+			public List<UTXOIndex.Entry> select (NavigableSet<UTXOIndex.Entry> confirmed, NavigableSet<UTXOIndex.Entry> change, long target)
+			{
+				selecting.countDown ();
+				try
+				{
+					if ( !updated.await (5, TimeUnit.SECONDS) )
+					{
+						throw new IllegalStateException ("update waits for coin selection");
+					}
+				}
+				catch ( InterruptedException e )
+				{
+				}
+				return selector.select (confirmed, change, target);
+			}
+		});
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable> ();
+		Thread payer = new Thread ()
+		{
+			@Override
+			public void run ()
+			{
+				try
+				{
+					account.pay (other, COIN / 2, 10000, true);
+				}
+				catch ( Throwable e )
+				{
+					failure.set (e);
+				}
+			}
+		};
+		payer.start ();
+		assertTrue (selecting.await (10, TimeUnit.SECONDS));
+		// a listener update does not wait for the payment's coin selection
+		account.updateWithTransaction (coinbase (own, COIN, 1));
+		updated.countDown ();
+		payer.join ();
+		assertNull (failure.get ());
+		assertEquals (2 * COIN, account.getConfirmed ());
+	}
+
+	@Test
+	public void restartTest () throws Exception
+	{
+		File directory = Files.createTempDirectory ("account").toFile ();
+		DirectBCSAPI api = new DirectBCSAPI ();
+		try
+		{
+			Block seen = block (null, Transaction.createCoinbase (own, 50 * COIN, 0));
+			LocalBlockStore store = new LocalBlockStore ();
+			store.addBlock (seen);
+			api.setHandler (store);
+			api.init ();
+
+			account.setUTXODirectory (directory);
+			assertFalse (account.catchUp (api));
+			account.trunkUpdate (null, Arrays.asList (seen));
+			assertEquals (50 * COIN, account.getConfirmed ());
+			assertEquals (seen.getHash (), account.getLastBlock ());
+			account.close ();
+
+			// missed while down
+			Block missed = block (seen, Transaction.createCoinbase (own, 50 * COIN, 1));
+			store.addBlock (missed);
+
+			KeyListAccountManager restarted = new KeyListAccountManager ();
+			restarted.addKey (key);
+			restarted.setUTXODirectory (directory);
+			assertEquals (50 * COIN, restarted.getConfirmed ());
+			assertEquals (seen.getHash (), restarted.getLastBlock ());
+			assertTrue (restarted.catchUp (api));
+			assertEquals (100 * COIN, restarted.getConfirmed ());
+			assertEquals (2, restarted.getConfirmedOutputs ().size ());
+			assertEquals (missed.getHash (), restarted.getLastBlock ());
+			restarted.close ();
+		}
+		finally
+		{
+			api.destroy ();
+			for ( File f : directory.listFiles () )
+			{
+				f.delete ();
+			}
+			directory.delete ();
+		}
+	}
+}
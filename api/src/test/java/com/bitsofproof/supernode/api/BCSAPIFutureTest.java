@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class BCSAPIFutureTest
+{
+	@Test
+	public void cancelCompleteRaceTest () throws Exception
+	{
+		final CyclicBarrier start = new CyclicBarrier (2);
+		for ( int i = 0; i < 10000; ++i )
+		{
+			final BCSAPIFuture<Integer> future = new BCSAPIFuture<Integer> ();
+			final AtomicBoolean completed = new AtomicBoolean ();
+			Thread completer = new Thread ()
+			{
+				@Override
+				public void run ()
+				{
+					try
+					{
+						start.await ();
+						completed.set (future.complete (42));
+					}
+					catch ( Exception e )
+					{
+					}
+				}
+			};
+			completer.start ();
+			start.await ();
+			boolean cancelled = future.cancel (false);
+			completer.join ();
+
+			// exactly one of them took effect and the future reports that one
+			assertTrue (cancelled != completed.get ());
+			assertEquals (cancelled, future.isCancelled ());
+			try
+			{
+				assertEquals (Integer.valueOf (42), future.get ());
+				assertFalse (cancelled);
+			}
+			catch ( CancellationException e )
+			{
+				assertTrue (cancelled);
+			}
+		}
+	}
+
+	@Test
+	public void cancelAfterCompleteTest () throws Exception
+	{
+		BCSAPIFuture<Integer> future = new BCSAPIFuture<Integer> ();
+		assertTrue (future.complete (42));
+		assertFalse (future.cancel (false));
+		assertFalse (future.isCancelled ());
+		assertEquals (Integer.valueOf (42), future.get ());
+		try
+		{
+			future.getResult ();
+		}
+		catch ( BCSAPIException e )
+		{
+			fail ("completed future failed");
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.ValidationException;
+
+public class CachingBCSAPITest extends TestChain
+{
+
+	private DirectBCSAPI direct;
+	private CachingBCSAPI api;
+	private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger> ();
+	private volatile long delay = 0;
+
+	@Before
+	public void start () throws Exception
+	{
+
+		LocalBlockStore store = new LocalBlockStore ();
+		store.addBlock (block0);
+		store.addBlock (block1);
+		direct = new DirectBCSAPI ();
+		direct.setHandler (store);
+		direct.init ();
+
+		// counts and optionally delays calls to the delegate
+		BCSAPI counting = (BCSAPI) Proxy.newProxyInstance (BCSAPI.class.getClassLoader (), new Class<?>[] { BCSAPI.class },
+				new InvocationHandler ()
+				{
+					@Override
+					public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+					{
+						AtomicInteger count = calls.get (method.getName ());
+						if ( count == null )
+						{
+							calls.put (method.getName (), count = new AtomicInteger (0));
+						}
+						count.incrementAndGet ();
+						if ( delay > 0 && method.getName ().startsWith ("get") )
+						{
+							Thread.sleep (delay);
+						}
+						try
+						{
+							return method.invoke (direct, args);
+						}
+						catch ( InvocationTargetException e )
+						{
+							throw e.getCause ();
+						}
+					}
+				});
+		api = new CachingBCSAPI ();
+		api.setDelegate (counting);
+		api.init ();
+	}
+
+	@After
+	public void stop ()
+	{
+		api.destroy ();
+		direct.destroy ();
+	}
+
+	private int calls (String method)
+	{
+		AtomicInteger count = calls.get (method);
+		return count == null ? 0 : count.get ();
+	}
+
+	@Test
+	public void lookupTest () throws BCSAPIException
+	{
+		Block header = api.getBlockHeader (block1.getHash ());
+		assertEquals (1, header.getHeight ());
+		// copies by default
+		assertNotSame (header, api.getBlockHeader (block1.getHash ()));
+		api.setCopyObjects (false);
+		assertSame (api.getBlockHeader (block1.getHash ()), api.getBlockHeader (block1.getHash ()));
+		assertEquals (1, calls ("getBlockHeader"));
+		assertEquals (2, api.getBlock (block1.getHash ()).getTransactions ().size ());
+		api.getBlock (block1.getHash ());
+		assertEquals (1, calls ("getBlock"));
+
+		// unknown hashes are asked again
+		assertNull (api.getTransaction (Hash.ZERO_HASH_STRING));
+		assertNull (api.getTransaction (Hash.ZERO_HASH_STRING));
+		assertEquals (2, calls ("getTransaction"));
+
+		assertTrue (!api.isProduction ());
+		assertTrue (!api.isProduction ());
+		assertEquals (2, calls ("getBlockHeader"));
+
+		api.setCopyObjects (true);
+		assertNotSame (api.getTransaction (spend.getHash ()), api.getTransaction (spend.getHash ()));
+		assertEquals (3, calls ("getTransaction"));
+
+		final List<String> found = new ArrayList<String> ();
+		api.getTransactions (Arrays.asList (spend.getHash (), block0.getTransactions ().get (0).getHash ()), new TransactionListener ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				found.add (t.getHash ());
+			}
+		});
+		assertEquals (Arrays.asList (spend.getHash (), block0.getTransactions ().get (0).getHash ()), found);
+		assertEquals (1, calls ("getTransactions"));
+		assertEquals (7, api.getMisses ());
+	}
+
+	@Test
+	public void singleFlightTest () throws Exception
+	{
+		delay = 200;
+		ExecutorService executor = Executors.newFixedThreadPool (10);
+		try
+		{
+			List<Future<Transaction>> results = new ArrayList<Future<Transaction>> ();
+			for ( int i = 0; i < 10; ++i )
+			{
+				results.add (executor.submit (new Callable<Transaction> ()
+				{
+					@Override
+					public Transaction call () throws BCSAPIException
+					{
+						return api.getTransaction (spend.getHash ());
+					}
+				}));
+			}
+			for ( Future<Transaction> result : results )
+			{
+				assertEquals (spend.getHash (), result.get ().getHash ());
+			}
+			assertEquals (1, calls ("getTransaction"));
+			assertEquals (1, api.getMisses ());
+			assertEquals (9, api.getHits ());
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+
+	@Test
+	public void reorgTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		assertEquals (block1.getHash (), api.getTransaction (spend.getHash ()).getBlockHash ());
+		api.getBlockHeader (block1.getHash ());
+
+		final Semaphore reorg = new Semaphore (0);
+		api.registerTrunkListener (new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> added)
+			{
+				if ( !removed.isEmpty () )
+				{
+					reorg.release ();
+				}
+			}
+		});
+		Block fork1 = block (block0, Transaction.createCoinbase (other, 5000000000L, 2));
+		Block fork2 = block (fork1, Transaction.createCoinbase (other, 5000000000L, 3));
+		api.sendBlock (fork1);
+		api.sendBlock (fork2);
+		assertTrue (reorg.tryAcquire (10, TimeUnit.SECONDS));
+
+		Transaction t = api.getTransaction (spend.getHash ());
+		Transaction current = direct.getTransaction (spend.getHash ());
+		assertEquals (current == null ? null : current.getBlockHash (), t == null ? null : t.getBlockHash ());
+		assertEquals (2, calls ("getTransaction"));
+		api.getBlockHeader (block1.getHash ());
+		assertEquals (2, calls ("getBlockHeader"));
+	}
+
+	@Test
+	public void unconfirmedTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		Transaction pending = spend (block1.getTransactions ().get (0), 0, master.getKey (2).getAddress ());
+		api.sendTransaction (pending);
+		assertNull (api.getTransaction (pending.getHash ()).getBlockHash ());
+		api.getTransaction (spend.getHash ());
+		assertEquals (2, calls ("getTransaction"));
+
+		final Semaphore update = new Semaphore (0);
+		api.registerTrunkListener (new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> added)
+			{
+				update.release ();
+			}
+		});
+		Block block2 = block (block1, Transaction.createCoinbase (other, 5000000000L, 2), pending);
+		api.sendBlock (block2);
+		assertTrue (update.tryAcquire (10, TimeUnit.SECONDS));
+
+		// only the unconfirmed transaction is evicted
+		assertEquals (block2.getHash (), api.getTransaction (pending.getHash ()).getBlockHash ());
+		assertEquals (block1.getHash (), api.getTransaction (spend.getHash ()).getBlockHash ());
+		assertEquals (3, calls ("getTransaction"));
+	}
+}
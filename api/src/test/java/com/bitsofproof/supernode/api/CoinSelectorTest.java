@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.wallet.CoinSelector;
+import com.bitsofproof.supernode.wallet.UTXOIndex;
+
+public class CoinSelectorTest
+{
+	private static final String RED = "ff0000";
+	private static final String BLUE = "0000ff";
+
+	private UTXOIndex confirmed;
+	private UTXOIndex change;
+	private int outputs;
+
+	private TransactionOutput output (long value, String color)
+	{
+		TransactionOutput o = new TransactionOutput ();
+		o.setTxHash (String.format ("%064x", ++outputs));
+		o.setIx (0);
+		o.setValue (value);
+		o.setColor (color);
+		return o;
+	}
+
+	private static UTXOIndex index (TransactionOutput... outputs)
+	{
+		return new UTXOIndex (Arrays.asList (outputs));
+	}
+
+	private static List<Long> values (List<UTXOIndex.Entry> entries)
+	{
+		List<Long> values = new ArrayList<Long> ();
+		for ( UTXOIndex.Entry e : entries )
+		{
+			values.add (e.getValue ());
+		}
+		return values;
+	}
+
+	private List<Long> select (CoinSelector selector, long target)
+	{
+		List<UTXOIndex.Entry> selected = selector.select (confirmed.getOutputs (null), change.getOutputs (null), target);
+		return selected == null ? null : values (selected);
+	}
+
+	@Before
+	public void setup ()
+	{
+		confirmed = index (output (10, null), output (1, null), output (20, null), output (5, null), output (2, null));
+		change = index (output (3, null));
+	}
+
+	@Test
+	public void smallestFirstTest ()
+	{
+		CoinSelector selector = new CoinSelector.SmallestFirst ();
+		assertEquals (Arrays.asList (1L, 2L, 5L), select (selector, 7));
+		// change only once confirmed outputs are exhausted
+		assertEquals (Arrays.asList (1L, 2L, 5L, 10L, 20L, 3L), select (selector, 40));
+		assertNull (select (selector, 42));
+	}
+
+	@Test
+	public void largestFirstTest ()
+	{
+		CoinSelector selector = new CoinSelector.LargestFirst ();
+		assertEquals (Arrays.asList (20L), select (selector, 7));
+		assertEquals (Arrays.asList (20L, 10L, 5L), select (selector, 31));
+		assertEquals (Arrays.asList (20L, 10L, 5L, 2L, 1L, 3L), select (selector, 41));
+		assertNull (select (selector, 42));
+	}
+
+	@Test
+	public void consolidationTest ()
+	{
+		// sweeps further small confirmed outputs up to the cap
+		assertEquals (Arrays.asList (1L, 2L, 5L, 10L), select (new CoinSelector.Consolidation (4), 2));
+		// never takes an output twice
+		List<UTXOIndex.Entry> all = new CoinSelector.Consolidation (100).select (confirmed.getOutputs (null), change.getOutputs (null), 7);
+		assertEquals (Arrays.asList (1L, 2L, 5L, 10L, 20L), values (all));
+		assertEquals (all.size (), new HashSet<UTXOIndex.Entry> (all).size ());
+		// the cap does not limit what the target needs
+		assertEquals (Arrays.asList (1L, 2L, 5L), select (new CoinSelector.Consolidation (2), 7));
+		assertNull (select (new CoinSelector.Consolidation (4), 42));
+	}
+
+	@Test
+	public void branchAndBoundTest ()
+	{
+		CoinSelector fallback = new CoinSelector.SmallestFirst ();
+		List<Long> exact = select (new CoinSelector.BranchAndBound (0, fallback), 15);
+		Collections.sort (exact);
+		assertEquals (Arrays.asList (5L, 10L), exact);
+		// change may complete the sum
+		exact = select (new CoinSelector.BranchAndBound (0, fallback), 24);
+		Collections.sort (exact);
+		assertEquals (Arrays.asList (1L, 3L, 20L), exact);
+		// within tolerance
+		assertEquals (Arrays.asList (5L), select (new CoinSelector.BranchAndBound (1, fallback), 4));
+		// no exact sum, falls back
+		confirmed = index (output (5, null), output (10, null));
+		change = index ();
+		assertEquals (Arrays.asList (5L, 10L), select (new CoinSelector.BranchAndBound (1, fallback), 7));
+		assertNull (select (new CoinSelector.BranchAndBound (0, fallback), 42));
+	}
+
+	@Test
+	public void indexTest ()
+	{
+		TransactionOutput red = output (7, RED);
+		UTXOIndex index = index (output (5, null), output (5, null), output (6, null), red, output (3, RED), output (1, BLUE));
+		assertEquals (Arrays.asList (5L, 5L, 6L), values (new ArrayList<UTXOIndex.Entry> (index.getOutputs (null))));
+		assertEquals (Arrays.asList (3L, 7L), values (new ArrayList<UTXOIndex.Entry> (index.getOutputs (RED))));
+		assertEquals (Arrays.asList (1L), values (new ArrayList<UTXOIndex.Entry> (index.getOutputs (BLUE))));
+		assertTrue (index.getOutputs ("00ff00").isEmpty ());
+
+		index.remove (red);
+		assertEquals (Arrays.asList (3L), values (new ArrayList<UTXOIndex.Entry> (index.getOutputs (RED))));
+		// an outpoint not in the index
+		index.remove (output (3, RED));
+		assertEquals (1, index.getOutputs (RED).size ());
+
+		NavigableSet<UTXOIndex.Entry> uncolored = index.getOutputs (null);
+		// all outputs of the limit value are included whatever their hash
+		assertEquals (Arrays.asList (5L, 5L), values (new ArrayList<UTXOIndex.Entry> (UTXOIndex.atMost (uncolored, 5))));
+		assertTrue (UTXOIndex.atMost (uncolored, 4).isEmpty ());
+		assertEquals (3, UTXOIndex.atMost (uncolored, 6).size ());
+		assertSame (uncolored, UTXOIndex.atMost (uncolored, Long.MAX_VALUE));
+	}
+}
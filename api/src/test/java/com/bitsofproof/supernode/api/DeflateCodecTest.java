@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.DeflateCodec;
+
+public class DeflateCodecTest
+{
+	@Test
+	public void roundtripTest () throws DataFormatException
+	{
+		DeflateCodec codec = new DeflateCodec ();
+		Random rnd = new Random (4711);
+		for ( int size : new int[] { 0, 1, 100, 10000, 1000000 } )
+		{
+			// half random, half repetitive like scripts in a block
+			byte[] data = new byte[size];
+			rnd.nextBytes (data);
+			Arrays.fill (data, size / 2, size, (byte) 0x76);
+			byte[] compressed = codec.compress (data);
+			if ( size > 100 )
+			{
+				assertTrue (compressed.length < data.length);
+			}
+			assertArrayEquals (data, codec.decompress (compressed));
+		}
+	}
+
+	@Test
+	public void truncatedTest ()
+	{
+		DeflateCodec codec = new DeflateCodec ();
+		byte[] data = new byte[10000];
+		new Random (4711).nextBytes (data);
+		byte[] compressed = codec.compress (data);
+		try
+		{
+			codec.decompress (Arrays.copyOf (compressed, compressed.length / 2));
+			fail ("truncated input accepted");
+		}
+		catch ( DataFormatException e )
+		{
+		}
+		// the pooled inflater is still usable
+		try
+		{
+			assertArrayEquals (data, codec.decompress (compressed));
+		}
+		catch ( DataFormatException e )
+		{
+			fail ("inflater not reset");
+		}
+	}
+
+	@Test
+	public void limitTest () throws DataFormatException
+	{
+		DeflateCodec codec = new DeflateCodec (Deflater.BEST_SPEED, 100000);
+		byte[] data = new byte[100000];
+		assertArrayEquals (data, codec.decompress (codec.compress (data)));
+		// a few hundred bytes inflating to megabytes
+		byte[] bomb = codec.compress (new byte[10000000]);
+		assertTrue (bomb.length < 100000);
+		try
+		{
+			codec.decompress (bomb);
+			fail ("inflated beyond the limit");
+		}
+		catch ( DataFormatException e )
+		{
+		}
+		assertArrayEquals (data, codec.decompress (codec.compress (data)));
+	}
+}
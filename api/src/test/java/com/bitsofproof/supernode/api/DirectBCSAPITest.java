@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.ValidationException;
+
+public class DirectBCSAPITest extends TestChain
+{
+
+	private LocalBlockStore store;
+	private DirectBCSAPI api;
+
+	@Before
+	public void start () throws Exception
+	{
+
+		store = new LocalBlockStore ();
+		store.addBlock (block0);
+		store.addBlock (block1);
+		api = new DirectBCSAPI ();
+		api.setHandler (store);
+		api.init ();
+	}
+
+	@After
+	public void stop ()
+	{
+		api.destroy ();
+	}
+
+	@Test
+	public void lookupTest () throws BCSAPIException
+	{
+		assertEquals (42, api.ping (42));
+		assertTrue (!api.isProduction ());
+		assertSame (block1, api.getBlock (block1.getHash ()));
+		assertSame (spend, api.getTransaction (spend.getHash ()));
+		assertEquals (1, api.getBlockHeader (block1.getHash ()).getHeight ());
+
+		api.setCopyObjects (true);
+		Transaction copy = api.getTransaction (spend.getHash ());
+		assertNotSame (spend, copy);
+		assertEquals (spend.getHash (), copy.getHash ());
+	}
+
+	@Test
+	public void scanTest () throws BCSAPIException, ValidationException
+	{
+		api.setCheckpointInterval (1);
+		Collector found = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (Arrays.asList (block0.getTransactions ().get (0).getHash (), spend.getHash ()), found.hashes);
+		assertEquals (2, found.checkpoints.size ());
+
+		Collector resumed = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found.checkpoints.get (0), resumed);
+		assertEquals (Collections.singletonList (spend.getHash ()), resumed.hashes);
+
+		Set<Address> first = new HashSet<Address> (Collections.singletonList (master.getKey (0).getAddress ()));
+		found = new Collector ();
+		api.scanTransactionsForAddresses (first, UpdateMode.all, 0, found);
+		assertEquals (2, found.checkpoints.size ());
+		resumed = new Collector ();
+		api.scanTransactionsForAddresses (first, UpdateMode.all, 0, found.checkpoints.get (0), resumed);
+		assertEquals (Collections.singletonList (spend.getHash ()), resumed.hashes);
+
+		found = new Collector ();
+		api.scanUTXO (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+	}
+
+	@Test
+	public void sendTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		final Semaphore received = new Semaphore (0);
+		final List<Transaction> transactions = new ArrayList<Transaction> ();
+		api.registerTransactionListener (new TransactionListener ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				transactions.add (t);
+				received.release ();
+			}
+		});
+		final List<Block> added = new ArrayList<Block> ();
+		api.registerTrunkListener (new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> a)
+			{
+				added.addAll (a);
+				received.release ();
+			}
+		});
+		final List<String> alerts = new ArrayList<String> ();
+		api.addAlertListener (new AlertListener ()
+		{
+			@Override
+			public void alert (String s, int severity)
+			{
+				alerts.add (s);
+				received.release ();
+			}
+		});
+
+		try
+		{
+			api.sendTransaction (spend (block0.getTransactions ().get (0), 0, other));
+			fail ("double spend accepted");
+		}
+		catch ( BCSAPIException e )
+		{
+		}
+		Transaction next = spend (spend, 0, other);
+		api.sendTransaction (next);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertSame (next, transactions.get (0));
+
+		Block block2 = block (block1, Transaction.createCoinbase (other, 5000000000L, 2), next);
+		api.sendBlock (block2);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertSame (block2, added.get (0));
+
+		store.sendAlert ("test", 0);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (Collections.singletonList ("test"), alerts);
+
+		final List<Block> caughtUp = new ArrayList<Block> ();
+		api.catchUp (block0.getHash (), new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> a)
+			{
+				caughtUp.addAll (a);
+			}
+		});
+		assertEquals (Arrays.asList (block1, block2), caughtUp);
+	}
+}
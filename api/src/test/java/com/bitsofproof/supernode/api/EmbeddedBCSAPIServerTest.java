@@ -0,0 +1,928 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.api.JMSServerConnector.OverflowPolicy;
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.InMemoryBusConnectionFactory;
+import com.bitsofproof.supernode.common.ValidationException;
+import com.bitsofproof.supernode.common.WireFormat;
+
+public class EmbeddedBCSAPIServerTest extends TestChain
+{
+	private Block block2;
+
+	private InMemoryBusConnectionFactory factory;
+	private EmbeddedBCSAPIServer server;
+	private JMSServerConnector api;
+
+	private static void writeBlock (DataOutputStream out, Block b) throws IOException
+	{
+		WireFormat.Writer writer = new WireFormat.Writer ();
+		b.toWire (writer);
+		byte[] data = writer.toByteArray ();
+		out.writeInt (0xf9beb4d9);
+		out.writeInt (Integer.reverseBytes (data.length));
+		out.write (data);
+	}
+
+	@Before
+	public void start () throws Exception
+	{
+		block2 = block (block1, Transaction.createCoinbase (other, 5000000000L, 2));
+
+		// out of order, as in block files of the reference client
+		ByteArrayOutputStream file = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (file);
+		writeBlock (out, block0);
+		writeBlock (out, block2);
+		writeBlock (out, block1);
+		LocalBlockStore store = new LocalBlockStore ();
+		assertEquals (3, store.loadBlocks (new ByteArrayInputStream (file.toByteArray ())));
+		assertEquals (block2.getHash (), store.getTrunkTip ().getHash ());
+
+		factory = new InMemoryBusConnectionFactory ();
+		server = new EmbeddedBCSAPIServer ();
+		server.setConnectionFactory (factory);
+		server.setHandler (store);
+		server.init ();
+		api = new JMSServerConnector ();
+		api.setConnectionFactory (factory);
+		api.init ();
+	}
+
+	@After
+	public void stop ()
+	{
+		api.destroy ();
+		server.destroy ();
+	}
+
+	@Test
+	public void lookupTest () throws BCSAPIException
+	{
+		assertEquals (42, api.ping (42));
+		assertTrue (!api.isProduction ());
+
+		Block header = api.getBlockHeader (block1.getHash ());
+		assertEquals (block1.getHash (), header.getHash ());
+		assertEquals (1, header.getHeight ());
+		assertNull (header.getTransactions ());
+		assertEquals (2, api.getBlock (block1.getHash ()).getTransactions ().size ());
+		assertNull (api.getBlock (Hash.ZERO_HASH_STRING));
+
+		Transaction t = api.getTransaction (spend.getHash ());
+		assertEquals (spend.getHash (), t.getHash ());
+		assertEquals (block1.getHash (), t.getBlockHash ());
+		assertNull (api.getTransaction (Hash.ZERO_HASH_STRING));
+
+		Collector found = new Collector ();
+		api.getTransactions (Arrays.asList (spend.getHash (), Hash.ZERO_HASH_STRING), found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+		final List<String> headers = new ArrayList<String> ();
+		api.getBlockHeaders (Arrays.asList (block0.getHash (), block2.getHash ()), new BlockListener ()
+		{
+			@Override
+			public void process (Block b)
+			{
+				headers.add (b.getHash ());
+			}
+		});
+		assertEquals (Arrays.asList (block0.getHash (), block2.getHash ()), headers);
+	}
+
+	@Test
+	public void scanTest () throws BCSAPIException, ValidationException
+	{
+		String coinbase = block0.getTransactions ().get (0).getHash ();
+		Set<Address> first = new HashSet<Address> (Collections.singletonList (master.getKey (0).getAddress ()));
+
+		Collector found = new Collector ();
+		api.scanTransactionsForAddresses (first, UpdateMode.all, 0, found);
+		assertEquals (Arrays.asList (coinbase, spend.getHash ()), found.hashes);
+
+		found = new Collector ();
+		api.scanUTXOForAddresses (first, UpdateMode.all, 0, found);
+		assertTrue (found.hashes.isEmpty ());
+
+		found = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (Arrays.asList (coinbase, spend.getHash ()), found.hashes);
+
+		found = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, block1.getCreateTime () * 1000, found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+
+		found = new Collector ();
+		api.scanUTXO (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+	}
+
+	@Test
+	public void chunkedScanTest () throws BCSAPIException, ValidationException
+	{
+		api.setScanChunkSize (1);
+		api.setScanCredit (1);
+		Collector found = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, null, found);
+		assertEquals (2, found.hashes.size ());
+		assertEquals (2, found.checkpoints.size ());
+
+		Collector resumed = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found.checkpoints.get (0), resumed);
+		assertEquals (Collections.singletonList (spend.getHash ()), resumed.hashes);
+
+		Set<Address> first = new HashSet<Address> (Collections.singletonList (master.getKey (0).getAddress ()));
+		found = new Collector ();
+		api.scanTransactionsForAddresses (first, UpdateMode.all, 0, null, found);
+		assertEquals (2, found.checkpoints.size ());
+		resumed = new Collector ();
+		api.scanTransactionsForAddresses (first, UpdateMode.all, 0, found.checkpoints.get (0), resumed);
+		assertEquals (Collections.singletonList (spend.getHash ()), resumed.hashes);
+	}
+
+	private static class Subscriber implements TransactionSubscriber, ScanCheckpointListener
+	{
+		private final long initial;
+		private final boolean cancelOnFirst;
+		private ScanSubscription subscription;
+		private final List<String> hashes = new ArrayList<String> ();
+		private final List<String> checkpoints = new ArrayList<String> ();
+		private volatile BCSAPIException error;
+		private final Semaphore done = new Semaphore (0);
+
+		public Subscriber (long initial, boolean cancelOnFirst)
+		{
+			this.initial = initial;
+			this.cancelOnFirst = cancelOnFirst;
+		}
+
+		@Override
+		public void onSubscribe (ScanSubscription subscription)
+		{
+			this.subscription = subscription;
+			subscription.request (initial);
+		}
+
+		@Override
+		public void onNext (Transaction t)
+		{
+			hashes.add (t.getHash ());
+			if ( cancelOnFirst )
+			{
+				subscription.cancel ();
+				done.release ();
+			}
+		}
+
+		@Override
+		public void checkpoint (String checkpoint)
+		{
+			checkpoints.add (checkpoint);
+		}
+
+		@Override
+		public void onError (BCSAPIException e)
+		{
+			error = e;
+			done.release ();
+		}
+
+		@Override
+		public void onComplete ()
+		{
+			done.release ();
+		}
+	}
+
+	@Test
+	public void asyncScanTimeoutTest () throws InterruptedException
+	{
+		// no server listens on this bus
+		JMSServerConnector lonely = new JMSServerConnector ();
+		lonely.setConnectionFactory (new InMemoryBusConnectionFactory ());
+		lonely.setTimeout (200);
+		lonely.init ();
+		try
+		{
+			Subscriber subscriber = new Subscriber (Long.MAX_VALUE, false);
+			lonely.scanTransactions (master.getReadOnly (), 0, 10, 0, subscriber);
+			assertTrue (subscriber.done.tryAcquire (5, TimeUnit.SECONDS));
+			assertEquals ("timeout", subscriber.error.getMessage ());
+		}
+		finally
+		{
+			lonely.destroy ();
+		}
+	}
+
+	@Test
+	public void asyncChunkedScanTest () throws InterruptedException
+	{
+		// one chunk of credit, the scan completes only if credit is returned for each chunk consumed
+		api.setScanChunkSize (1);
+		api.setScanCredit (1);
+		Subscriber subscriber = new Subscriber (Long.MAX_VALUE, false);
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, subscriber);
+		assertTrue (subscriber.done.tryAcquire (5, TimeUnit.SECONDS));
+		assertNull (subscriber.error);
+		assertEquals (Arrays.asList (block0.getTransactions ().get (0).getHash (), spend.getHash ()), subscriber.hashes);
+		assertEquals (2, subscriber.checkpoints.size ());
+	}
+
+	@Test
+	public void asyncScanCancelTest () throws InterruptedException
+	{
+		api.setScanChunkSize (1);
+		api.setScanCredit (1);
+		Subscriber subscriber = new Subscriber (1, true);
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, subscriber);
+		assertTrue (subscriber.done.tryAcquire (5, TimeUnit.SECONDS));
+		// the server waits a minute for credit unless told that the scan was cancelled
+		long until = System.currentTimeMillis () + 5000;
+		while ( server.getOpenScans () > 0 && System.currentTimeMillis () < until )
+		{
+			Thread.sleep (10);
+		}
+		assertEquals (0, server.getOpenScans ());
+		assertEquals (1, subscriber.hashes.size ());
+		assertNull (subscriber.error);
+	}
+
+	@Test
+	public void sendTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		final Semaphore received = new Semaphore (0);
+		api.registerTransactionListener (new TransactionListener ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				received.release ();
+			}
+		});
+		final List<Block> added = new ArrayList<Block> ();
+		api.registerTrunkListener (new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> a)
+			{
+				added.addAll (a);
+				received.release ();
+			}
+		});
+
+		try
+		{
+			api.sendTransaction (spend (block0.getTransactions ().get (0), 0, other));
+			fail ("double spend accepted");
+		}
+		catch ( BCSAPIException e )
+		{
+		}
+		Transaction next = spend (spend, 0, other);
+		api.sendTransaction (next);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (next.getHash (), api.getTransaction (next.getHash ()).getHash ());
+
+		Block block3 = block (block2, Transaction.createCoinbase (other, 5000000000L, 3), next);
+		api.sendBlock (block3);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (block3.getHash (), added.get (0).getHash ());
+		assertEquals (block3.getHash (), api.getTransaction (next.getHash ()).getBlockHash ());
+
+		final List<Block> caughtUp = new ArrayList<Block> ();
+		api.catchUp (block1.getHash (), new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> a)
+			{
+				caughtUp.addAll (a);
+			}
+		});
+		assertEquals (2, caughtUp.size ());
+		assertEquals (block3.getHash (), caughtUp.get (1).getHash ());
+	}
+
+	@Test
+	public void sharedDecodeTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		final List<Transaction> received = Collections.synchronizedList (new ArrayList<Transaction> ());
+		final Semaphore processed = new Semaphore (0);
+		for ( int i = 0; i < 3; ++i )
+		{
+			api.registerTransactionListener (new TransactionListener ()
+			{
+				@Override
+				public void process (Transaction t)
+				{
+					received.add (t);
+					processed.release ();
+				}
+			});
+		}
+
+		// decoded once, every listener gets the same object
+		Transaction next = spend (spend, 0, other);
+		api.sendTransaction (next);
+		assertTrue (processed.tryAcquire (3, 10, TimeUnit.SECONDS));
+		assertEquals (3, received.size ());
+		for ( Transaction t : received )
+		{
+			assertEquals (next.getHash (), t.getHash ());
+			assertSame (received.get (0), t);
+		}
+
+		received.clear ();
+		api.setCopyTopicMessages (true);
+		Transaction after = spend (next, 0, other);
+		api.sendTransaction (after);
+		assertTrue (processed.tryAcquire (3, 10, TimeUnit.SECONDS));
+		assertEquals (3, received.size ());
+		for ( int i = 0; i < received.size (); ++i )
+		{
+			assertEquals (after.getHash (), received.get (i).getHash ());
+			for ( int j = 0; j < i; ++j )
+			{
+				assertNotSame (received.get (j), received.get (i));
+			}
+		}
+	}
+
+	private static class SequencedCollector implements TransactionListener, EventSequenceListener
+	{
+		private final List<String> hashes = new ArrayList<String> ();
+		private final Semaphore processed = new Semaphore (0);
+		private volatile long sequence;
+
+		@Override
+		public void process (Transaction t)
+		{
+			hashes.add (t.getHash ());
+		}
+
+		@Override
+		public void processed (long sequence)
+		{
+			this.sequence = sequence;
+			processed.release ();
+		}
+	}
+
+	@Test
+	public void eventLogTest () throws BCSAPIException, ValidationException, InterruptedException, IOException
+	{
+		File directory = Files.createTempDirectory ("events").toFile ();
+		TopicEventLog eventLog = new TopicEventLog (directory, "bcsapi");
+		try
+		{
+			api.setEventLog (eventLog);
+			SequencedCollector listener = new SequencedCollector ();
+			api.registerTransactionListener (listener);
+			final Semaphore trunk = new Semaphore (0);
+			api.registerTrunkListener (new TrunkListener ()
+			{
+				@Override
+				public void trunkUpdate (List<Block> removed, List<Block> a)
+				{
+					trunk.release ();
+				}
+			});
+			Transaction next = spend (spend, 0, other);
+			api.sendTransaction (next);
+			assertTrue (listener.processed.tryAcquire (10, TimeUnit.SECONDS));
+			assertEquals (1, listener.sequence);
+			assertEquals (Collections.singletonList (next.getHash ()), listener.hashes);
+
+			final List<Block> added = new ArrayList<Block> ();
+			Collector replayed = new Collector ();
+			api.sendBlock (block (block2, Transaction.createCoinbase (other, 5000000000L, 3), next));
+			assertTrue (trunk.tryAcquire (10, TimeUnit.SECONDS));
+			assertEquals (2, api.replayEvents (0, replayed, new TrunkListener ()
+			{
+				@Override
+				public void trunkUpdate (List<Block> removed, List<Block> a)
+				{
+					added.addAll (a);
+				}
+			}));
+			assertEquals (Collections.singletonList (next.getHash ()), replayed.hashes);
+			assertEquals (1, added.size ());
+			assertEquals (2, api.replayEvents (1, null, null));
+		}
+		finally
+		{
+			eventLog.close ();
+			for ( File f : directory.listFiles () )
+			{
+				f.delete ();
+			}
+			directory.delete ();
+		}
+	}
+
+	// connections to the bus that fail on demand
+	private static class FailingConnectionFactory implements ConnectionFactory
+	{
+		private final ConnectionFactory bus;
+		private volatile boolean down = false;
+		private volatile ExceptionListener exceptionListener;
+
+		public FailingConnectionFactory (ConnectionFactory bus)
+		{
+			this.bus = bus;
+		}
+
+		@Override
+		public Connection createConnection () throws JMSException
+		{
+			if ( down )
+			{
+				throw new JMSException ("broker down");
+			}
+			final Connection connection = bus.createConnection ();
+			return (Connection) Proxy.newProxyInstance (Connection.class.getClassLoader (), new Class<?>[] { Connection.class },
+					new InvocationHandler ()
+					{
+						@Override
+						public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+						{
+							if ( method.getName ().equals ("setExceptionListener") )
+							{
+								exceptionListener = (ExceptionListener) args[0];
+								return null;
+							}
+							try
+							{
+								return method.invoke (connection, args);
+							}
+							catch ( InvocationTargetException e )
+							{
+								throw e.getCause ();
+							}
+						}
+					});
+		}
+
+		@Override
+		public Connection createConnection (String userName, String password) throws JMSException
+		{
+			return createConnection ();
+		}
+
+		public void fail ()
+		{
+			down = true;
+			exceptionListener.onException (new JMSException ("broker down"));
+		}
+	}
+
+	@Test
+	public void reconnectTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		FailingConnectionFactory unavailable = new FailingConnectionFactory (factory);
+		unavailable.down = true;
+		FailingConnectionFactory broker = new FailingConnectionFactory (factory);
+		JMSServerConnector connector = new JMSServerConnector ();
+		connector.setConnectionFactories (Arrays.<ConnectionFactory> asList (unavailable, broker));
+		connector.setReconnectDelay (10);
+		connector.init ();
+		try
+		{
+			assertTrue (connector.isConnected ());
+			assertEquals (42, connector.ping (42));
+			final Semaphore received = new Semaphore (0);
+			final AtomicInteger count = new AtomicInteger (0);
+			connector.registerTransactionListener (new TransactionListener ()
+			{
+				@Override
+				public void process (Transaction t)
+				{
+					count.incrementAndGet ();
+					received.release ();
+				}
+			});
+
+			broker.fail ();
+			assertFalse (connector.isConnected ());
+			BCSAPIFuture<Block> header = connector.getBlockHeaderAsync (block1.getHash ());
+			Thread.sleep (100);
+			assertFalse (header.isDone ());
+			broker.down = false;
+			// sent once reconnected
+			assertEquals (block1.getHash (), header.getResult ().getHash ());
+			assertTrue (connector.isConnected ());
+
+			// the listener is subscribed again, and only once
+			api.sendTransaction (spend (spend, 0, other));
+			assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+			Thread.sleep (100);
+			assertEquals (1, count.get ());
+		}
+		finally
+		{
+			connector.destroy ();
+		}
+	}
+
+	@Test
+	public void durableSubscriptionTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		final Semaphore received = new Semaphore (0);
+		final List<String> hashes = Collections.synchronizedList (new ArrayList<String> ());
+		TransactionListener listener = new TransactionListener ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				hashes.add (t.getHash ());
+				received.release ();
+			}
+		};
+		JMSServerConnector connector = new JMSServerConnector ();
+		connector.setConnectionFactory (factory);
+		connector.setClientID ("wallet");
+		connector.init ();
+		connector.registerTransactionListener (listener);
+		connector.destroy ();
+
+		// published while the client is down
+		Transaction next = spend (spend, 0, other);
+		api.sendTransaction (next);
+
+		connector = new JMSServerConnector ();
+		connector.setConnectionFactory (factory);
+		connector.setClientID ("wallet");
+		connector.init ();
+		try
+		{
+			connector.registerTransactionListener (listener);
+			assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+			assertEquals (Collections.singletonList (next.getHash ()), hashes);
+
+			// removing the last listener ends the subscription
+			connector.removeTransactionListener (listener);
+			api.sendTransaction (spend (next, 0, other));
+			Thread.sleep (100);
+			connector.registerTransactionListener (listener);
+			assertFalse (received.tryAcquire (100, TimeUnit.MILLISECONDS));
+		}
+		finally
+		{
+			connector.destroy ();
+		}
+	}
+
+	// records the encoding of messages sent and received through its connections
+	private static class RecordingConnectionFactory implements ConnectionFactory
+	{
+		private final ConnectionFactory bus;
+		private final List<String> sent = Collections.synchronizedList (new ArrayList<String> ());
+		private final List<String> received = Collections.synchronizedList (new ArrayList<String> ());
+
+		public RecordingConnectionFactory (ConnectionFactory bus)
+		{
+			this.bus = bus;
+		}
+
+		private static String encoding (Message message)
+		{
+			try
+			{
+				return String.valueOf (message.getStringProperty ("bcsapiEncoding"));
+			}
+			catch ( JMSException e )
+			{
+				return e.getMessage ();
+			}
+		}
+
+		private Object record (final Class<?> type, final Object target)
+		{
+			return Proxy.newProxyInstance (type.getClassLoader (), new Class<?>[] { type }, new InvocationHandler ()
+			{
+				@Override
+				public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+				{
+					if ( method.getName ().equals ("send") )
+					{
+						for ( Object arg : args )
+						{
+							if ( arg instanceof Message )
+							{
+								sent.add (encoding ((Message) arg));
+							}
+						}
+					}
+					if ( method.getName ().equals ("setMessageListener") && args[0] != null )
+					{
+						final MessageListener listener = (MessageListener) args[0];
+						args[0] = new MessageListener ()
+						{
+							@Override
+							public void onMessage (Message message)
+							{
+								received.add (encoding (message));
+								listener.onMessage (message);
+							}
+						};
+					}
+					Object result;
+					try
+					{
+						result = method.invoke (target, args);
+					}
+					catch ( InvocationTargetException e )
+					{
+						throw e.getCause ();
+					}
+					Class<?> r = method.getReturnType ();
+					if ( r == Connection.class || r == Session.class || r == MessageProducer.class || r == MessageConsumer.class )
+					{
+						return record (r, result);
+					}
+					return result;
+				}
+			});
+		}
+
+		@Override
+		public Connection createConnection () throws JMSException
+		{
+			return (Connection) record (Connection.class, bus.createConnection ());
+		}
+
+		@Override
+		public Connection createConnection (String userName, String password) throws JMSException
+		{
+			return createConnection ();
+		}
+	}
+
+	@Test
+	public void compressionTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		server.setCompressionThreshold (100);
+		RecordingConnectionFactory recording = new RecordingConnectionFactory (factory);
+		JMSServerConnector client = new JMSServerConnector ();
+		client.setConnectionFactory (recording);
+		client.setCompressionThreshold (100);
+		client.init ();
+		try
+		{
+			Set<Address> addresses = new HashSet<Address> ();
+			for ( int i = 0; i < 20; ++i )
+			{
+				addresses.add (master.getKey (i).getAddress ());
+			}
+			List<String> expected = Arrays.asList (block0.getTransactions ().get (0).getHash (), spend.getHash ());
+
+			// not compressed until the server told it accepts
+			Collector found = new Collector ();
+			client.scanTransactionsForAddresses (addresses, UpdateMode.all, 0, found);
+			assertEquals (expected, found.hashes);
+			assertFalse (recording.sent.contains ("deflate"));
+
+			// large replies are compressed, small ones not
+			recording.received.clear ();
+			assertEquals (2, client.getBlock (block1.getHash ()).getTransactions ().size ());
+			assertEquals (42, client.ping (42));
+			assertEquals (Arrays.asList ("deflate", "null"), recording.received);
+
+			recording.sent.clear ();
+			found = new Collector ();
+			client.scanTransactionsForAddresses (addresses, UpdateMode.all, 0, found);
+			assertEquals (expected, found.hashes);
+			assertTrue (recording.sent.contains ("deflate"));
+
+			// large topic messages are compressed for every subscriber
+			final List<Block> added = Collections.synchronizedList (new ArrayList<Block> ());
+			final Semaphore updated = new Semaphore (0);
+			client.registerTrunkListener (new TrunkListener ()
+			{
+				@Override
+				public void trunkUpdate (List<Block> removed, List<Block> a)
+				{
+					added.addAll (a);
+					updated.release ();
+				}
+			});
+			recording.received.clear ();
+			Block block3 = block (block2, Transaction.createCoinbase (other, 5000000000L, 3), spend (spend, 0, other));
+			api.sendBlock (block3);
+			assertTrue (updated.tryAcquire (10, TimeUnit.SECONDS));
+			assertEquals (block3.getHash (), added.get (0).getHash ());
+			assertEquals (2, added.get (0).getTransactions ().size ());
+			assertTrue (recording.received.contains ("deflate"));
+		}
+		finally
+		{
+			client.destroy ();
+		}
+
+		// a client not offering compression gets none
+		RecordingConnectionFactory plain = new RecordingConnectionFactory (factory);
+		client = new JMSServerConnector ();
+		client.setConnectionFactory (plain);
+		client.setCompression (false);
+		client.init ();
+		try
+		{
+			assertEquals (2, client.getBlock (block1.getHash ()).getTransactions ().size ());
+			assertFalse (plain.received.contains ("deflate"));
+		}
+		finally
+		{
+			client.destroy ();
+		}
+	}
+
+	@Test
+	public void inFlightTest () throws BCSAPIException, InterruptedException
+	{
+		// no server on this bus, requests are never answered
+		RecordingConnectionFactory recording = new RecordingConnectionFactory (new InMemoryBusConnectionFactory ());
+		JMSServerConnector client = new JMSServerConnector ();
+		client.setConnectionFactory (recording);
+		client.setMaxInFlight (2);
+		client.setTimeout (10 * 1000);
+		client.setTimeout ("blockRequest", 200);
+		client.init ();
+		try
+		{
+			int before = recording.sent.size ();
+			BCSAPIFuture<Block> first = client.getBlockAsync (block0.getHash ());
+			BCSAPIFuture<Block> second = client.getBlockAsync (block1.getHash ());
+			BCSAPIFuture<Block> queued = client.getBlockHeaderAsync (block1.getHash ());
+			// the third waits for a slot of the window
+			assertEquals (before + 2, recording.sent.size ());
+
+			long start = System.currentTimeMillis ();
+			for ( BCSAPIFuture<Block> expiring : Arrays.asList (first, second) )
+			{
+				try
+				{
+					expiring.getResult ();
+					fail ("not answered");
+				}
+				catch ( BCSAPIException e )
+				{
+					assertEquals ("timeout", e.getMessage ());
+				}
+			}
+			assertTrue (System.currentTimeMillis () - start < 5000);
+
+			// sent once the expired released their slots, with the default timeout of its destination
+			for ( int i = 0; i < 100 && recording.sent.size () < before + 3; ++i )
+			{
+				Thread.sleep (10);
+			}
+			assertEquals (before + 3, recording.sent.size ());
+			Thread.sleep (300);
+			assertFalse (queued.isDone ());
+		}
+		finally
+		{
+			client.destroy ();
+		}
+	}
+
+	// six alerts to a listener stuck on the first while its queue of two overflows
+	private List<String> overflow (OverflowPolicy policy, int depth, long dropped) throws BCSAPIException, InterruptedException
+	{
+		JMSServerConnector client = new JMSServerConnector ();
+		client.setConnectionFactory (factory);
+		client.setListenerQueueSize (2);
+		client.setOverflowPolicy (policy);
+		client.init ();
+		try
+		{
+			final Semaphore entered = new Semaphore (0);
+			final Semaphore gate = new Semaphore (0);
+			final List<String> alerts = Collections.synchronizedList (new ArrayList<String> ());
+			AlertListener listener = new AlertListener ()
+			{
+				@Override
+				public void alert (String s, int severity)
+				{
+					alerts.add (s);
+					entered.release ();
+					gate.acquireUninterruptibly ();
+				}
+			};
+			client.addAlertListener (listener);
+			server.sendAlert ("0", 0);
+			assertTrue (entered.tryAcquire (10, TimeUnit.SECONDS));
+
+			// a blocked publisher must not hold the test
+			Thread publisher = new Thread ()
+			{
+				@Override
+				public void run ()
+				{
+					for ( int i = 1; i < 6; ++i )
+					{
+						server.sendAlert (String.valueOf (i), 0);
+					}
+				}
+			};
+			publisher.start ();
+			JMSServerConnector.ListenerQueueStatistics statistics = null;
+			for ( int i = 0; i < 1000; ++i )
+			{
+				statistics = client.getListenerQueueStatistics ().get (0);
+				boolean published = policy == OverflowPolicy.BLOCK || !publisher.isAlive ();
+				if ( statistics.getDepth () == depth && statistics.getDropped () == dropped && published )
+				{
+					break;
+				}
+				Thread.sleep (10);
+			}
+			assertEquals ("alert", statistics.getTopic ());
+			assertEquals (listener, statistics.getListener ());
+			assertEquals (2, statistics.getCapacity ());
+			assertEquals (depth, statistics.getDepth ());
+			assertEquals (dropped, statistics.getDropped ());
+
+			gate.release (6);
+			publisher.join (10000);
+			for ( int i = 0; i < 1000 && !alerts.contains ("5"); ++i )
+			{
+				Thread.sleep (10);
+			}
+			assertEquals (dropped, client.getListenerQueueStatistics ().get (0).getDropped ());
+			return alerts;
+		}
+		finally
+		{
+			client.destroy ();
+		}
+	}
+
+	@Test
+	public void overflowTest () throws BCSAPIException, InterruptedException
+	{
+		// the publisher waits for the listener
+		assertEquals (Arrays.asList ("0", "1", "2", "3", "4", "5"), overflow (OverflowPolicy.BLOCK, 2, 0));
+		// the newest two are kept
+		assertEquals (Arrays.asList ("0", "4", "5"), overflow (OverflowPolicy.DROP_OLDEST, 2, 3));
+		// the queue is emptied whenever full: 1 and 2 at 3, then 3 and 4 at 5
+		assertEquals (Arrays.asList ("0", "5"), overflow (OverflowPolicy.COALESCE, 1, 4));
+	}
+}
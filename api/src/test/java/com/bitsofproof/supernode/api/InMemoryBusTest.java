@@ -15,9 +15,13 @@
  */
 package com.bitsofproof.supernode.api;
 
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.BytesMessage;
 import javax.jms.Connection;
@@ -33,6 +37,7 @@ import javax.jms.Session;
 import org.junit.Test;
 
 import com.bitsofproof.supernode.common.InMemoryBusConnectionFactory;
+import com.bitsofproof.supernode.common.SharedBodyMessage;
 
 public class InMemoryBusTest
 {
@@ -139,4 +144,199 @@ public class InMemoryBusTest
 		producer.send (m);
 		ready.acquireUninterruptibly ();
 	}
+
+	@Test
+	public void concurrentProducerTest () throws Exception
+	{
+		final int producers = 4;
+		final int messages = 10000;
+		InMemoryBusConnectionFactory factory = new InMemoryBusConnectionFactory ();
+		// smaller than the number of messages so that senders wait for the consumer
+		factory.setCapacity (256);
+		Connection connection = factory.createConnection ();
+		final Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		final MessageConsumer consumer = session.createConsumer (session.createQueue ("test"));
+		final int[] last = new int[producers];
+		Arrays.fill (last, -1);
+		final boolean[] ordered = new boolean[] { true };
+		consumer.setMessageListener (new MessageListener ()
+		{
+			@Override
+			public void onMessage (Message message)
+			{
+				try
+				{
+					BytesMessage m = (BytesMessage) message;
+					byte[] body = new byte[(int) m.getBodyLength ()];
+					m.readBytes (body);
+					String[] s = new String (body).split (":");
+					int p = Integer.parseInt (s[0]);
+					int n = Integer.parseInt (s[1]);
+					if ( n != last[p] + 1 )
+					{
+						ordered[0] = false;
+					}
+					last[p] = n;
+				}
+				catch ( JMSException e )
+				{
+					ordered[0] = false;
+				}
+				ready.release ();
+			}
+		});
+
+		Thread[] threads = new Thread[producers];
+		for ( int i = 0; i < producers; ++i )
+		{
+			final int p = i;
+			threads[i] = new Thread ()
+			{
+				@Override
+				public void run ()
+				{
+					try
+					{
+						MessageProducer producer = session.createProducer (session.createQueue ("test"));
+						for ( int n = 0; n < messages; ++n )
+						{
+							BytesMessage m = session.createBytesMessage ();
+							m.writeBytes ((p + ":" + n).getBytes ());
+							producer.send (m);
+						}
+					}
+					catch ( JMSException e )
+					{
+					}
+				}
+			};
+			threads[i].start ();
+		}
+		assertTrue (ready.tryAcquire (producers * messages, 30, TimeUnit.SECONDS));
+		assertTrue (ordered[0]);
+	}
+
+	@Test
+	public void sharedBodyTest () throws JMSException
+	{
+		ConnectionFactory factory = new InMemoryBusConnectionFactory ();
+		Connection connection = factory.createConnection ();
+		Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer (session.createTopic ("test"));
+		final byte[] body = "hello".getBytes ();
+		final Message[] received = new Message[2];
+		for ( int i = 0; i < received.length; ++i )
+		{
+			final int n = i;
+			session.createConsumer (session.createTopic ("test")).setMessageListener (new MessageListener ()
+			{
+				@Override
+				public void onMessage (Message message)
+				{
+					received[n] = message;
+					ready.release ();
+				}
+			});
+		}
+
+		BytesMessage m = session.createBytesMessage ();
+		m.writeBytes (body);
+		producer.send (m);
+		ready.acquireUninterruptibly (received.length);
+		for ( Message message : received )
+		{
+			assertTrue (message instanceof SharedBodyMessage);
+			assertSame (body, ((SharedBodyMessage) message).getSharedBody ());
+		}
+	}
+
+	@Test
+	public void virtualThreadTest () throws JMSException
+	{
+		// falls back to platform threads if the JVM has no virtual threads
+		InMemoryBusConnectionFactory factory = new InMemoryBusConnectionFactory ();
+		factory.setVirtualThreads (true);
+		Connection connection = factory.createConnection ();
+		Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer (session.createTopic ("test"));
+		session.createConsumer (session.createTopic ("test")).setMessageListener (new MessageListener ()
+		{
+			@Override
+			public void onMessage (Message message)
+			{
+				ready.release ();
+			}
+		});
+		for ( int i = 0; i < 100; ++i )
+		{
+			BytesMessage m = session.createBytesMessage ();
+			m.writeBytes ("hello".getBytes ());
+			producer.send (m);
+		}
+		ready.acquireUninterruptibly (100);
+		connection.close ();
+	}
+
+	@Test
+	public void closeConnectionTest () throws JMSException, InterruptedException
+	{
+		ConnectionFactory factory = new InMemoryBusConnectionFactory ();
+		Connection closing = factory.createConnection ();
+		Session closingSession = closing.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		final Semaphore closed = new Semaphore (0);
+		closingSession.createConsumer (closingSession.createTopic ("test")).setMessageListener (new MessageListener ()
+		{
+			@Override
+			public void onMessage (Message message)
+			{
+				closed.release ();
+			}
+		});
+		Connection connection = factory.createConnection ();
+		Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		final Semaphore received = new Semaphore (0);
+		session.createConsumer (session.createTopic ("test")).setMessageListener (new MessageListener ()
+		{
+			@Override
+			public void onMessage (Message message)
+			{
+				received.release ();
+			}
+		});
+		closing.close ();
+
+		// the other connection keeps delivering, the consumers of the closed one get nothing
+		MessageProducer producer = session.createProducer (session.createTopic ("test"));
+		for ( int i = 0; i < 10; ++i )
+		{
+			producer.send (session.createBytesMessage ());
+		}
+		assertTrue (received.tryAcquire (10, 1, TimeUnit.SECONDS));
+		assertTrue (!closed.tryAcquire (100, TimeUnit.MILLISECONDS));
+		connection.close ();
+	}
+
+	@Test (timeout = 10000)
+	public void sendAfterCloseTest () throws JMSException
+	{
+		InMemoryBusConnectionFactory factory = new InMemoryBusConnectionFactory ();
+		factory.setCapacity (2);
+		Connection connection = factory.createConnection ();
+		Session session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer (session.createQueue ("test"));
+		connection.close ();
+
+		// the bus stopped with its last connection, sending fails instead of waiting for a drain that does not run
+		for ( int i = 0; i < 4; ++i )
+		{
+			try
+			{
+				producer.send (session.createBytesMessage ());
+				fail ("sent on a closed connection");
+			}
+			catch ( JMSException e )
+			{
+			}
+		}
+	}
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.ListenerRegistry;
+
+public class ListenerRegistryTest
+{
+	@Test
+	public void registryTest ()
+	{
+		ListenerRegistry<String> registry = new ListenerRegistry<String> (new String[0]);
+		assertTrue (registry.isEmpty ());
+		assertNull (registry.put ("a", "1"));
+		assertNull (registry.put ("b", "2"));
+		assertNull (registry.put ("c", "3"));
+		String[] before = registry.getListeners ();
+		assertArrayEquals (new String[] { "1", "2", "3" }, before);
+
+		assertEquals ("2", registry.put ("b", "4"));
+		assertEquals ("1", registry.remove ("a"));
+		assertNull (registry.remove ("a"));
+		assertArrayEquals (new String[] { "4", "3" }, registry.getListeners ());
+		// earlier snapshots do not change
+		assertArrayEquals (new String[] { "1", "2", "3" }, before);
+
+		registry.remove ("b");
+		registry.remove ("c");
+		assertTrue (registry.isEmpty ());
+		assertEquals (0, registry.getListeners ().length);
+	}
+}
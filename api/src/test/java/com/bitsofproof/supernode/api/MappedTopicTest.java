@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedTopicTest extends TestChain
+{
+	private File file;
+	private LocalBlockStore store;
+	private MappedTopicPublisher publisher;
+	private List<MappedTopicConnector> connectors = new ArrayList<MappedTopicConnector> ();
+
+	@Before
+	public void start () throws Exception
+	{
+		file = File.createTempFile ("topics", ".ring");
+		file.deleteOnExit ();
+		store = new LocalBlockStore ();
+	}
+
+	private void publish (int capacity) throws Exception
+	{
+		publisher = new MappedTopicPublisher ();
+		publisher.setHandler (store);
+		publisher.setFile (file);
+		publisher.setCapacity (capacity);
+		publisher.init ();
+	}
+
+	private MappedTopicConnector connect () throws Exception
+	{
+		DirectBCSAPI direct = new DirectBCSAPI ();
+		direct.setHandler (store);
+		direct.init ();
+		MappedTopicConnector connector = new MappedTopicConnector ();
+		connector.setDelegate (direct);
+		connector.setFile (file);
+		connector.init ();
+		connectors.add (connector);
+		return connector;
+	}
+
+	@After
+	public void stop ()
+	{
+		for ( MappedTopicConnector connector : connectors )
+		{
+			connector.destroy ();
+		}
+		publisher.destroy ();
+		file.delete ();
+	}
+
+	@Test
+	public void topicTest () throws Exception
+	{
+		publish (1024 * 1024);
+		final Semaphore received = new Semaphore (0);
+		final List<String> hashes = Collections.synchronizedList (new ArrayList<String> ());
+		for ( int i = 0; i < 2; ++i )
+		{
+			BCSAPI api = connect ();
+			api.registerTransactionListener (new TransactionListener ()
+			{
+				@Override
+				public void process (Transaction t)
+				{
+					hashes.add (t.getHash ());
+					received.release ();
+				}
+			});
+			api.registerTrunkListener (new TrunkListener ()
+			{
+				@Override
+				public void trunkUpdate (List<Block> removed, List<Block> added)
+				{
+					hashes.add (added.get (0).getHash ());
+					received.release ();
+				}
+			});
+		}
+
+		store.sendBlock (block0);
+		store.sendTransaction (spend);
+		assertTrue (received.tryAcquire (4, 10, TimeUnit.SECONDS));
+		assertEquals (2, Collections.frequency (hashes, block0.getHash ()));
+		assertEquals (2, Collections.frequency (hashes, spend.getHash ()));
+
+		// requests go to the delegate
+		assertEquals (spend.getHash (), connectors.get (0).getTransaction (spend.getHash ()).getHash ());
+	}
+
+	@Test
+	public void wrapTest () throws Exception
+	{
+		publish (4096);
+		MappedTopicConnector api = connect ();
+		final List<Integer> alerts = Collections.synchronizedList (new ArrayList<Integer> ());
+		final Semaphore end = new Semaphore (0);
+		api.addAlertListener (new AlertListener ()
+		{
+			@Override
+			public void alert (String s, int severity)
+			{
+				if ( s.equals ("end") )
+				{
+					end.release ();
+				}
+				else
+				{
+					alerts.add (Integer.valueOf (s));
+				}
+			}
+		});
+		// the reader may be lapped and skip to the head of the ring
+		for ( int i = 0; i < 1000; ++i )
+		{
+			store.sendAlert (String.valueOf (i), 0);
+		}
+		Thread.sleep (100);
+		store.sendAlert ("end", 0);
+		assertTrue (end.tryAcquire (10, TimeUnit.SECONDS));
+		for ( int i = 1; i < alerts.size (); ++i )
+		{
+			assertTrue (alerts.get (i) > alerts.get (i - 1));
+		}
+		assertEquals (1000, alerts.size () + api.getLostEvents ());
+	}
+
+	@Test
+	public void stalePaddingTest () throws Exception
+	{
+		publish (4096);
+		MappedTopicConnector api = connect ();
+		final Semaphore received = new Semaphore (0);
+		api.addAlertListener (new AlertListener ()
+		{
+			@Override
+			public void alert (String s, int severity)
+			{
+				received.release ();
+			}
+		});
+
+		BCSAPIMessage.Alert.Builder alert = BCSAPIMessage.Alert.newBuilder ();
+		alert.setBcsapiversion (1);
+		alert.setAlert ("late");
+		alert.setSeverity (0);
+		BCSAPIMessage.Frame.Builder frame = BCSAPIMessage.Frame.newBuilder ();
+		frame.setId (1);
+		frame.setDestination ("alert");
+		frame.setBody (alert.build ().toByteString ());
+		byte[] record = frame.build ().toByteArray ();
+
+		try ( RandomAccessFile raf = new RandomAccessFile (file, "rw") )
+		{
+			MappedByteBuffer map = raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, MappedTopicPublisher.HEADER + 4096);
+			// padding of an earlier round where the next record goes, and the position written before the record is visible
+			ByteBuffer b = map.duplicate ();
+			b.position (MappedTopicPublisher.HEADER);
+			b.putInt (MappedTopicPublisher.PADDING);
+			b.putLong (4096 - 16);
+			b.putInt (MappedTopicPublisher.checksum (4096 - 16, MappedTopicPublisher.EMPTY));
+			map.putLong (MappedTopicPublisher.POSITION_OFFSET, MappedTopicPublisher.recordSize (record.length));
+			assertFalse (received.tryAcquire (100, TimeUnit.MILLISECONDS));
+
+			b.position (MappedTopicPublisher.HEADER);
+			b.putInt (record.length);
+			b.putLong (0);
+			b.put (record);
+			b.putInt (MappedTopicPublisher.checksum (0, record));
+		}
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (0, api.getLostEvents ());
+	}
+}
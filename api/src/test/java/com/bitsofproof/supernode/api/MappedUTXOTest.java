@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.wallet.MappedUTXO;
+
+public class MappedUTXOTest
+{
+	private File directory;
+
+	@Before
+	public void createDirectory () throws IOException
+	{
+		directory = Files.createTempDirectory ("utxo").toFile ();
+	}
+
+	@After
+	public void deleteDirectory ()
+	{
+		for ( File f : directory.listFiles () )
+		{
+			f.delete ();
+		}
+		directory.delete ();
+	}
+
+	private static List<TransactionOutput> createOutputs (Random rnd, int n)
+	{
+		List<TransactionOutput> outputs = new ArrayList<TransactionOutput> ();
+		for ( int i = 0; i < n; ++i )
+		{
+			byte[] hash = new byte[32];
+			rnd.nextBytes (hash);
+			TransactionOutput o = new TransactionOutput ();
+			o.setTxHash (ByteUtils.toHex (hash));
+			o.setIx (rnd.nextInt (3));
+			o.setValue (rnd.nextInt (100000000));
+			byte[] script = new byte[25];
+			rnd.nextBytes (script);
+			o.setScript (script);
+			outputs.add (o);
+		}
+		return outputs;
+	}
+
+	@Test
+	public void reopenTest () throws IOException
+	{
+		Random rnd = new Random (4711);
+		List<TransactionOutput> outputs = createOutputs (rnd, 1000);
+		String block = ByteUtils.toHex (new byte[32]);
+
+		MappedUTXO utxo = new MappedUTXO (directory, "test");
+		long total = 0;
+		for ( TransactionOutput o : outputs )
+		{
+			utxo.add (o);
+			total += o.getValue ();
+		}
+		for ( int i = 0; i < 500; ++i )
+		{
+			TransactionOutput o = outputs.get (i);
+			utxo.remove (o.getTxHash (), o.getIx ());
+			total -= o.getValue ();
+		}
+		utxo.setLastBlock (block);
+		utxo.close ();
+
+		utxo = new MappedUTXO (directory, "test");
+		assertEquals (total, utxo.getTotal ());
+		assertEquals (500, utxo.getUTXO ().size ());
+		assertEquals (block, utxo.getLastBlock ());
+		for ( int i = 0; i < 500; ++i )
+		{
+			TransactionOutput o = outputs.get (i);
+			assertNull (utxo.get (o.getTxHash (), o.getIx ()));
+		}
+		for ( int i = 500; i < outputs.size (); ++i )
+		{
+			TransactionOutput o = outputs.get (i);
+			TransactionOutput r = utxo.get (o.getTxHash (), o.getIx ());
+			assertNotNull (r);
+			assertEquals (o.getValue (), r.getValue ());
+			assertArrayEquals (o.getScript (), r.getScript ());
+		}
+
+		utxo.compact ();
+		utxo.close ();
+		utxo = new MappedUTXO (directory, "test");
+		assertEquals (total, utxo.getTotal ());
+		assertEquals (block, utxo.getLastBlock ());
+		utxo.close ();
+	}
+
+	@Test
+	public void tornRecordTest () throws IOException
+	{
+		Random rnd = new Random (4711);
+		List<TransactionOutput> outputs = createOutputs (rnd, 10);
+
+		MappedUTXO utxo = new MappedUTXO (directory, "test");
+		long total = 0;
+		for ( TransactionOutput o : outputs )
+		{
+			utxo.add (o);
+			total += o.getValue ();
+		}
+		utxo.close ();
+
+		// simulate a crash while writing the last record
+		File journal = new File (directory, "test.utxo");
+		try ( RandomAccessFile f = new RandomAccessFile (journal, "rw") )
+		{
+			long position = 0;
+			int length;
+			while ( (length = f.readInt ()) != 0 )
+			{
+				position += 8 + length;
+				f.seek (position);
+			}
+			f.seek (position);
+			f.writeInt (100);
+			f.writeInt (0xdeadbeef);
+		}
+
+		utxo = new MappedUTXO (directory, "test");
+		assertEquals (total, utxo.getTotal ());
+		utxo.add (createOutputs (rnd, 1).get (0));
+		utxo.close ();
+
+		utxo = new MappedUTXO (directory, "test");
+		assertEquals (outputs.size () + 1, utxo.getUTXO ().size ());
+		utxo.close ();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.ByteUtils;
+import com.bitsofproof.supernode.wallet.PackedUTXO;
+
+public class PackedUTXOTest
+{
+	private static TransactionOutput createOutput (Random rnd, String hash, int ix)
+	{
+		TransactionOutput o = new TransactionOutput ();
+		o.setTxHash (hash);
+		o.setIx (ix);
+		o.setValue (rnd.nextInt (100000000));
+		byte[] script = new byte[25];
+		rnd.nextBytes (script);
+		o.setScript (script);
+		if ( rnd.nextInt (10) == 0 )
+		{
+			byte[] color = new byte[32];
+			rnd.nextBytes (color);
+			o.setColor (ByteUtils.toHex (color));
+		}
+		return o;
+	}
+
+	private static void assertOutputEquals (TransactionOutput expected, TransactionOutput actual)
+	{
+		assertEquals (expected.getTxHash (), actual.getTxHash ());
+		assertEquals (expected.getIx (), actual.getIx ());
+		assertEquals (expected.getValue (), actual.getValue ());
+		assertEquals (expected.getColor (), actual.getColor ());
+		assertArrayEquals (expected.getScript (), actual.getScript ());
+	}
+
+	@Test
+	public void addRemoveTest ()
+	{
+		Random rnd = new Random (4711);
+		PackedUTXO utxo = new PackedUTXO ();
+		Map<String, TransactionOutput> reference = new HashMap<String, TransactionOutput> ();
+		String[] hashes = new String[2000];
+		for ( int i = 0; i < hashes.length; ++i )
+		{
+			byte[] h = new byte[32];
+			rnd.nextBytes (h);
+			hashes[i] = ByteUtils.toHex (h);
+		}
+		for ( int i = 0; i < 100000; ++i )
+		{
+			String hash = hashes[rnd.nextInt (hashes.length)];
+			int ix = rnd.nextInt (4);
+			if ( rnd.nextInt (3) > 0 )
+			{
+				TransactionOutput o = createOutput (rnd, hash, ix);
+				utxo.add (o);
+				reference.put (hash + ix, o);
+			}
+			else
+			{
+				TransactionOutput expected = reference.remove (hash + ix);
+				TransactionOutput removed = utxo.remove (hash, ix);
+				if ( expected == null )
+				{
+					assertNull (removed);
+				}
+				else
+				{
+					assertOutputEquals (expected, removed);
+				}
+			}
+		}
+		long total = 0;
+		for ( TransactionOutput o : reference.values () )
+		{
+			total += o.getValue ();
+			assertOutputEquals (o, utxo.get (o.getTxHash (), o.getIx ()));
+		}
+		assertEquals (total, utxo.getTotal ());
+		assertEquals (reference.size (), utxo.getUTXO ().size ());
+		assertTrue (utxo.size () == reference.size ());
+	}
+
+	@Test
+	public void compactOnAddTest ()
+	{
+		Random rnd = new Random (4711);
+		PackedUTXO utxo = new PackedUTXO ();
+		List<TransactionOutput> outputs = new ArrayList<TransactionOutput> ();
+		// fills most of the initial arena
+		for ( int i = 0; i < 2400; ++i )
+		{
+			TransactionOutput o = createOutput (rnd, String.format ("%064x", i), 0);
+			o.setColor (null);
+			utxo.add (o);
+			outputs.add (o);
+		}
+		for ( int i = 0; i < 2000; ++i )
+		{
+			utxo.remove (outputs.get (i).getTxHash (), 0);
+		}
+		outputs = new ArrayList<TransactionOutput> (outputs.subList (2000, outputs.size ()));
+
+		// the arena is compacted while the last record is replaced by a longer one
+		TransactionOutput replaced = outputs.get (outputs.size () - 1);
+		replaced.setScript (new byte[4000]);
+		utxo.add (replaced);
+
+		for ( int i = 0; i < 300; ++i )
+		{
+			utxo.remove (outputs.get (i).getTxHash (), 0);
+		}
+		outputs = new ArrayList<TransactionOutput> (outputs.subList (300, outputs.size ()));
+
+		// and while a new outpoint is added
+		TransactionOutput added = createOutput (rnd, String.format ("%064x", 5000), 1);
+		added.setScript (new byte[64 * 1024 - 2000]);
+		utxo.add (added);
+		outputs.add (added);
+
+		long total = 0;
+		for ( TransactionOutput o : outputs )
+		{
+			total += o.getValue ();
+			assertOutputEquals (o, utxo.get (o.getTxHash (), o.getIx ()));
+		}
+		assertEquals (total, utxo.getTotal ());
+		assertEquals (outputs.size (), utxo.size ());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bitsofproof.supernode.common.BloomFilter.UpdateMode;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.ValidationException;
+
+public class SocketServerConnectorTest extends TestChain
+{
+
+	private SocketBCSAPIServer server;
+	private SocketServerConnector api;
+
+	@Before
+	public void start () throws Exception
+	{
+
+		LocalBlockStore store = new LocalBlockStore ();
+		store.addBlock (block0);
+		store.addBlock (block1);
+		server = new SocketBCSAPIServer ();
+		server.setHandler (store);
+		server.init ();
+		api = new SocketServerConnector ();
+		api.setAddress (new InetSocketAddress ("localhost", server.getAddress ().getPort ()));
+		api.setTimeout (10 * 1000);
+		api.init ();
+	}
+
+	@After
+	public void stop ()
+	{
+		api.destroy ();
+		server.destroy ();
+	}
+
+	@Test
+	public void lookupTest () throws BCSAPIException
+	{
+		assertEquals (42, api.ping (42));
+		assertTrue (!api.isProduction ());
+
+		Block header = api.getBlockHeader (block1.getHash ());
+		assertEquals (block1.getHash (), header.getHash ());
+		assertEquals (1, header.getHeight ());
+		assertEquals (2, api.getBlock (block1.getHash ()).getTransactions ().size ());
+		assertNull (api.getBlock (Hash.ZERO_HASH_STRING));
+		assertEquals (spend.getHash (), api.getTransaction (spend.getHash ()).getHash ());
+		assertNull (api.getTransaction (Hash.ZERO_HASH_STRING));
+
+		Collector found = new Collector ();
+		api.getTransactions (Arrays.asList (spend.getHash (), Hash.ZERO_HASH_STRING), found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+	}
+
+	@Test
+	public void multiplexTest () throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool (8);
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>> ();
+			for ( int i = 0; i < 200; ++i )
+			{
+				final String hash = i % 2 == 0 ? block0.getHash () : block1.getHash ();
+				results.add (executor.submit (new Callable<String> ()
+				{
+					@Override
+					public String call () throws BCSAPIException
+					{
+						return api.getBlock (hash).getHash ();
+					}
+				}));
+			}
+			for ( int i = 0; i < results.size (); ++i )
+			{
+				assertEquals (i % 2 == 0 ? block0.getHash () : block1.getHash (), results.get (i).get ());
+			}
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+
+	@Test
+	public void scanTest () throws BCSAPIException, ValidationException
+	{
+		api.setScanChunkSize (1);
+		Collector found = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (Arrays.asList (block0.getTransactions ().get (0).getHash (), spend.getHash ()), found.hashes);
+		assertEquals (2, found.checkpoints.size ());
+
+		Collector resumed = new Collector ();
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found.checkpoints.get (0), resumed);
+		assertEquals (Collections.singletonList (spend.getHash ()), resumed.hashes);
+
+		found = new Collector ();
+		api.scanUTXOForAddresses (Collections.singleton (master.getKey (1).getAddress ()), UpdateMode.all, 0, found);
+		assertEquals (Collections.singletonList (spend.getHash ()), found.hashes);
+	}
+
+	@Test
+	public void pushTest () throws BCSAPIException, ValidationException, InterruptedException
+	{
+		final Semaphore received = new Semaphore (0);
+		api.registerTransactionListener (new TransactionListener ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				received.release ();
+			}
+		});
+		final List<Block> added = new ArrayList<Block> ();
+		api.registerTrunkListener (new TrunkListener ()
+		{
+			@Override
+			public void trunkUpdate (List<Block> removed, List<Block> a)
+			{
+				added.addAll (a);
+				received.release ();
+			}
+		});
+		final List<String> alerts = new ArrayList<String> ();
+		api.addAlertListener (new AlertListener ()
+		{
+			@Override
+			public void alert (String s, int severity)
+			{
+				alerts.add (s);
+				received.release ();
+			}
+		});
+
+		try
+		{
+			api.sendTransaction (spend (block0.getTransactions ().get (0), 0, other));
+			fail ("double spend accepted");
+		}
+		catch ( BCSAPIException e )
+		{
+		}
+		Transaction next = spend (spend, 0, other);
+		api.sendTransaction (next);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+
+		Block block2 = block (block1, Transaction.createCoinbase (other, 5000000000L, 2), next);
+		api.sendBlock (block2);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (block2.getHash (), added.get (0).getHash ());
+
+		server.getHandler ().sendAlert ("test", 0);
+		assertTrue (received.tryAcquire (10, TimeUnit.SECONDS));
+		assertEquals (Collections.singletonList ("test"), alerts);
+	}
+
+	@Test
+	public void slowScanTest () throws Exception
+	{
+		LocalBlockStore store = (LocalBlockStore) server.getHandler ();
+		Block previous = block1;
+		for ( int i = 2; i < 42; ++i )
+		{
+			previous = block (previous, Transaction.createCoinbase (master.getKey (0).getAddress (), 5000000000L, i));
+			store.addBlock (previous);
+		}
+		api.setScanChunkSize (1);
+		api.setReplyQueueSize (2);
+
+		final int[] queued = new int[1];
+		Collector found = new Collector ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				super.process (t);
+				queued[0] = Math.max (queued[0], api.getQueuedReplies ());
+				try
+				{
+					Thread.sleep (5);
+				}
+				catch ( InterruptedException e )
+				{
+				}
+			}
+		};
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (42, found.hashes.size ());
+		assertTrue (queued[0] <= 2);
+
+		// a listener calling the connector is answered although the scan is not read meanwhile
+		found = new Collector ()
+		{
+			@Override
+			public void process (Transaction t)
+			{
+				try
+				{
+					assertEquals (t.getHash (), api.getTransaction (t.getHash ()).getHash ());
+				}
+				catch ( BCSAPIException e )
+				{
+					throw new RuntimeException (e);
+				}
+				super.process (t);
+			}
+		};
+		api.scanTransactions (master.getReadOnly (), 0, 10, 0, found);
+		assertEquals (42, found.hashes.size ());
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import com.bitsofproof.supernode.common.ExtendedKey;
+import com.bitsofproof.supernode.common.Hash;
+import com.bitsofproof.supernode.common.ValidationException;
+
+/**
+ * A two block chain for tests of the BCSAPI implementations. block0 pays its coinbase to the first key of master, block1 holds a coinbase
+ * to other and spend, that moves the first coinbase to the second key of master.
+ */
+public abstract class TestChain
+{
+	protected ExtendedKey master;
+	protected Address other;
+	protected Block block0, block1;
+	protected Transaction spend;
+
+	@BeforeClass
+	public static void provider ()
+	{
+		Security.addProvider (new BouncyCastleProvider ());
+	}
+
+	@Before
+	public void chain () throws ValidationException
+	{
+		master = ExtendedKey.createNew ();
+		other = ExtendedKey.createNew ().getKey (0).getAddress ();
+		Transaction cb0 = Transaction.createCoinbase (master.getKey (0).getAddress (), 5000000000L, 0);
+		block0 = block (null, cb0);
+		spend = spend (cb0, 0, master.getKey (1).getAddress ());
+		block1 = block (block0, Transaction.createCoinbase (other, 5000000000L, 1), spend);
+	}
+
+	protected static Block block (Block previous, Transaction... transactions)
+	{
+		Block b = new Block ();
+		b.setVersion (2);
+		b.setPreviousHash (previous == null ? Hash.ZERO_HASH_STRING : previous.getHash ());
+		b.setCreateTime (previous == null ? 1400000000L : previous.getCreateTime () + 600);
+		b.setDifficultyTarget (0x207fffff);
+		b.setTransactions (new ArrayList<Transaction> (Arrays.asList (transactions)));
+		b.computeHash ();
+		return b;
+	}
+
+	protected static Transaction spend (Transaction source, long ix, Address to) throws ValidationException
+	{
+		Transaction t = new Transaction ();
+		TransactionInput in = new TransactionInput ();
+		in.setSourceHash (source.getHash ());
+		in.setIx (ix);
+		in.setScript (new byte[] { 1, 1 });
+		in.setSequence (0xffffffffL);
+		TransactionOutput out = new TransactionOutput ();
+		out.setValue (source.getOutputs ().get ((int) ix).getValue ());
+		out.setScript (to.getAddressScript ());
+		t.setInputs (new ArrayList<TransactionInput> (Collections.singletonList (in)));
+		t.setOutputs (new ArrayList<TransactionOutput> (Collections.singletonList (out)));
+		t.computeHash ();
+		return t;
+	}
+
+	/**
+	 * Collects hashes of transactions and checkpoints of a scan
+	 */
+	protected static class Collector implements TransactionListener, ScanCheckpointListener
+	{
+		protected final List<String> hashes = new ArrayList<String> ();
+		protected final List<String> checkpoints = new ArrayList<String> ();
+
+		@Override
+		public void process (Transaction t)
+		{
+			hashes.add (t.getHash ());
+		}
+
+		@Override
+		public void checkpoint (String checkpoint)
+		{
+			checkpoints.add (checkpoint);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 bits of proof zrt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitsofproof.supernode.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicEventLogTest
+{
+	private File directory;
+
+	@Before
+	public void createDirectory () throws IOException
+	{
+		directory = Files.createTempDirectory ("events").toFile ();
+	}
+
+	@After
+	public void deleteDirectory ()
+	{
+		for ( File f : directory.listFiles () )
+		{
+			f.delete ();
+		}
+		directory.delete ();
+	}
+
+	private static class Collector implements TopicEventLog.EventHandler
+	{
+		private final List<Long> sequences = new ArrayList<Long> ();
+		private final List<String> topics = new ArrayList<String> ();
+		private final List<byte[]> bodies = new ArrayList<byte[]> ();
+
+		@Override
+		public void event (long sequence, String topic, byte[] body)
+		{
+			sequences.add (sequence);
+			topics.add (topic);
+			bodies.add (body);
+		}
+	}
+
+	private static byte[] body (int i)
+	{
+		byte[] body = new byte[100 + i];
+		body[0] = (byte) i;
+		return body;
+	}
+
+	@Test
+	public void replayTest () throws IOException
+	{
+		TopicEventLog log = new TopicEventLog (directory, "test");
+		assertEquals (0, log.getLastSequence ());
+		assertEquals (0, log.replay (0, new Collector ()));
+		for ( int i = 1; i <= 10; ++i )
+		{
+			assertEquals (i, log.append (i % 2 == 0 ? "trunk" : "transaction", body (i)));
+		}
+		log.close ();
+
+		log = new TopicEventLog (directory, "test");
+		assertEquals (10, log.getLastSequence ());
+		assertEquals (1, log.getFirstSequence ());
+		assertEquals (11, log.append ("trunk", body (11)));
+		Collector c = new Collector ();
+		assertEquals (11, log.replay (7, c));
+		assertEquals (4, c.sequences.size ());
+		assertEquals (8L, (long) c.sequences.get (0));
+		assertEquals ("trunk", c.topics.get (0));
+		assertEquals ("transaction", c.topics.get (1));
+		assertArrayEquals (body (11), c.bodies.get (3));
+		log.close ();
+	}
+
+	@Test
+	public void tornTailTest () throws IOException
+	{
+		TopicEventLog log = new TopicEventLog (directory, "test");
+		for ( int i = 1; i <= 3; ++i )
+		{
+			log.append ("trunk", body (i));
+		}
+		log.close ();
+		File segment = directory.listFiles ()[0];
+		try (RandomAccessFile file = new RandomAccessFile (segment, "rw"))
+		{
+			file.setLength (file.length () - 3);
+		}
+
+		log = new TopicEventLog (directory, "test");
+		assertEquals (2, log.getLastSequence ());
+		assertEquals (3, log.append ("trunk", body (4)));
+		Collector c = new Collector ();
+		assertEquals (3, log.replay (0, c));
+		assertArrayEquals (body (4), c.bodies.get (2));
+		log.close ();
+	}
+
+	@Test
+	public void segmentTest () throws IOException
+	{
+		TopicEventLog log = new TopicEventLog (directory, "test");
+		log.setSegmentSize (1000);
+		log.setMaxSegments (3);
+		for ( int i = 1; i <= 100; ++i )
+		{
+			log.append ("transaction", body (i));
+		}
+		assertEquals (3, directory.listFiles ().length);
+		long first = log.getFirstSequence ();
+		Collector c = new Collector ();
+		assertEquals (100, log.replay (first - 1, c));
+		assertEquals (101 - first, c.sequences.size ());
+		for ( int i = 0; i < c.sequences.size (); ++i )
+		{
+			assertEquals (first + i, (long) c.sequences.get (i));
+		}
+		try
+		{
+			log.replay (0, new Collector ());
+			fail ("replayed deleted events");
+		}
+		catch ( IOException e )
+		{
+		}
+		log.close ();
+
+		log = new TopicEventLog (directory, "test");
+		assertEquals (100, log.getLastSequence ());
+		assertEquals (first, log.getFirstSequence ());
+		log.close ();
+	}
+}